@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import com.keecker.services.interfaces.navigation.Odometry;
+import com.keecker.services.interfaces.utils.geometry.Twist2d;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of building, copying and recycling an {@link IpcMessage}, for each way a publisher can
+ * send it.
+ */
+@State(Scope.Thread)
+public class IpcMessageBenchmark {
+
+    private Odometry mPayload;
+    private int mSignature;
+
+    @Setup
+    public void setup() {
+        mPayload = new Odometry(1.0, new Twist2d(0.5, 0.1));
+        mSignature = IpcMessage.getClassSignature(Odometry.class);
+    }
+
+    /**
+     * Message marshalled as soon as it is built, as before lazy marshalling.
+     */
+    @Benchmark
+    public Odometry eagerlyMarshalled() {
+        IpcMessage msg = new IpcMessage(mPayload, mSignature);
+        Odometry payload = msg.getPayload(Odometry.CREATOR);
+        msg.recycle();
+        return payload;
+    }
+
+    /**
+     * What a subscriber of the same process does with a message of a copying publisher.
+     */
+    @Benchmark
+    public Odometry localCopy() {
+        IpcMessage msg = new IpcMessage(mPayload, mSignature, false);
+        IpcMessage copy = msg.makeLocalCopy();
+        msg.recycle();
+        Odometry payload = copy.getPayload(Odometry.CREATOR);
+        copy.recycle();
+        return payload;
+    }
+
+    /**
+     * What a subscriber of the same process does with a message of a sharing publisher.
+     */
+    @Benchmark
+    public Odometry sharedLocally() {
+        IpcMessage msg = new IpcMessage(mPayload, mSignature, true);
+        IpcMessage copy = msg.makeLocalCopy();
+        msg.recycle();
+        Odometry payload = copy.getPayload(Odometry.CREATOR);
+        copy.recycle();
+        return payload;
+    }
+
+    /**
+     * Marshalling into a transaction Parcel and unmarshalling on the other side, what binder does
+     * for a subscriber in another process, minus the kernel copy.
+     */
+    @Benchmark
+    public Odometry remoteRoundTrip() {
+        IpcMessage msg = new IpcMessage(mPayload, mSignature, false);
+        IpcMessage received = msg.makeWithAParcel();
+        msg.recycle();
+        Odometry payload = received.getPayload(Odometry.CREATOR);
+        received.recycle();
+        return payload;
+    }
+}
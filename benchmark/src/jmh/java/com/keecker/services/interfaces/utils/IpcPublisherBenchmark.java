@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import com.keecker.services.interfaces.navigation.Odometry;
+import com.keecker.services.interfaces.utils.geometry.Twist2d;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link IpcPublisher#publish(android.os.Parcelable)} fanning a message out to several subscribers.
+ *
+ * Remote subscribers are simulated by marshalling the message into a Parcel and building the
+ * received message from it, as the binder stubs would.
+ */
+@State(Scope.Benchmark)
+public class IpcPublisherBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int subscribersCount;
+
+    @Param({"false", "true"})
+    public boolean remote;
+
+    @Param({"false", "true"})
+    public boolean sharedLocally;
+
+    @Param({"false", "true"})
+    public boolean dispatched;
+
+    private IpcPublisher<Odometry> mPublisher;
+    private final List<IpcSubscriber<Odometry>> mSubscribers = new ArrayList<>();
+    private final List<IIpcSubscriber> mAdded = new ArrayList<>();
+    private Odometry mOdometry;
+
+    @Setup
+    public void setup() {
+        if (dispatched) {
+            mPublisher = new IpcPublisher<>(Odometry.class, sharedLocally, IpcDispatcher.getDefault(),
+                    16, IpcQueueType.RING_BUFFER);
+        } else {
+            mPublisher = new IpcPublisher<>(Odometry.class, sharedLocally);
+        }
+        for (int i = 0; i < subscribersCount; i++) {
+            IpcSubscriber<Odometry> subscriber =
+                    new IpcSubscriber<>(Odometry.class, 16, IpcQueueType.RING_BUFFER);
+            mSubscribers.add(subscriber);
+            IIpcSubscriber added = remote ? new RemoteProxy(subscriber) : subscriber;
+            mAdded.add(added);
+            mPublisher.add(added);
+        }
+        mOdometry = new Odometry(1.0, new Twist2d(0.5, 0.1));
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        for (IIpcSubscriber added : mAdded) {
+            mPublisher.remove(added);
+        }
+        mAdded.clear();
+        for (IpcSubscriber<Odometry> subscriber : mSubscribers) {
+            subscriber.stop();
+        }
+        mSubscribers.clear();
+    }
+
+    @Benchmark
+    public void publish() {
+        mPublisher.publish(mOdometry);
+    }
+
+    /**
+     * Goes through a Parcel on each call, as a call to a subscriber in another process does.
+     */
+    private static class RemoteProxy extends IIpcSubscriber.Stub {
+        private final IIpcSubscriber mSubscriber;
+
+        RemoteProxy(IIpcSubscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void onNewMessage(IpcMessage message) throws android.os.RemoteException {
+            // Owned by the subscriber from now on, as a message unmarshalled by a binder stub
+            mSubscriber.onNewMessage(message.makeWithAParcel());
+        }
+    }
+}
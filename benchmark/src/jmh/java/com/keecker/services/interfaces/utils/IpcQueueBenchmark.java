@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Queue;
+
+/**
+ * {@link IpcHandlerThread#queue(Object)} called by several binder threads at once, while the
+ * handler thread takes the messages out.
+ */
+@State(Scope.Benchmark)
+public class IpcQueueBenchmark {
+
+    @Param({"LINKED", "RING_BUFFER", "CONFLATED"})
+    public IpcQueueType queueType;
+
+    @Param({"16"})
+    public int queueSize;
+
+    private IpcHandlerThread<Integer> mHandlerThread;
+
+    @Setup
+    public void setup() {
+        mHandlerThread = new IpcHandlerThread<>(Integer.class, queueSize, queueType,
+                new IpcHandlerThread.Delegate<Integer>() {
+                    @Override
+                    public void onNewMessage(Integer msg) {}
+
+                    @Override
+                    public void onMessageDiscarded(Integer msg) {}
+
+                    @Override
+                    public void onThreadExit(Queue<Integer> remainingMsg) {}
+                }, "benchmark");
+        mHandlerThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mHandlerThread.quit();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void queueSingleProducer() {
+        mHandlerThread.queue(42);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void queueFourProducers() {
+        mHandlerThread.queue(42);
+    }
+}
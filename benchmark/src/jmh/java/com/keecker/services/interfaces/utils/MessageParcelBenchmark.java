@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.keecker.services.interfaces.common.utils.map.Pose;
+import com.keecker.services.interfaces.navigation.AlignToWallStatus;
+import com.keecker.services.interfaces.navigation.Compass;
+import com.keecker.services.interfaces.navigation.DetectionPose;
+import com.keecker.services.interfaces.navigation.GoToChargingStationStatus;
+import com.keecker.services.interfaces.navigation.KidnappingStatus;
+import com.keecker.services.interfaces.navigation.Odometry;
+import com.keecker.services.interfaces.navigation.PlaneSegmentationResult;
+import com.keecker.services.interfaces.navigation.RelativeGoToStatus;
+import com.keecker.services.interfaces.navigation.SafeModeState;
+import com.keecker.services.interfaces.projection.AspectRatio;
+import com.keecker.services.interfaces.projection.DisplayMode;
+import com.keecker.services.interfaces.projection.DisplayPosition;
+import com.keecker.services.interfaces.projection.ProjectorState;
+import com.keecker.services.interfaces.utils.geometry.Transform;
+import com.keecker.services.interfaces.utils.geometry.Twist2d;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Marshalling and unmarshalling of each message type published through the IPC utilities.
+ */
+@State(Scope.Thread)
+public class MessageParcelBenchmark {
+
+    @Param({"Odometry", "DetectionPose", "PlaneSegmentationResult", "SafeModeState",
+            "GoToChargingStationStatus", "Compass", "AlignToWallStatus", "KidnappingStatus",
+            "RelativeGoToStatus", "ProjectorState", "Pose", "Transform"})
+    public String messageType;
+
+    private Parcelable mMessage;
+    private Parcelable.Creator<?> mCreator;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        mMessage = sample(messageType);
+        mCreator = (Parcelable.Creator<?>) mMessage.getClass().getField("CREATOR").get(null);
+    }
+
+    @Benchmark
+    public Object roundTrip() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            mMessage.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return mCreator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Parcelable sample(String messageType) {
+        switch (messageType) {
+            case "Odometry":
+                return new Odometry(1.0, new Twist2d(0.5, 0.1));
+            case "DetectionPose":
+                return new DetectionPose(new float[]{1f, 2f, 0f, 0.5f}, 0.9, 1.0);
+            case "PlaneSegmentationResult":
+                return new PlaneSegmentationResult(1.0, 0.1, 1.5, 0.8, 0.1, 0.2, 0.3, 0.4);
+            case "SafeModeState":
+                return new SafeModeState(true);
+            case "GoToChargingStationStatus":
+                return GoToChargingStationStatus.DOCKING;
+            case "Compass":
+                return new Compass(1.0, 0.5, 0.9, 40.0, 0.1, 0.2);
+            case "AlignToWallStatus":
+                return new AlignToWallStatus(true);
+            case "KidnappingStatus":
+                return new KidnappingStatus(false);
+            case "RelativeGoToStatus":
+                return new RelativeGoToStatus(true);
+            case "ProjectorState":
+                return new ProjectorState(0, 50, true, true, false, true, true, 0, 100, 80, 50,
+                        DisplayMode.MOVIE, DisplayPosition.values()[0], AspectRatio.values()[0]);
+            case "Pose":
+                return new Pose(1.0, 1f, 2f, 0.5f, 0.01f, 0.01f, 0.02f, false);
+            case "Transform":
+                return new Transform(1.0, 2.0, 0.5);
+            default:
+                throw new IllegalArgumentException("Unknown message type " + messageType);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+/**
+ * Creating a pool of buffers backed by memfd, writing a frame through each of them as the first
+ * frames of a publisher, then destroying it. Prefaulting moves the page faults of the first
+ * frames to the creation of the pool.
+ *
+ * Needs the native library built for the development machine, see the README.
+ */
+@State(Scope.Benchmark)
+public class SharedMemoryAllocationBenchmark {
+
+    @Param({"4"})
+    public int numBuffers;
+
+    @Param({"65536", "4194304"})
+    public int bufferSize;
+
+    @Param({"false", "true"})
+    public boolean prefault;
+
+    private ByteBuffer mFrame;
+
+    @Setup
+    public void setup() {
+        mFrame = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Benchmark
+    public long createFillDestroy() {
+        SharedMemory<SharedMemoryBuffer> sharedMemory = new SharedMemory<>(
+                SharedMemoryBuffer.class, numBuffers, bufferSize,
+                SharedMemory.ExhaustionPolicy.WAIT_FOR_RELEASE,
+                prefault ? EnumSet.of(SharedMemory.PageOption.PREFAULT)
+                        : EnumSet.noneOf(SharedMemory.PageOption.class));
+        long written = 0;
+        for (int i = 0; i < numBuffers; i++) {
+            SharedMemoryBuffer buffer = sharedMemory.dequeueBuffer();
+            written += buffer.write(0, mFrame.duplicate());
+        }
+        sharedMemory.destroy();
+        return written;
+    }
+}
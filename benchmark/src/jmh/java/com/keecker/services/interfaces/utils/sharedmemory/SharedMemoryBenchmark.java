@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Buffer pool bookkeeping of {@link SharedMemory}: dequeueing a buffer to fill it, then giving it
+ * back as the publisher does once all the subscribers are done with it.
+ *
+ * The buffers are not backed by ashmem, only the pool management is measured.
+ */
+@State(Scope.Benchmark)
+public class SharedMemoryBenchmark {
+
+    @Param({"4", "32"})
+    public int numBuffers;
+
+    /**
+     * If true, all the buffers but one are in use, the worst case to find a free one.
+     */
+    @Param({"false", "true"})
+    public boolean mostlyBusy;
+
+    private SharedMemory<BenchmarkBuffer> mSharedMemory;
+
+    @Setup
+    public void setup() {
+        mSharedMemory = new SharedMemory<>(BenchmarkBuffer.class, numBuffers, 1024);
+        if (mostlyBusy) {
+            for (int i = 0; i < numBuffers - 1; i++) {
+                mSharedMemory.dequeueBuffer();
+            }
+        }
+    }
+
+    @Benchmark
+    public BenchmarkBuffer dequeueEnqueue() {
+        BenchmarkBuffer buffer = mSharedMemory.dequeueBuffer();
+        if (buffer != null) {
+            mSharedMemory.enqueueBuffer(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Buffers given back by id, as when a subscriber notifies the publisher.
+     */
+    @Benchmark
+    public BenchmarkBuffer dequeueEnqueueById() {
+        BenchmarkBuffer buffer = mSharedMemory.dequeueBuffer();
+        if (buffer != null) {
+            mSharedMemory.enqueueBuffer(buffer.getBufferId());
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BenchmarkBuffer dequeueEnqueueFourThreads() {
+        return dequeueEnqueue();
+    }
+
+    /**
+     * Buffer without shared memory behind it, with a distinct id and fd for each instance.
+     */
+    public static class BenchmarkBuffer extends SharedMemoryBuffer {
+        private static int sNextId = 0;
+
+        private final int mId;
+
+        public BenchmarkBuffer(int size) {
+            super();
+            synchronized (BenchmarkBuffer.class) {
+                mId = sNextId++;
+            }
+        }
+
+        @Override
+        public long getBufferId() {
+            return mId;
+        }
+
+        @Override
+        public int getFd() {
+            return mId;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package android.os;
+
+/**
+ * JVM stand-in of the Android class, see the benchmark README.
+ * Like a real local binder, it never dies and calls through it are direct method calls.
+ */
+public class Binder implements IBinder {
+
+    @Override
+    public void linkToDeath(DeathRecipient recipient, int flags) {}
+
+    @Override
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package android.os;
+
+/**
+ * JVM stand-in of the Android interface, see the benchmark README.
+ */
+public interface IInterface {
+    IBinder asBinder();
+}
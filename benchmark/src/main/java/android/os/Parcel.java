@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package android.os;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM stand-in of the Android class, see the benchmark README.
+ *
+ * Follows the same layout rules as the native Parcel: little endian, every value padded to 4
+ * bytes, strings as UTF-16 with a length prefix and a null terminator, parcelables prefixed by
+ * their class name. Instances are pooled as on Android, so obtain/recycle cycles do not allocate.
+ * The costs are in the same ballpark as the real implementation, not identical: use it to compare
+ * versions of the library, not to predict timings on the robot.
+ */
+public final class Parcel {
+
+    private static final int POOL_SIZE = 6;
+    private static final Parcel[] sPool = new Parcel[POOL_SIZE];
+    private static final ConcurrentHashMap<String, Parcelable.Creator<?>> sCreators =
+            new ConcurrentHashMap<>();
+
+    private byte[] mData = new byte[128];
+    private int mDataSize = 0;
+    private int mDataPosition = 0;
+
+    private Parcel() {}
+
+    public static Parcel obtain() {
+        synchronized (sPool) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                Parcel p = sPool[i];
+                if (p != null) {
+                    sPool[i] = null;
+                    return p;
+                }
+            }
+        }
+        return new Parcel();
+    }
+
+    public void recycle() {
+        mDataSize = 0;
+        mDataPosition = 0;
+        synchronized (sPool) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                if (sPool[i] == null) {
+                    sPool[i] = this;
+                    return;
+                }
+            }
+        }
+    }
+
+    public int dataSize() {
+        return mDataSize;
+    }
+
+    public int dataPosition() {
+        return mDataPosition;
+    }
+
+    public void setDataPosition(int pos) {
+        mDataPosition = pos;
+    }
+
+    public void appendFrom(Parcel parcel, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(parcel.mData, offset, mData, mDataPosition, length);
+        advance(length);
+    }
+
+    public void writeInt(int val) {
+        ensureCapacity(4);
+        putInt(mDataPosition, val);
+        advance(4);
+    }
+
+    public int readInt() {
+        if (mDataPosition + 4 > mDataSize) {
+            return 0;
+        }
+        int val = getInt(mDataPosition);
+        mDataPosition += 4;
+        return val;
+    }
+
+    public void writeLong(long val) {
+        ensureCapacity(8);
+        putInt(mDataPosition, (int) val);
+        putInt(mDataPosition + 4, (int) (val >>> 32));
+        advance(8);
+    }
+
+    public long readLong() {
+        if (mDataPosition + 8 > mDataSize) {
+            return 0;
+        }
+        long low = getInt(mDataPosition) & 0xffffffffL;
+        long high = getInt(mDataPosition + 4);
+        mDataPosition += 8;
+        return (high << 32) | low;
+    }
+
+    public void writeByte(byte val) {
+        writeInt(val);
+    }
+
+    public byte readByte() {
+        return (byte) readInt();
+    }
+
+    public void writeFloat(float val) {
+        writeInt(Float.floatToRawIntBits(val));
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public void writeDouble(double val) {
+        writeLong(Double.doubleToRawLongBits(val));
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public void writeString(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        int length = val.length();
+        writeInt(length);
+        // UTF-16 chars and a null terminator, padded to 4 bytes
+        int size = ((length + 1) * 2 + 3) & ~3;
+        ensureCapacity(size);
+        int pos = mDataPosition;
+        for (int i = 0; i < length; i++) {
+            char c = val.charAt(i);
+            mData[pos++] = (byte) c;
+            mData[pos++] = (byte) (c >>> 8);
+        }
+        Arrays.fill(mData, pos, mDataPosition + size, (byte) 0);
+        advance(size);
+    }
+
+    public String readString() {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        int size = ((length + 1) * 2 + 3) & ~3;
+        if (mDataPosition + size > mDataSize) {
+            return null;
+        }
+        char[] chars = new char[length];
+        int pos = mDataPosition;
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ((mData[pos] & 0xff) | ((mData[pos + 1] & 0xff) << 8));
+            pos += 2;
+        }
+        mDataPosition += size;
+        return new String(chars);
+    }
+
+    public void writeParcelable(Parcelable p, int parcelableFlags) {
+        if (p == null) {
+            writeString(null);
+            return;
+        }
+        writeString(p.getClass().getName());
+        p.writeToParcel(this, parcelableFlags);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        String name = readString();
+        if (name == null) {
+            return null;
+        }
+        return (T) getCreator(name, loader).createFromParcel(this);
+    }
+
+    // Looked up once per class, as the Android implementation does
+    private static Parcelable.Creator<?> getCreator(String name, ClassLoader loader) {
+        Parcelable.Creator<?> creator = sCreators.get(name);
+        if (creator != null) {
+            return creator;
+        }
+        try {
+            Class<?> clazz = Class.forName(name, false,
+                    loader != null ? loader : Parcel.class.getClassLoader());
+            Field field = clazz.getField("CREATOR");
+            creator = (Parcelable.Creator<?>) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("No CREATOR found for " + name, e);
+        }
+        sCreators.put(name, creator);
+        return creator;
+    }
+
+    private void ensureCapacity(int length) {
+        int required = mDataPosition + length;
+        if (required > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(required, mData.length * 2));
+        }
+    }
+
+    private void advance(int length) {
+        mDataPosition += length;
+        if (mDataPosition > mDataSize) {
+            mDataSize = mDataPosition;
+        }
+    }
+
+    private void putInt(int pos, int val) {
+        mData[pos] = (byte) val;
+        mData[pos + 1] = (byte) (val >>> 8);
+        mData[pos + 2] = (byte) (val >>> 16);
+        mData[pos + 3] = (byte) (val >>> 24);
+    }
+
+    private int getInt(int pos) {
+        return (mData[pos] & 0xff)
+                | ((mData[pos + 1] & 0xff) << 8)
+                | ((mData[pos + 2] & 0xff) << 16)
+                | ((mData[pos + 3] & 0xff) << 24);
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package android.os;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * JVM stand-in of the Android class, see the benchmark README.
+ */
+public class ParcelFileDescriptor implements Parcelable, Closeable {
+
+    private final int mFd;
+
+    private ParcelFileDescriptor(int fd) {
+        mFd = fd;
+    }
+
+    public static ParcelFileDescriptor adoptFd(int fd) {
+        return new ParcelFileDescriptor(fd);
+    }
+
+    public int getFd() {
+        return mFd;
+    }
+
+    @Override
+    public void close() throws IOException {}
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        throw new UnsupportedOperationException("File descriptors cannot be parcelled on the JVM");
+    }
+}
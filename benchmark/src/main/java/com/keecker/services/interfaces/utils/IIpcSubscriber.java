@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+/**
+ * JVM stand-in of the class generated from IIpcSubscriber.aidl, see the benchmark README.
+ * Only the local side is there: calls on a Stub are direct method calls.
+ */
+public interface IIpcSubscriber extends IInterface {
+
+    abstract class Stub extends Binder implements IIpcSubscriber {
+
+        public static IIpcSubscriber asInterface(IBinder obj) {
+            return (IIpcSubscriber) obj;
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return this;
+        }
+    }
+
+    void onNewMessage(IpcMessage message) throws RemoteException;
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+/**
+ * JVM stand-in of the class generated from ISharedBufferCallbacks.aidl, see the benchmark README.
+ * Only the local side is there: calls on a Stub are direct method calls.
+ */
+public interface ISharedBufferCallbacks extends IInterface {
+
+    abstract class Stub extends Binder implements ISharedBufferCallbacks {
+
+        public static ISharedBufferCallbacks asInterface(IBinder obj) {
+            return (ISharedBufferCallbacks) obj;
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return this;
+        }
+    }
+
+    void doneWithBuffer() throws RemoteException;
+
+    void doneWithFrame(long bufferId, long sequence) throws RemoteException;
+}
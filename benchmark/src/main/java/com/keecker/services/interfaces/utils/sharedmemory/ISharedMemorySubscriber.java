@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import com.keecker.services.interfaces.utils.IpcMessage;
+
+/**
+ * JVM stand-in of the class generated from ISharedMemorySubscriber.aidl, see the benchmark README.
+ * Only the local side is there: calls on a Stub are direct method calls.
+ */
+public interface ISharedMemorySubscriber extends IInterface {
+
+    abstract class Stub extends Binder implements ISharedMemorySubscriber {
+
+        public static ISharedMemorySubscriber asInterface(IBinder obj) {
+            return (ISharedMemorySubscriber) obj;
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return this;
+        }
+    }
+
+    void onNewMessage(IpcMessage msg, ISharedBufferCallbacks bufferEventsCallback)
+            throws RemoteException;
+
+    int getProtocolVersion() throws RemoteException;
+
+    void onPoolShared(int poolId, ParcelFileDescriptor[] fds, long[] bufferIds, int bufferSize,
+                      ISharedBufferCallbacks callbacks) throws RemoteException;
+
+    void onNewFrame(IpcMessage msg, int poolId, long bufferId, long sequence)
+            throws RemoteException;
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.keecker.services.interfaces
+
+import android.content.ComponentName
+import android.content.Intent
+import android.os.IBinder
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import android.util.Log
+import com.keecker.services.interfaces.test.ITypicalService
+import kotlinx.coroutines.*
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Hundreds of concurrent calls while the service restarts, all waiting for the same new
+ * connection. Results are logged, look for KeeckerServiceConnectionBenchmark in logcat.
+ */
+@RunWith(AndroidJUnit4::class)
+class KeeckerServiceConnectionBenchmark {
+
+    private val TAG = KeeckerServiceConnectionBenchmark::class.java.simpleName
+    private val NUM_CALLS = 500
+
+    private val bindingInfo = object : ServiceBindingInfo<ITypicalService> {
+        override fun getIntent(): Intent {
+            val intent = Intent("com.keecker.services.interfaces.test.BIND_TYPICAL_SERVICE")
+            intent.component = ComponentName(
+                    "com.keecker.services.interfaces.test",
+                    "com.keecker.services.interfaces.TypicalServiceInAnotherProcess")
+            return intent
+        }
+
+        override fun toInterface(binder: IBinder): ITypicalService {
+            return ITypicalService.Stub.asInterface(binder)
+        }
+    }
+
+    @Test
+    fun benchmarkConcurrentCallsDuringARestart() = runBlocking<Unit> {
+        val context = InstrumentationRegistry.getContext().applicationContext
+        val connection = KeeckerServiceConnection(context, bindingInfo)
+        val warmStart = System.nanoTime()
+        val warm = callConcurrently(connection)
+        val warmNs = System.nanoTime() - warmStart
+        // The service process exits a second later, while the calls are waiting or running
+        connection.execute { it.crashAfterTheCall() }
+        val restartStart = System.nanoTime()
+        val restarted = callConcurrently(connection)
+        val restartNs = System.nanoTime() - restartStart
+        Log.i(TAG, String.format("%d concurrent calls: warm %d us, during a restart %d us",
+                NUM_CALLS, warmNs / 1000, restartNs / 1000))
+        assertEquals(NUM_CALLS, warm)
+        assertEquals(NUM_CALLS, restarted)
+        connection.unbind()
+    }
+
+    /**
+     * @return the number of calls that succeeded
+     */
+    private suspend fun callConcurrently(connection: KeeckerServiceConnection<ITypicalService>)
+            : Int = coroutineScope {
+        val calls = List(NUM_CALLS) { i ->
+            async(Dispatchers.Default) {
+                // Spread over the crash delay
+                delay(i * 3L)
+                connection.execute { it.processId }
+            }
+        }
+        calls.count { it.await() != null }
+    }
+}
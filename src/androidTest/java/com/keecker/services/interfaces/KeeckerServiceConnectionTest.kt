@@ -183,6 +183,18 @@ class KeeckerServiceConnectionTest {
         assertNotNull( connection.execute { it.getProcessId() })
     }
 
+    @Test
+    fun callsFromTheIoDispatcherStayOnTheirThread() = runBlocking<Unit> {
+        val connection = KeeckerServiceConnection(context, outerProcessBindingInfo)
+        // Binds first, then the binder is cached
+        connection.execute { it.processId }
+        withContext(Dispatchers.IO) {
+            val caller = Thread.currentThread()
+            assertSame(caller, connection.execute { Thread.currentThread() })
+        }
+        connection.unbind()
+    }
+
     @Test(expected = IllegalStateException::class)
     fun blockingTheMainThreadRaisesAnException() = runBlocking<Unit> {
         val connection = KeeckerServiceConnection(context, outerProcessBindingInfo)
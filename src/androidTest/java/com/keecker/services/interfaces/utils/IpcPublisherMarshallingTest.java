@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Publishers marshal what they publish, the Parcel is needed so these run on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IpcPublisherMarshallingTest {
+
+    private IpcDispatcher mDispatcher;
+    private IpcPublisher<Counter> mPublisher;
+
+    @Before
+    public void before() {
+        mDispatcher = new IpcDispatcher("IpcPublisherMarshallingTest", 1);
+        mPublisher = new IpcPublisher<>(Counter.class, false, mDispatcher, 10, IpcQueueType.LINKED);
+    }
+
+    @After
+    public void after() {
+        mDispatcher.shutdown();
+    }
+
+    @Test
+    public void testObjectModifiedAfterPublishIsSentAsPublished() throws Exception {
+        BlockedSubscriber subscriber = new BlockedSubscriber();
+        mPublisher.add(subscriber);
+        // Keeps the outbound queue busy while we modify the next message
+        mPublisher.publish(new Counter(0));
+        Counter counter = new Counter(1);
+        mPublisher.publish(counter);
+        counter.value = 2;
+        subscriber.mRelease.countDown();
+        assertEquals(0, subscriber.take());
+        assertEquals(1, subscriber.take());
+    }
+
+    @Test
+    public void testBatchModifiedAfterPublishIsSentAsPublished() throws Exception {
+        mPublisher.setBatching(2, 10000);
+        BlockedSubscriber subscriber = new BlockedSubscriber();
+        subscriber.mRelease.countDown();
+        mPublisher.addBatched(subscriber);
+        Counter counter = new Counter(1);
+        mPublisher.publish(counter);
+        counter.value = 2;
+        mPublisher.publish(counter);
+        assertEquals(1, subscriber.take());
+        assertEquals(2, subscriber.take());
+    }
+
+    private static class BlockedSubscriber extends IIpcSubscriber.Stub {
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        private final LinkedBlockingQueue<Integer> mReceived = new LinkedBlockingQueue<>();
+        private final IBinder mBinder = new Binder();
+
+        @Override
+        public void onNewMessage(IpcMessage message) {
+            try {
+                mRelease.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {}
+            if (message.getSignature() == IpcMessage.getClassSignature(Counter.class)) {
+                mReceived.add(message.getPayload(Counter.CREATOR).value);
+                return;
+            }
+            List<Counter> batch =
+                    message.getPayload(IpcBatch.creator(Counter.CREATOR)).getMessages();
+            for (Counter counter : batch) {
+                mReceived.add(counter.value);
+            }
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return mBinder;
+        }
+
+        int take() throws InterruptedException {
+            Integer value = mReceived.poll(1, TimeUnit.SECONDS);
+            assertNotNull(value);
+            return value;
+        }
+    }
+
+    public static class Counter implements Parcelable {
+        int value;
+
+        Counter(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(value);
+        }
+
+        public static final Creator<Counter> CREATOR = new Creator<Counter>() {
+            @Override
+            public Counter createFromParcel(Parcel source) {
+                return new Counter(source.readInt());
+            }
+
+            @Override
+            public Counter[] newArray(int size) {
+                return new Counter[size];
+            }
+        };
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.ipc;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.keecker.services.interfaces.utils.IpcPublisher;
+import com.keecker.services.interfaces.utils.IpcQueueType;
+import com.keecker.services.interfaces.utils.IpcSubscriber;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Compares publishing to subscribers of the same process with and without marshalling.
+ * Results are logged, look for IpcSameProcessBenchmark in logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IpcSameProcessBenchmark {
+
+    private static final String TAG = IpcSameProcessBenchmark.class.getSimpleName();
+    private static final int NUM_SUBSCRIBERS = 4;
+    private static final int NUM_MESSAGES = 2000;
+    private static final int WARMUP_MESSAGES = 200;
+
+    @Test
+    public void testSharedPayloadIsNotCopied() throws Exception {
+        IpcPublisher<Scan> publisher = new IpcPublisher<>(Scan.class, true);
+        final Scan scan = new Scan(360);
+        final CountDownLatch received = new CountDownLatch(1);
+        IpcSubscriber<Scan> subscriber = new IpcSubscriber<Scan>(Scan.class) {
+            @Override
+            public void onNewMessage(Scan msg) {
+                assertSame(scan, msg);
+                received.countDown();
+            }
+        };
+        publisher.add(subscriber);
+        publisher.publish(scan);
+        assertTrue(received.await(1, TimeUnit.SECONDS));
+        subscriber.stop();
+    }
+
+    @Test
+    public void benchmarkLocalDelivery() throws Exception {
+        long copiedNs = publishAll(false);
+        long sharedNs = publishAll(true);
+        Log.i(TAG, String.format("%d subscribers, %d messages: copied %d ns/msg, shared %d ns/msg",
+                NUM_SUBSCRIBERS, NUM_MESSAGES, copiedNs / NUM_MESSAGES, sharedNs / NUM_MESSAGES));
+    }
+
+    /**
+     * @return the time spent publishing and handling the messages, in nanoseconds
+     */
+    private long publishAll(boolean sharedLocally) throws InterruptedException {
+        IpcPublisher<Scan> publisher = new IpcPublisher<>(Scan.class, sharedLocally);
+        final CountDownLatch warmup = new CountDownLatch(WARMUP_MESSAGES * NUM_SUBSCRIBERS);
+        final CountDownLatch done = new CountDownLatch((WARMUP_MESSAGES + NUM_MESSAGES) * NUM_SUBSCRIBERS);
+        IpcSubscriber[] subscribers = new IpcSubscriber[NUM_SUBSCRIBERS];
+        for (int i = 0; i < NUM_SUBSCRIBERS; i++) {
+            // Large enough queue to never discard messages
+            subscribers[i] = new IpcSubscriber<Scan>(Scan.class, WARMUP_MESSAGES + NUM_MESSAGES,
+                    IpcQueueType.RING_BUFFER) {
+                @Override
+                public void onNewMessage(Scan msg) {
+                    warmup.countDown();
+                    done.countDown();
+                }
+            };
+            publisher.add(subscribers[i]);
+        }
+        Scan scan = new Scan(360);
+        for (int i = 0; i < WARMUP_MESSAGES; i++) {
+            publisher.publish(scan);
+        }
+        assertTrue(warmup.await(10, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_MESSAGES; i++) {
+            publisher.publish(scan);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        for (IpcSubscriber subscriber : subscribers) {
+            subscriber.stop();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Typical sensor message, a few kilobytes to marshal.
+     */
+    public static final class Scan implements Parcelable {
+        final float[] ranges;
+
+        Scan(int size) {
+            ranges = new float[size];
+        }
+
+        Scan(Parcel in) {
+            ranges = in.createFloatArray();
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeFloatArray(ranges);
+        }
+
+        public static final Creator<Scan> CREATOR = new Creator<Scan>() {
+            @Override
+            public Scan createFromParcel(Parcel source) {
+                return new Scan(source);
+            }
+
+            @Override
+            public Scan[] newArray(int size) {
+                return new Scan[size];
+            }
+        };
+    }
+}
@@ -26,7 +26,13 @@ public class FruitPublisherService extends Service {
     public void onCreate() {
         super.onCreate();
         mSharedMemory = new SharedMemory<>(SharedFruit.class, NUM_BUFFERS, 1000);
-        mFruitPublisher = new SharedMemoryPublisher<>(SharedFruit.class);
+        mFruitPublisher = new SharedMemoryPublisher<>(SharedFruit.class, mSharedMemory);
+    }
+
+    @Override
+    public void onDestroy() {
+        mFruitPublisher.close();
+        super.onDestroy();
     }
 
     @Override
@@ -7,14 +7,21 @@
  */
 package com.keecker.services.interfaces.utils.sharedmemory;
 
+import android.os.Parcel;
 import android.support.test.runner.AndroidJUnit4;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class SharedMemoryTest {
@@ -62,6 +69,89 @@ public class SharedMemoryTest {
         sharedMemory.destroy();
     }
 
+    @Test
+    public void testPublisherWritesInPlace() {
+        final SharedMemory<SharedMemoryBuffer> sharedMemory = new SharedMemory<>(SharedMemoryBuffer.class, 1, 1024);
+        SharedMemoryBuffer buffer = sharedMemory.dequeueBuffer();
+        ByteBuffer bytes = buffer.getBytes();
+        // Same mapping for the whole life of the buffer
+        assertSame(bytes, buffer.getBytes());
+        bytes.putInt(0, 0xcafe);
+        // As received by a subscriber
+        Parcel parcel = Parcel.obtain();
+        buffer.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        SharedMemoryBuffer received = new SharedMemoryBuffer(parcel);
+        parcel.recycle();
+        assertEquals(0xcafe, received.getBytes().getInt(0));
+        received.recycle();
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testScatterGather() {
+        final SharedMemory<SharedMemoryBuffer> sharedMemory = new SharedMemory<>(SharedMemoryBuffer.class, 1, 1024);
+        SharedMemoryBuffer buffer = sharedMemory.dequeueBuffer();
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.putInt(1).flip();
+        ByteBuffer heap = ByteBuffer.allocate(4);
+        heap.putInt(2).flip();
+        assertEquals(8, buffer.write(0, direct, heap));
+        // Sources are left unchanged
+        assertEquals(4, direct.remaining());
+        // Only a part of the buffer is rewritten
+        buffer.write(4, new byte[]{0, 0, 0, 3}, 0, 4);
+        buffer.setLength(8);
+        ByteBuffer first = ByteBuffer.allocateDirect(4);
+        ByteBuffer second = ByteBuffer.allocateDirect(16);
+        assertEquals(8, buffer.read(0, first, second));
+        assertEquals(1, first.getInt(0));
+        assertEquals(3, second.getInt(0));
+        assertEquals(4, second.position());
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testHeaderGivesThePayloadLength() {
+        final SharedMemory<SharedMemoryBuffer> sharedMemory = new SharedMemory<>(SharedMemoryBuffer.class, 1, 1024);
+        sharedMemory.setHeaderEnabled(true);
+        SharedMemoryBuffer buffer = sharedMemory.dequeueBuffer();
+        assertEquals(1024 - SharedMemoryBuffer.HEADER_SIZE, buffer.getCapacity());
+        buffer.write(0, new byte[]{42}, 0, 1);
+        buffer.setLength(1);
+        // As received by a legacy subscriber, which only gets the buffer
+        Parcel parcel = Parcel.obtain();
+        buffer.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        SharedMemoryBuffer received = new SharedMemoryBuffer(parcel);
+        parcel.recycle();
+        assertEquals(1024, received.getLength());
+        assertTrue(received.readHeader());
+        assertEquals(1, received.getLength());
+        ByteBuffer payload = received.getPayload();
+        assertEquals(1, payload.remaining());
+        assertEquals(42, payload.get(0));
+        received.recycle();
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testPrefaultedBuffersHaveNoMissingPages() {
+        final int size = 1024 * 1024;
+        final SharedMemory<SharedMemoryBuffer> lazy = new SharedMemory<>(SharedMemoryBuffer.class, 1, size);
+        assertNotNull(lazy.dequeueBuffer());
+        assertTrue(lazy.getFirstUseMissingPages() > 0);
+        assertEquals(0, lazy.getPrefaultTime().getCount());
+        lazy.destroy();
+        final SharedMemory<SharedMemoryBuffer> prefaulted = new SharedMemory<>(SharedMemoryBuffer.class, 2, size,
+                SharedMemory.ExhaustionPolicy.WAIT_FOR_RELEASE,
+                EnumSet.of(SharedMemory.PageOption.PREFAULT, SharedMemory.PageOption.HUGE_PAGES));
+        assertEquals(2, prefaulted.getPrefaultTime().getCount());
+        assertNotNull(prefaulted.dequeueBuffer());
+        assertEquals(0, prefaulted.getFirstUseMissingPages());
+        prefaulted.destroy();
+    }
+
     private void testEnqueueDequeue(final SharedMemory sharedMemory) throws InterruptedException {
         final int bufferSize = sharedMemory.getBufferSize();
         Thread consumer = new Thread(new Runnable() {
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SharedRingTest {
+
+    private static final int SLOT_COUNT = 8;
+    private static final int SLOT_SIZE = 64;
+
+    private SharedRingWriter mWriter;
+    private SharedRingReader mReader;
+    private ByteBuffer mDst;
+
+    @Before
+    public void before() {
+        mWriter = new SharedRingWriter(SLOT_COUNT, SLOT_SIZE);
+        // As received by another process
+        Parcel parcel = Parcel.obtain();
+        mWriter.getRegion().writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        SharedMemoryBuffer region = new SharedMemoryBuffer(parcel);
+        parcel.recycle();
+        mReader = new SharedRingReader(region);
+        region.recycle();
+        mDst = ByteBuffer.allocateDirect(SLOT_SIZE);
+    }
+
+    @After
+    public void after() {
+        mReader.close();
+        mWriter.close();
+    }
+
+    @Test
+    public void testReadsMessagesInOrder() {
+        assertEquals(-1, mReader.poll(mDst));
+        for (int i = 0; i < 3; i++) {
+            byte[] message = ("message " + i).getBytes();
+            mWriter.write(message, 0, message.length);
+        }
+        for (int i = 0; i < 3; i++) {
+            int length = mReader.poll(mDst);
+            byte[] message = new byte[length];
+            mDst.get(message);
+            assertEquals("message " + i, new String(message));
+        }
+        assertEquals(-1, mReader.poll(mDst));
+        assertEquals(0, mReader.getLostCount());
+    }
+
+    @Test
+    public void testSlowReaderLosesOldestMessages() {
+        ByteBuffer src = ByteBuffer.allocateDirect(4);
+        for (int i = 0; i < SLOT_COUNT + 5; i++) {
+            src.clear();
+            src.putInt(i).flip();
+            mWriter.write(src);
+        }
+        assertEquals(4, mReader.poll(mDst));
+        assertEquals(5, mDst.getInt());
+        assertEquals(5, mReader.getLostCount());
+    }
+
+    @Test
+    public void testTakeTimesOut() throws InterruptedException {
+        long start = System.nanoTime();
+        assertEquals(-1, mReader.take(mDst, 50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testTakeWaitsForTheWriter() throws InterruptedException {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {}
+                mWriter.write(new byte[]{42}, 0, 1);
+            }
+        });
+        writer.start();
+        assertEquals(1, mReader.take(mDst, 2, TimeUnit.SECONDS));
+        assertEquals(42, mDst.get());
+        writer.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMessagesLargerThanSlots() {
+        mWriter.write(new byte[SLOT_SIZE + 1], 0, SLOT_SIZE + 1);
+    }
+}
@@ -27,11 +27,11 @@ import android.os.IInterface
 import android.os.Looper
 import android.util.Log
 import kotlinx.coroutines.*
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
 import java.util.*
-import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.ContinuationInterceptor
+import kotlin.coroutines.coroutineContext
 
 /**
  * To bind to a [android.app.Service] we need to provide:
@@ -126,23 +126,43 @@ class KeeckerServiceConnection<ServiceInterface : IInterface>(
      * - Wraps an AIDL call and retries it once if it failed.
      * - Lazily binds before executing the AIDL call.
      *
+     * While the service is alive, the call only reads the cached binder: no timeout, lock or
+     * waiting is involved until the binder dies.
+     *
      * @return the result of the AIDL call, null if it failed two times
      */
     override suspend fun <T> execute(lambda: (ServiceInterface) -> T) : T? {
+        if (Looper.getMainLooper().thread == Thread.currentThread()) {
+            // Waiting for a binder in the main thread would never return since the
+            // onServiceConnected method is also called in the main thread.
+            throw IllegalStateException("This method cannot be called from Main Thread.")
+        }
         for (trial in 1 .. 2) {
-            val binder = withTimeoutOrNull(bindingTimeoutMs) { connection.getBinder() }
+            val binder = connection.getAliveBinder()
+                    ?: withTimeoutOrNull(bindingTimeoutMs) { connection.getBinder() }
             if (binder == null) {
                 // we had a timeout, the connection is most likely dead,
                 // rebind to make android try again
                 connection.unbind()
                 continue
             }
-            // Do not block the coroutine with a blocking IO call
-            return withContext(Dispatchers.IO) { execute(binder, lambda) } ?: continue
+            return executeBlocking(binder, lambda) ?: continue
         }
         return null
     }
 
+    /**
+     * Does not block the coroutine with a blocking IO call, switching to [Dispatchers.IO] unless
+     * already running there.
+     */
+    private suspend fun <T> executeBlocking(binder: ServiceInterface,
+                                            lambda: (ServiceInterface) -> T) : T? {
+        if (coroutineContext[ContinuationInterceptor] === Dispatchers.IO) {
+            return execute(binder, lambda)
+        }
+        return withContext(Dispatchers.IO) { execute(binder, lambda) }
+    }
+
     private fun <T> execute(binder: ServiceInterface, lambda: (ServiceInterface) -> T) : T? {
         try {
             return lambda.invoke(binder)
@@ -188,20 +208,32 @@ class KeeckerServiceConnection<ServiceInterface : IInterface>(
             synchronized(bound) {
                 if (bound.get()) {
                     bound.set(false)
+                    // Not used anymore by the fast path, calls will bind again
+                    binderCached = null
                     context.unbindService(this)
                 }
             }
         }
 
         /**
-         * Used to wait for [onServiceConnected] callbacks,
-         * which may never happen if something went wrong when binding.
+         * Completed by [onServiceConnected] callbacks, which may never happen if something went
+         * wrong when binding. Any number of callers suspend on it, without holding a thread,
+         * and are all resumed by the same connection. Replaced once its binder died.
          */
-        private val onConnectedEvents = LinkedBlockingQueue<ServiceInterface>()
+        private val connected = AtomicReference(CompletableDeferred<ServiceInterface>())
 
-        val binderMutex = Mutex()
+        // Binder of the last connection, read by the fast path
+        @Volatile
         private var binderCached : ServiceInterface? = null
 
+        /**
+         * @return the cached binder if it is still alive, null if a new one is needed
+         */
+        fun getAliveBinder() : ServiceInterface? {
+            val binder = binderCached
+            return if (binder?.asBinder()?.isBinderAlive == true) binder else null
+        }
+
         /**
          * Returns a binder, waiting for the [onServiceConnected] callback if not already received.
          * This suspending function may never return if something went wrong when binding, it
@@ -210,23 +242,15 @@ class KeeckerServiceConnection<ServiceInterface : IInterface>(
          * @return a binder if the connection is alive, null if the connection is dead
          */
         suspend fun getBinder() : ServiceInterface {
-            if (Looper.getMainLooper().thread == Thread.currentThread()) {
-                // Waiting for a binder in the main thread would never return since the
-                // onServiceConnected method is also called in the main thread.
-                throw IllegalStateException("This method cannot be called from Main Thread.")
-            }
             bindIfNeeded()
-            binderMutex.withLock {
-                val binder = binderCached
-                return if (binder?.asBinder()?.isBinderAlive == true) {
-                    binder
-                } else {
-                    val newBinder = withContext(Dispatchers.IO) {
-                        onConnectedEvents.take()
-                    }
-                    binderCached = newBinder
-                    newBinder
+            while (true) {
+                val current = connected.get()
+                val binder = current.await()
+                if (binder.asBinder().isBinderAlive) {
+                    return binder
                 }
+                // Waits for the next connection, unless another caller already does
+                connected.compareAndSet(current, CompletableDeferred())
             }
         }
 
@@ -252,7 +276,15 @@ class KeeckerServiceConnection<ServiceInterface : IInterface>(
                 for (callback in onServiceConnectedCallacks) {
                     execute(service, callback)
                 }
-                onConnectedEvents.put(service)
+                binderCached = service
+                // Resumes all the callers waiting for it
+                while (true) {
+                    val current = connected.get()
+                    if (current.complete(service)
+                            || connected.compareAndSet(current, CompletableDeferred(service))) {
+                        break
+                    }
+                }
             } else {
                 onNullBinding()
             }
@@ -21,21 +21,39 @@ package com.keecker.services.interfaces.navigation
 import android.content.ComponentName
 import android.content.Intent
 import android.os.IBinder
+import android.os.Parcelable
 import com.keecker.services.interfaces.ApiChecker
 import com.keecker.services.interfaces.PersistentServiceConnection
 import com.keecker.services.interfaces.ServiceBindingInfo
+import com.keecker.services.interfaces.common.utils.map.Pose
 import com.keecker.services.interfaces.utils.CompletableFutureCompat
-import com.keecker.services.interfaces.utils.IpcSubscriber
+import com.keecker.services.interfaces.utils.IIpcSubscriber
+import com.keecker.services.interfaces.utils.IpcRequestSubscriber
 import com.keecker.services.interfaces.utils.asCompletableFuture
+import com.keecker.services.interfaces.utils.ipcSubscriptionChannel
 import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.CopyOnWriteArraySet
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
 
 // TODO permission check
 
 interface MovementCoroutineClient {
 
     /**
+     * Keecker is stopped if the go to does not complete within [MovementClient.GOAL_TIMEOUT_MS]
+     * or if the call gets cancelled.
+     *
      * @param x distance in meters on the x axis (front)
      * @param y distance in meters on the y axis (left)
      * @return A boolean indicating if the go to succeeded
@@ -43,8 +61,12 @@ interface MovementCoroutineClient {
     suspend fun goToRelative(x: Double, y: Double, theta: Double): Boolean
 
     /**
-     * Set a velocity command, it needs to be updated every 100 ms to keep
-     * keecker executing it.
+     * Set a velocity command, returning without waiting for the Service.
+     *
+     * Commands given faster than the Service takes them are coalesced, only the latest one is
+     * sent. The latest command is repeated to keecker every 50 ms, for up to 150 ms after it
+     * was given by default: it needs to be updated at least every 150 ms to keep keecker
+     * executing it.
      *
      * @param linear velocity, between -0.5 and 0.5 m/s
      * @param angular velocity between -3.0 and 3.0 rd/s
@@ -52,15 +74,64 @@ interface MovementCoroutineClient {
     suspend fun setVelocity(linear: Double, angular: Double)
 
     /**
-     * Stops the current command, setting keecker in free wheel
+     * Stops the current command, setting keecker in free wheel. Velocity commands given before
+     * are dropped, or sent before the stop.
      */
     suspend fun stop()
 
     /**
      * Align to the predominant front facing plane.
-     * Can take up to 10 seconds.
+     * Can take up to 10 seconds, keecker is stopped if the call gets cancelled.
      */
     suspend fun alignToWall(): Boolean
+
+    /**
+     * Goes to a pose of the map. Keecker is stopped if the goal is not reached within
+     * [MovementClient.GLOBAL_GOAL_TIMEOUT_MS] or if the call gets cancelled.
+     *
+     * @return A boolean indicating if the goal has been reached
+     */
+    suspend fun setGlobalGoal(goal: Pose): Boolean
+
+    /**
+     * Turns on itself, keecker is stopped if the turn does not complete within
+     * [MovementClient.GOAL_TIMEOUT_MS] or if the call gets cancelled.
+     *
+     * @param angle in radians, positive to the left
+     * @param speed maximum angular speed in rd/s, NaN for the default one
+     * @return A boolean indicating if the turn succeeded
+     */
+    suspend fun turn(angle: Double, speed: Double = Double.NaN): Boolean
+
+    /**
+     * Goes back to the charging station and docks. Keecker is stopped if it is not docked
+     * within [MovementClient.CHARGING_STATION_TIMEOUT_MS] or if the call gets cancelled.
+     *
+     * @return A boolean indicating if keecker is docked
+     */
+    suspend fun goToChargingStation(): Boolean
+
+    /**
+     * @return true if keecker is going to its charging station, null if the Service is not
+     * reachable
+     */
+    suspend fun isReturningToChargingStation(): Boolean?
+
+    /**
+     * Poses of the planned path, delivered from the binder threads. Unsubscribes when the
+     * channel gets cancelled.
+     *
+     * @param capacity buffer policy, see [com.keecker.services.interfaces.utils.subscriptionChannel]
+     */
+    fun pathChannel(capacity: Int = Channel.UNLIMITED): ReceiveChannel<Pose>
+
+    /**
+     * Safe mode state changes, delivered from the binder threads. Unsubscribes when the channel
+     * gets cancelled.
+     *
+     * @param capacity buffer policy, see [com.keecker.services.interfaces.utils.subscriptionChannel]
+     */
+    fun safeModeStateChannel(capacity: Int = Channel.CONFLATED): ReceiveChannel<SafeModeState>
 }
 
 interface MovementAsyncClient {
@@ -68,16 +139,49 @@ interface MovementAsyncClient {
     fun setVelocityAsync(linear: Double, angular: Double): CompletableFutureCompat<Unit>
     fun stopAsync() : CompletableFutureCompat<Unit>
     fun alignToWallAsync(): CompletableFutureCompat<Boolean>
+    fun setGlobalGoalAsync(goal: Pose): CompletableFutureCompat<Boolean>
+    fun turnAsync(angle: Double, speed: Double): CompletableFutureCompat<Boolean>
+    fun goToChargingStationAsync(): CompletableFutureCompat<Boolean>
+    fun isReturningToChargingStationAsync(): CompletableFutureCompat<Boolean?>
 }
 
-class MovementClient(
+/**
+ * @param velocityHoldMs how long a velocity command is repeated if not updated, keecker keeps
+ * moving for that long if the caller stalls
+ */
+class MovementClient @JvmOverloads constructor(
         private val mvtPlannerConnection: PersistentServiceConnection<IMovementPlannerService>,
-        private val apiChecker: ApiChecker
+        private val apiChecker: ApiChecker,
+        private val velocityHoldMs: Long = VELOCITY_HOLD_MS
         ) :
         MovementCoroutineClient,
         MovementAsyncClient {
 
+    init {
+        mvtPlannerConnection.onServiceConnected {
+            for (subscriber in safeModeStateSubscribers) {
+                it.subscribeToSafeModeState(subscriber)
+            }
+            for (subscriber in pathSubscribers) {
+                it.subscribeToPath(subscriber)
+            }
+        }
+    }
+
     companion object {
+        /** Period at which the latest velocity command is repeated, the Service needs one every 100 ms */
+        const val VELOCITY_KEEP_ALIVE_MS = 50L
+        /** Velocity commands are no longer repeated after this delay by default, letting keecker stop */
+        const val VELOCITY_HOLD_MS = 150L
+        /** Maximum duration of a goal, keecker is stopped after it */
+        const val GOAL_TIMEOUT_MS = 120_000L
+        /** Maximum duration of [alignToWall], keecker is stopped after it */
+        const val ALIGN_TO_WALL_TIMEOUT_MS = 20_000L
+        /** Maximum duration of [setGlobalGoal], keecker is stopped after it */
+        const val GLOBAL_GOAL_TIMEOUT_MS = 600_000L
+        /** Maximum duration of [goToChargingStation], keecker is stopped after it */
+        const val CHARGING_STATION_TIMEOUT_MS = 600_000L
+
         val mvtPlannerBindingInfo = object : ServiceBindingInfo<IMovementPlannerService> {
             override fun getIntent(): Intent {
                 val intent = Intent("com.keecker.services.navigation.ACTION_BIND_MOVEMENT_PLANNER")
@@ -93,46 +197,200 @@ class MovementClient(
         }
     }
 
+    // Gives each goal in flight a status subscriber of its own
+    private val statusSubscriber = IpcRequestSubscriber()
+
+    /**
+     * Sends a goal and waits for its final status. Keecker is stopped if the goal did not
+     * complete, on timeout or cancellation.
+     */
+    private suspend fun <T : Parcelable> awaitGoal(
+            statusClass: Class<T>,
+            timeoutMs: Long,
+            isFinal: (T) -> Boolean = { true },
+            send: (IMovementPlannerService, IIpcSubscriber) -> Unit): T? {
+        var status: T? = null
+        try {
+            status = statusSubscriber.request(statusClass, timeoutMs, isFinal) { subscriber ->
+                mvtPlannerConnection.execute { send(it, subscriber) }
+            }
+            return status
+        } finally {
+            if (status == null) {
+                withContext(NonCancellable) {
+                    mvtPlannerConnection.execute { it.stopRobot() }
+                }
+            }
+        }
+    }
+
     override suspend fun goToRelative(x: Double, y: Double, theta: Double): Boolean {
-        val deffered = CompletableDeferred<Boolean>()
-        val subscriber = object : IpcSubscriber<RelativeGoToStatus>(RelativeGoToStatus::class.java, 10) {
-            override fun onNewMessage(msg: RelativeGoToStatus) {
-                deffered.complete(msg.success)
+        val status = awaitGoal(RelativeGoToStatus::class.java, GOAL_TIMEOUT_MS) { service, subscriber ->
+            service.goToRelative(x, y, theta, Double.NaN, Double.NaN, subscriber)
+        }
+        return status?.success ?: false
+    }
+
+    private class VelocityCommand(
+            val doControl: Boolean,
+            val linear: Double,
+            val angular: Double,
+            val sent: CompletableDeferred<Unit>? = null) {
+        val givenAtNs = System.nanoTime()
+    }
+
+    // Latest wins, a single coroutine sends them so that calls never queue behind each other
+    private val pendingVelocityCommand = AtomicReference<VelocityCommand?>()
+    private val velocityCommandGiven = Channel<Unit>(Channel.CONFLATED)
+
+    // Owns the velocity sender, cancelled by close()
+    private val job = Job()
+    private val scope = CoroutineScope(job)
+
+    private val velocitySender by lazy {
+        scope.launch { sendVelocityCommands() }
+    }
+
+    private suspend fun sendVelocityCommands() {
+        // Command to repeat, if any
+        var current: VelocityCommand? = null
+        while (true) {
+            if (current == null) {
+                velocityCommandGiven.receive()
+            } else {
+                withTimeoutOrNull(VELOCITY_KEEP_ALIVE_MS) { velocityCommandGiven.receive() }
+            }
+            val next = pendingVelocityCommand.getAndSet(null)
+            if (next != null) {
+                current = if (next.doControl) next else null
+                try {
+                    sendVelocityCommand(next)
+                } finally {
+                    next.sent?.complete(Unit)
+                }
+            } else if (current != null) {
+                val heldMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - current.givenAtNs)
+                if (heldMs < velocityHoldMs) {
+                    sendVelocityCommand(current)
+                } else {
+                    // Not updated by the caller, let keecker stop by itself
+                    current = null
+                }
             }
         }
-        mvtPlannerConnection.execute { it.goToRelative(x, y, theta, Double.NaN, Double.NaN, subscriber) }
-        return deffered.await()
     }
 
-    override suspend fun setVelocity(linear: Double, angular: Double) {
+    private suspend fun sendVelocityCommand(command: VelocityCommand) {
         mvtPlannerConnection.execute {
-            it.setManualCommand(true, linear / 0.5, angular / 3.0)
+            it.setManualCommand(command.doControl, command.linear / 0.5, command.angular / 3.0)
+        }
+    }
+
+    /**
+     * @return false once closed
+     */
+    private fun giveVelocityCommand(command: VelocityCommand): Boolean {
+        if (!job.isActive) {
+            return false
+        }
+        // A replaced stop is done, superseded by a newer command
+        pendingVelocityCommand.getAndSet(command)?.sent?.complete(Unit)
+        velocitySender.start()
+        velocityCommandGiven.offer(Unit)
+        if (!job.isActive) {
+            // Closed meanwhile, the sender may never take it
+            pendingVelocityCommand.getAndSet(null)?.sent?.complete(Unit)
         }
+        return true
+    }
+
+    override suspend fun setVelocity(linear: Double, angular: Double) {
+        giveVelocityCommand(VelocityCommand(true, linear, angular))
     }
 
     override suspend fun stop() {
-        mvtPlannerConnection.execute { it.setManualCommand(false, 0.0, 0.0) }
+        val command = VelocityCommand(false, 0.0, 0.0, CompletableDeferred())
+        // Through the velocity commands to be sent after them, directly once closed
+        if (giveVelocityCommand(command)) {
+            command.sent!!.await()
+        } else {
+            sendVelocityCommand(command)
+        }
+    }
+
+    /**
+     * Stops sending velocity commands, keecker stops by itself if it was moving. Velocity
+     * commands are ignored afterwards and [stop] is sent right away, the other calls can still
+     * be used.
+     */
+    fun close() {
+        job.cancel()
+        pendingVelocityCommand.getAndSet(null)?.sent?.complete(Unit)
     }
 
     override suspend fun alignToWall(): Boolean {
-        val deffered = CompletableDeferred<Boolean>()
-        val subscriber = object : IpcSubscriber<AlignToWallStatus>(AlignToWallStatus::class.java, 10) {
-            override fun onNewMessage(msg: AlignToWallStatus) {
-                deffered.complete(msg.success)
-            }
+        val status = awaitGoal(AlignToWallStatus::class.java, ALIGN_TO_WALL_TIMEOUT_MS) { service, subscriber ->
+            service.alignToWall(subscriber)
         }
-        mvtPlannerConnection.execute { it.alignToWall(subscriber) }
-        return deffered.await()
+        return status?.success ?: false
     }
 
-    override fun goToRelativeAsync(x: Double, y: Double, th: Double) : CompletableFutureCompat<Boolean> {
+    override suspend fun setGlobalGoal(goal: Pose): Boolean {
+        val status = awaitGoal(RelativeGoToStatus::class.java, GLOBAL_GOAL_TIMEOUT_MS) { service, subscriber ->
+            service.setGlobalGoal(goal, subscriber)
+        }
+        return status?.success ?: false
+    }
 
-        GlobalScope.async {
-            goToRelative(x, y, th)
-        }.invokeOnCompletion {
-            // ton callback
+    override suspend fun turn(angle: Double, speed: Double): Boolean {
+        val status = awaitGoal(RelativeGoToStatus::class.java, GOAL_TIMEOUT_MS) { service, subscriber ->
+            service.turn(angle, speed, subscriber)
+        }
+        return status?.success ?: false
+    }
+
+    override suspend fun goToChargingStation(): Boolean {
+        val status = awaitGoal(GoToChargingStationStatus::class.java, CHARGING_STATION_TIMEOUT_MS,
+                isFinal = { it == GoToChargingStationStatus.DOCKED || it == GoToChargingStationStatus.FAILED }
+        ) { service, subscriber ->
+            service.goToChargingStation(subscriber)
         }
+        return status == GoToChargingStationStatus.DOCKED
+    }
 
+    override suspend fun isReturningToChargingStation(): Boolean? {
+        return mvtPlannerConnection.execute { it.isReturningToChargingStation }
+    }
+
+    private val pathSubscribers = CopyOnWriteArraySet<IIpcSubscriber>()
+
+    override fun pathChannel(capacity: Int): ReceiveChannel<Pose> {
+        return GlobalScope.ipcSubscriptionChannel(Pose::class.java, capacity,
+                { subscriber ->
+                    mvtPlannerConnection.execute { it.subscribeToPath(subscriber) }
+                    pathSubscribers.add(subscriber)
+                },
+                { subscriber ->
+                    pathSubscribers.remove(subscriber)
+                    mvtPlannerConnection.execute { it.unsubscribeToPath(subscriber) }
+                })
+    }
+
+    private val safeModeStateSubscribers = CopyOnWriteArraySet<IIpcSubscriber>()
+
+    override fun safeModeStateChannel(capacity: Int): ReceiveChannel<SafeModeState> {
+        return GlobalScope.ipcSubscriptionChannel(SafeModeState::class.java, capacity,
+                { subscriber ->
+                    mvtPlannerConnection.execute { it.subscribeToSafeModeState(subscriber) }
+                    safeModeStateSubscribers.add(subscriber)
+                },
+                { subscriber ->
+                    safeModeStateSubscribers.remove(subscriber)
+                    mvtPlannerConnection.execute { it.unsubscribeToSafeModeState(subscriber) }
+                })
+    }
+
+    override fun goToRelativeAsync(x: Double, y: Double, th: Double) : CompletableFutureCompat<Boolean> {
         return GlobalScope.async {
             goToRelative(x, y, th)
         }.asCompletableFuture()
@@ -155,4 +413,28 @@ class MovementClient(
             alignToWall()
         }.asCompletableFuture()
     }
+
+    override fun setGlobalGoalAsync(goal: Pose): CompletableFutureCompat<Boolean> {
+        return GlobalScope.async {
+            setGlobalGoal(goal)
+        }.asCompletableFuture()
+    }
+
+    override fun turnAsync(angle: Double, speed: Double): CompletableFutureCompat<Boolean> {
+        return GlobalScope.async {
+            turn(angle, speed)
+        }.asCompletableFuture()
+    }
+
+    override fun goToChargingStationAsync(): CompletableFutureCompat<Boolean> {
+        return GlobalScope.async {
+            goToChargingStation()
+        }.asCompletableFuture()
+    }
+
+    override fun isReturningToChargingStationAsync(): CompletableFutureCompat<Boolean?> {
+        return GlobalScope.async {
+            isReturningToChargingStation()
+        }.asCompletableFuture()
+    }
  }
@@ -25,10 +25,13 @@ import com.keecker.services.interfaces.PersistentServiceConnection
 import com.keecker.services.interfaces.ServiceBindingInfo
 import com.keecker.services.interfaces.utils.CompletableFutureCompat
 import com.keecker.services.interfaces.utils.asCompletableFuture
+import com.keecker.services.interfaces.utils.subscriptionChannel
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.async
-import java.util.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import java.util.concurrent.CopyOnWriteArraySet
 
 interface PerceptionCoroutineClient {
 
@@ -39,6 +42,22 @@ interface PerceptionCoroutineClient {
     suspend fun subscribeToWallDetection(subscriber: IWallSegmentationListener)
     suspend fun unsubscribeToWallDetection(subscriber: IWallSegmentationListener)
 
+    /**
+     * Odometry updates, delivered from the binder threads. Unsubscribes when the channel
+     * gets cancelled.
+     *
+     * @param capacity buffer policy, see [subscriptionChannel]
+     */
+    fun odometryChannel(capacity: Int = Channel.CONFLATED): ReceiveChannel<Odometry>
+
+    /**
+     * Wall detection results, delivered from the binder threads. Unsubscribes when the channel
+     * gets cancelled.
+     *
+     * @param capacity buffer policy, see [subscriptionChannel]
+     */
+    fun wallDetectionChannel(capacity: Int = Channel.CONFLATED): ReceiveChannel<PlaneSegmentationResult>
+
     // TODO(cyril) check when does ot returns null
     suspend fun detectWall(): PlaneSegmentationResult?
 }
@@ -66,7 +85,12 @@ class PerceptionClient(
     init {
         mvtPerceptionConnection.onServiceConnected {
             for (subscriber in odometrySubscribers) {
-                it.unsubscribeToOdometry(subscriber)
+                it.subscribeToOdometry(subscriber)
+            }
+        }
+        perceptionConnection.onServiceConnected {
+            for (subscriber in wallDetectionSubscribers) {
+                it.subscribeToWallSegmentation(subscriber)
             }
         }
     }
@@ -100,7 +124,8 @@ class PerceptionClient(
         }
     }
 
-    private val odometrySubscribers = HashSet<IOdometryListener>()
+    // Modified from the channels producers, iterated when reconnecting
+    private val odometrySubscribers = CopyOnWriteArraySet<IOdometryListener>()
 
     override suspend fun subscribeToOdometry(listener: IOdometryListener) {
         mvtPerceptionConnection.execute { it.subscribeToOdometry(listener) }
@@ -112,7 +137,7 @@ class PerceptionClient(
         mvtPerceptionConnection.execute { it.unsubscribeToOdometry(listener) }
     }
 
-    private val wallDetectionSubscribers = HashSet<IWallSegmentationListener>()
+    private val wallDetectionSubscribers = CopyOnWriteArraySet<IWallSegmentationListener>()
 
     override suspend fun subscribeToWallDetection(subscriber: IWallSegmentationListener) {
         perceptionConnection.execute { it.subscribeToWallSegmentation(subscriber) }
@@ -124,6 +149,32 @@ class PerceptionClient(
         perceptionConnection.execute { it.unsubscribeToWallSegmentation(subscriber) }
     }
 
+    override fun odometryChannel(capacity: Int): ReceiveChannel<Odometry> {
+        return GlobalScope.subscriptionChannel<Odometry, IOdometryListener>(capacity,
+                { onMessage ->
+                    object : IOdometryListener.Stub() {
+                        override fun onUpdate(odometry: Odometry?) {
+                            odometry?.let(onMessage)
+                        }
+                    }
+                },
+                { subscribeToOdometry(it) },
+                { unsubscribeToOdometry(it) })
+    }
+
+    override fun wallDetectionChannel(capacity: Int): ReceiveChannel<PlaneSegmentationResult> {
+        return GlobalScope.subscriptionChannel<PlaneSegmentationResult, IWallSegmentationListener>(capacity,
+                { onMessage ->
+                    object : IWallSegmentationListener.Stub() {
+                        override fun onWallSegmentation(segmentationResult: PlaneSegmentationResult?) {
+                            segmentationResult?.let(onMessage)
+                        }
+                    }
+                },
+                { subscribeToWallDetection(it) },
+                { unsubscribeToWallDetection(it) })
+    }
+
     override suspend fun detectWall() : PlaneSegmentationResult? {
         val deferred = CompletableDeferred<PlaneSegmentationResult?>()
         val subscriber = object : IWallSegmentationListener.Stub() {
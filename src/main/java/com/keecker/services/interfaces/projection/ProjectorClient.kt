@@ -21,11 +21,15 @@ import android.util.Log
 import com.keecker.services.interfaces.*
 import com.keecker.services.interfaces.Constants.LOG_TAG
 import com.keecker.services.interfaces.utils.CompletableFutureCompat
+import com.keecker.services.interfaces.utils.IpcQueueType
 import com.keecker.services.interfaces.utils.IpcSubscriber
 import com.keecker.services.interfaces.utils.asCompletableFuture
+import com.keecker.services.interfaces.utils.subscriptionChannel
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.async
-import java.util.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import java.util.concurrent.CopyOnWriteArraySet
 
 /**
  * Projector client interface for Kotlin.
@@ -53,6 +57,13 @@ interface ProjectorCoroutineClient {
      * @param listener Stop to get about changes.
      */
     suspend fun unsubscribeToState(subscriber: IProjectorStateListener)
+
+    /**
+     * Projector states, unsubscribes when the channel gets cancelled.
+     *
+     * @param capacity buffer policy, see [subscriptionChannel]
+     */
+    fun stateChannel(capacity: Int = Channel.CONFLATED): ReceiveChannel<ProjectorState>
 }
 
 /**
@@ -119,11 +130,14 @@ class ProjectorClient(private val connection: PersistentServiceConnection<IProje
         }
     }
 
-    private val stateSubscribers = HashSet<IProjectorStateListener>()
+    // Iterated from the dispatcher while listeners get added from any thread
+    private val stateSubscribers = CopyOnWriteArraySet<IProjectorStateListener>()
 
     // Legacy subscriber, will be replaced by IProjectorStateListener
     // TODO(cyril) move to listener
-    private val stateSubscriber = object : IpcSubscriber<ProjectorState>(ProjectorState::class.java) {
+    // Only the latest state matters, stale ones are dropped without being unmarshalled
+    private val stateSubscriber = object : IpcSubscriber<ProjectorState>(
+            ProjectorState::class.java, 1, IpcQueueType.CONFLATED) {
         override fun onNewMessage(msg: ProjectorState?) {
             for (listener in stateSubscribers) {
                 listener.onUpdate(msg)
@@ -147,6 +161,19 @@ class ProjectorClient(private val connection: PersistentServiceConnection<IProje
         }
     }
 
+    override fun stateChannel(capacity: Int): ReceiveChannel<ProjectorState> {
+        return GlobalScope.subscriptionChannel<ProjectorState, IProjectorStateListener>(capacity,
+                { onMessage ->
+                    object : IProjectorStateListener.Stub() {
+                        override fun onUpdate(state: ProjectorState?) {
+                            state?.let(onMessage)
+                        }
+                    }
+                },
+                { subscribeToState(it) },
+                { unsubscribeToState(it) })
+    }
+
     override suspend fun setState(state: ProjectorState): Boolean {
         if (!isApiAccessible()) return false
         return connection.execute { it.setState(state) } ?: false
@@ -11,8 +11,7 @@ import java.util.concurrent.*
  */
 fun <T> Deferred<T>.asCompletableFuture(): CompletableFutureCompat<T> {
     val future = CompletableFutureCompat<T>()
-    // TODO(cyril) Handle cancelation
-    //future.whenComplete { _, exception -> cancel(exception) }
+    future.invokeOnCancel { cancel() }
     invokeOnCompletion {
         try {
             future.complete(getCompleted())
@@ -54,6 +53,15 @@ class CompletableFutureCompat<V> : Future<V> {
      * Holds the result of the computation. Takes the item from [completion] upon running and provides it as a result.
      */
     private val result = FutureTask<V> { completion.peek()!!.value }
+    /**
+     * Called once cancelled, to stop the computation.
+     */
+    @Volatile
+    private var onCancel: (() -> Unit)? = null
+
+    internal fun invokeOnCancel(handler: () -> Unit) {
+        onCancel = handler
+    }
 
     /**
      * If not already completed, causes invocations of [get]
@@ -85,6 +93,7 @@ class CompletableFutureCompat<V> : Future<V> {
         val offered = completion.offer(Result.Cancel)
         if (offered) {
             result.cancel(mayInterruptIfRunning)
+            onCancel?.invoke()
         }
         return offered
     }
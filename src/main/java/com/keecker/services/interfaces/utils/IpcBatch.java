@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Several messages of the same type sent in a single {@link IpcMessage}, see
+ * {@link IpcPublisher#setBatching(int, long)}. Messages are written one after the other, preceded
+ * by their count.
+ * @param <T> - the type of the batched messages
+ */
+class IpcBatch<T extends Parcelable> implements Parcelable {
+
+    private final List<T> mMessages;
+    // Messages already marshalled one after the other, when built by a publisher
+    private Parcel mMarshalled = null;
+    private int mCount = 0;
+
+    IpcBatch(List<T> messages) {
+        mMessages = Collections.unmodifiableList(messages);
+        mCount = messages.size();
+    }
+
+    /**
+     * Batch filled by {@link #add(Parcelable)}.
+     * @param marshalled - if true, messages are marshalled when added, so that they can be
+     *                   modified afterwards, otherwise the batch only holds references
+     */
+    IpcBatch(boolean marshalled, int capacity) {
+        if (marshalled) {
+            mMessages = Collections.emptyList();
+            mMarshalled = Parcel.obtain();
+        } else {
+            mMessages = new ArrayList<>(capacity);
+        }
+    }
+
+    void add(T message) {
+        if (mMarshalled != null) {
+            message.writeToParcel(mMarshalled, 0);
+        } else {
+            mMessages.add(message);
+        }
+        mCount++;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Releases the Parcel of a marshalled batch, it cannot be used afterwards.
+     */
+    void recycle() {
+        if (mMarshalled != null) {
+            mMarshalled.recycle();
+            mMarshalled = null;
+        }
+    }
+
+    List<T> getMessages() {
+        return mMessages;
+    }
+
+    static <T extends Parcelable> int getBatchSignature(Class<T> msgClass) {
+        return (msgClass.getCanonicalName() + "[]").hashCode();
+    }
+
+    static <T extends Parcelable> Parcelable.Creator<IpcBatch<T>> creator(
+            final Parcelable.Creator<T> messageCreator) {
+        return new Parcelable.Creator<IpcBatch<T>>() {
+            @Override
+            public IpcBatch<T> createFromParcel(Parcel in) {
+                int count = in.readInt();
+                List<T> messages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(messageCreator.createFromParcel(in));
+                }
+                return new IpcBatch<>(messages);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public IpcBatch<T>[] newArray(int size) {
+                return new IpcBatch[size];
+            }
+        };
+    }
+
+    @Override
+    public void writeToParcel(Parcel parcel, int flags) {
+        parcel.writeInt(mCount);
+        if (mMarshalled != null) {
+            parcel.appendFrom(mMarshalled, 0, mMarshalled.dataSize());
+            return;
+        }
+        for (T msg : mMessages) {
+            msg.writeToParcel(parcel, flags);
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
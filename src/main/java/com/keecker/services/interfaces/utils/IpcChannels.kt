@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils
+
+import android.os.Parcelable
+import android.util.Log
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.channels.produce
+
+/**
+ * Subscribes a listener and produces the messages it receives, until the returned channel is
+ * cancelled, then unsubscribes it.
+ *
+ * Messages are offered to the channel from the binder threads, without going through any other
+ * thread. The buffer policy is given by [capacity]:
+ * - [kotlinx.coroutines.channels.Channel.CONFLATED] only keeps the latest message
+ * - a positive capacity drops the newest messages when the consumer is late
+ * - [kotlinx.coroutines.channels.Channel.UNLIMITED] never drops messages
+ *
+ * Consuming the channel with `consumeEach` cancels it when the consumer stops or gets cancelled.
+ *
+ * The channel is hot: the listener is subscribed as soon as the channel is created, not when it
+ * is first received from, as `produce` cannot start lazily in kotlinx.coroutines 1.0. Messages
+ * arriving before the consumer starts are buffered according to [capacity], and a channel that
+ * is never consumed must be cancelled to unsubscribe.
+ *
+ * @param capacity buffer policy, see above
+ * @param createListener makes the listener, given a function to call with each message
+ * @param subscribe registers the listener to the service
+ * @param unsubscribe unregisters the listener, called even if the consumer got cancelled or
+ *                    [subscribe] failed
+ */
+@UseExperimental(ExperimentalCoroutinesApi::class)
+fun <T, Listener> CoroutineScope.subscriptionChannel(
+        capacity: Int,
+        createListener: (onMessage: (T) -> Unit) -> Listener,
+        subscribe: suspend (Listener) -> Unit,
+        unsubscribe: suspend (Listener) -> Unit): ReceiveChannel<T> = produce(capacity = capacity) {
+    val listener = createListener { msg -> channel.offerIfOpen(msg) }
+    try {
+        // In the try, the subscription may have gone through when cancelled or failing
+        subscribe(listener)
+        // Messages are sent by the listener, wait for the consumer to cancel
+        suspendCancellableCoroutine<Unit> { }
+    } finally {
+        withContext(NonCancellable) {
+            unsubscribe(listener)
+        }
+    }
+}
+
+/**
+ * [IIpcSubscriber] unmarshalling messages in the binder thread that received them and offering
+ * them to a channel. Unlike [IpcSubscriber], no thread or queue of its own is involved.
+ */
+class IpcChannelSubscriber<T : Parcelable>(
+        private val messageClass: Class<T>,
+        private val onMessage: (T) -> Unit) : IIpcSubscriber.Stub() {
+
+    @Suppress("UNCHECKED_CAST")
+    private val parcelableCreator = try {
+        messageClass.getField("CREATOR").get(null) as Parcelable.Creator<T>
+    } catch (e: NoSuchFieldException) {
+        throw UnsupportedOperationException("Parcelables are expected to have a CREATOR field")
+    }
+    private val batchCreator = IpcBatch.creator(parcelableCreator)
+
+    override fun onNewMessage(message: IpcMessage) {
+        // A message published from the same process is shared with the other subscribers,
+        // read a copy of it
+        val msg = if (message.hasBeenContructedWithAParcel()) message else message.makeLocalCopy()
+        try {
+            if (msg.signature == IpcMessage.getClassSignature(messageClass)) {
+                onMessage(msg.getPayload(parcelableCreator))
+            } else if (msg.signature == IpcBatch.getBatchSignature(messageClass)) {
+                msg.getPayload(batchCreator).messages.forEach(onMessage)
+            } else {
+                Log.e(TAG, "Message not dispatched, class mismatch")
+            }
+        } finally {
+            msg.recycle()
+        }
+    }
+
+    companion object {
+        private val TAG = IpcChannelSubscriber::class.java.simpleName
+    }
+}
+
+/**
+ * Same as [subscriptionChannel] for services publishing with an [IpcPublisher].
+ */
+fun <T : Parcelable> CoroutineScope.ipcSubscriptionChannel(
+        messageClass: Class<T>,
+        capacity: Int,
+        subscribe: suspend (IIpcSubscriber) -> Unit,
+        unsubscribe: suspend (IIpcSubscriber) -> Unit): ReceiveChannel<T> {
+    return subscriptionChannel<T, IIpcSubscriber>(capacity,
+            { onMessage -> IpcChannelSubscriber(messageClass, onMessage) },
+            { subscribe(it) },
+            { unsubscribe(it) })
+}
+
+/**
+ * Messages may still arrive in binder threads once the consumer cancelled the channel,
+ * they are dropped.
+ */
+private fun <T> SendChannel<T>.offerIfOpen(msg: T) {
+    try {
+        offer(msg)
+    } catch (e: Exception) {
+        // Closed or cancelled channel
+    }
+}
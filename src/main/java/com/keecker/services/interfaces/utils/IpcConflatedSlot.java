@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link IpcMessageQueue} keeping only the latest message in a single atomically swapped slot.
+ *
+ * A message pushed while the previous one has not been taken yet replaces it, the superseded
+ * message is handed to {@link IpcHandlerThread.Delegate#onMessageDiscarded} without having been
+ * handled. The consumer is only woken up by the first message of a burst.
+ */
+class IpcConflatedSlot<T> implements IpcMessageQueue<T> {
+
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+    // The consumer, when parked waiting for a message
+    private volatile Thread mWaiter = null;
+
+    @Override
+    public int push(T msg, IpcHandlerThread.Delegate<T> delegate) {
+        T superseded = mSlot.getAndSet(msg);
+        if (superseded != null) {
+            // The consumer has already been woken up for the superseded message
+            delegate.onMessageDiscarded(superseded);
+            return 1;
+        }
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return 0;
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        T msg = poll();
+        if (msg != null) {
+            return msg;
+        }
+        mWaiter = Thread.currentThread();
+        try {
+            while ((msg = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            mWaiter = null;
+        }
+        return msg;
+    }
+
+    @Override
+    public T poll() {
+        return mSlot.getAndSet(null);
+    }
+
+    @Override
+    public int size() {
+        return mSlot.get() != null ? 1 : 0;
+    }
+
+    @Override
+    public Queue<T> drain() {
+        Queue<T> remaining = new ArrayDeque<>(1);
+        T msg = poll();
+        if (msg != null) {
+            remaining.add(msg);
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which threads handle the messages received by subscribers.
+ *
+ * By default subscribers share the few threads of {@link #getDefault()}: each of them gets a
+ * mailbox, handled by one thread of the pool at a time, so messages stay in order. Subscribers
+ * handling messages for a long time, or needing the lowest latency, can use
+ * {@link #dedicatedThread()} to get an {@link IpcHandlerThread} of their own.
+ */
+public class IpcDispatcher {
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final IpcDispatcher sDedicatedThread = new IpcDispatcher();
+    private static volatile IpcDispatcher sDefault = null;
+    private static volatile ScheduledThreadPoolExecutor sTimer = null;
+
+    // Null when using dedicated threads
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Dispatcher sharing a pool of threads between its subscribers.
+     * Idle threads are stopped after a while.
+     * @param name - used to name the threads
+     * @param numThreads - the maximum number of threads
+     */
+    public IpcDispatcher(final String name, int numThreads) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("Wrong number of threads " + numThreads);
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(numThreads, numThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new PoolThread(IpcDispatcher.this, r,
+                                name + "-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private IpcDispatcher() {
+        mExecutor = null;
+    }
+
+    /**
+     * Thread of a pool, knowing its dispatcher.
+     */
+    private static final class PoolThread extends Thread {
+        final IpcDispatcher mDispatcher;
+
+        PoolThread(IpcDispatcher dispatcher, Runnable target, String name) {
+            super(target, name);
+            mDispatcher = dispatcher;
+        }
+    }
+
+    /**
+     * @return true if called from one of the threads running the tasks of this executor
+     */
+    static boolean isPoolThread(Executor executor) {
+        Thread thread = Thread.currentThread();
+        return thread instanceof PoolThread && ((PoolThread) thread).mDispatcher.mExecutor == executor;
+    }
+
+    /**
+     * @return the dispatcher shared by subscribers by default
+     */
+    public static IpcDispatcher getDefault() {
+        if (sDefault == null) {
+            synchronized (IpcDispatcher.class) {
+                if (sDefault == null) {
+                    int numThreads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+                    sDefault = new IpcDispatcher("IpcDispatcher", numThreads);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * Runs a short task after a delay, on a single thread shared by all the publishers and
+     * subscribers of this process.
+     * @param task - the task, should not block
+     * @param delayMs - delay in milliseconds
+     */
+    public static void schedule(Runnable task, long delayMs) {
+        if (sTimer == null) {
+            synchronized (IpcDispatcher.class) {
+                if (sTimer == null) {
+                    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "IpcDispatcher-timer");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                    timer.setRemoveOnCancelPolicy(true);
+                    sTimer = timer;
+                }
+            }
+        }
+        sTimer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task on a thread of this dispatcher, or of the default one when using dedicated
+     * threads.
+     */
+    void execute(Runnable task) {
+        if (mExecutor == null) {
+            getDefault().execute(task);
+            return;
+        }
+        mExecutor.execute(task);
+    }
+
+    /**
+     * @return a dispatcher starting a new thread for each subscriber
+     */
+    public static IpcDispatcher dedicatedThread() {
+        return sDedicatedThread;
+    }
+
+    /**
+     * Stops the threads of this dispatcher once the messages already scheduled are handled.
+     * Its message loops must have been quit before, nothing is handled afterwards.
+     * Has no effect on {@link #dedicatedThread()}, whose threads stop with their loop.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Creates a message loop handling messages on this dispatcher, already started.
+     * @param msgClass - the type of message
+     * @param queueSize - the queue size
+     * @param queueType - the queue implementation
+     * @param delegate - the delegate that will receive events
+     * @param subscriberName - the name of this subscriber, can be null
+     */
+    public <T> IpcMessageLoop<T> start(Class<T> msgClass, int queueSize, IpcQueueType queueType,
+                                       IpcHandlerThread.Delegate<T> delegate, String subscriberName) {
+        if (mExecutor == null) {
+            IpcHandlerThread<T> thread = new IpcHandlerThread<>(msgClass, queueSize, queueType,
+                    delegate, subscriberName);
+            thread.start();
+            return thread;
+        }
+        return new IpcMailbox<>(mExecutor, queueType.<T>create(queueSize), delegate);
+    }
+}
@@ -5,10 +5,7 @@
  */
 package com.keecker.services.interfaces.utils;
 
-import android.util.Log;
-
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Thread with a fixed size message queue that notifies a delegate whenever a new message is available.
@@ -16,9 +13,7 @@ import java.util.concurrent.LinkedBlockingQueue;
  * the queue.
  * @param <T> - the message type this queue deals with
  */
-public class IpcHandlerThread<T> extends Thread {
-
-    private static final String TAG = IpcHandlerThread.class.getSimpleName();
+public class IpcHandlerThread<T> extends Thread implements IpcMessageLoop<T> {
 
     /**
      * Callbacks when messages are available or discarded
@@ -44,43 +39,43 @@ public class IpcHandlerThread<T> extends Thread {
         void onThreadExit(Queue<T> remainingMsg);
     }
 
-    private final int mQueueSize;
-    private final LinkedBlockingQueue<T> mQueue = new LinkedBlockingQueue<>();
+    private final IpcMessageQueue<T> mQueue;
     private final Delegate<T> mDelegate;
-    private final MessageStats mMessageStats = new MessageStats();
-    private final String mSubscriberName;
-    private final String mClassName;
 
     /**
      * Constructs a new handler thread, does not start it!
      * @param msgClass - the type of message
      * @param queueSize - the queue size
      * @param delegate - the delegate that will receive events
-     * @param subscriberName - the name of this subscriber, can be null
+     * @param subscriberName - the name of this subscriber, used to name the thread, can be null
      */
     public IpcHandlerThread(Class<T> msgClass, int queueSize, Delegate<T> delegate, String subscriberName) {
-        mClassName = msgClass.getSimpleName();
-        this.setName("IpcSub: " + mClassName);
-        mQueueSize = queueSize;
-        mDelegate = delegate;
-        mSubscriberName = subscriberName;
+        this(msgClass, queueSize, IpcQueueType.LINKED, delegate, subscriberName);
     }
 
     /**
-     * Enqueue a new message
-     * @param msg - the message to enqueue
+     * Constructs a new handler thread, does not start it!
+     * @param msgClass - the type of message
+     * @param queueSize - the queue size
+     * @param queueType - the queue implementation
+     * @param delegate - the delegate that will receive events
+     * @param subscriberName - the name of this subscriber, used to name the thread, can be null
      */
+    public IpcHandlerThread(Class<T> msgClass, int queueSize, IpcQueueType queueType,
+                            Delegate<T> delegate, String subscriberName) {
+        if (subscriberName != null) {
+            setName("IpcSub: " + subscriberName + " " + msgClass.getSimpleName());
+        } else {
+            setName("IpcSub: " + msgClass.getSimpleName());
+        }
+        mQueue = queueType.create(queueSize);
+        mDelegate = delegate;
+    }
+
+    @Override
     public void queue(T msg) {
         if (!isInterrupted()) {
-            if (mQueue.size() == mQueueSize) {
-                T discarded = mQueue.poll();
-                if (discarded != null) {
-                    mMessageStats.numDropped++;
-                    mDelegate.onMessageDiscarded(discarded);
-                }
-            }
-            mQueue.add(msg);
-            mMessageStats.numReceived++;
+            mQueue.push(msg, mDelegate);
         }
     }
 
@@ -90,43 +85,24 @@ public class IpcHandlerThread<T> extends Thread {
             T msg = null;
             try {
                 msg = mQueue.take(); // Blocks until something arrives
-                if (mSubscriberName != null) {
-                    mMessageStats.printLog();
-                }
                 mDelegate.onNewMessage(msg);
             } catch (InterruptedException e) {
                 break;
             }
         }
-        mDelegate.onThreadExit(mQueue);
+        mDelegate.onThreadExit(mQueue.drain());
     }
 
-    /**
-     * Returns the number of messages in the queue
-     * @return
-     */
-    int getQueueSize() {
-        return mQueue.size();
+    @Override
+    public void quit() throws InterruptedException {
+        interrupt();
+        if (Thread.currentThread() != this) {
+            join();
+        }
     }
 
-    /**
-     * A class to print the number of message dropped by this thread
-     */
-    private class MessageStats {
-        long numReceived = 0L;
-        long numDropped = 0L;
-        long lastTimePrinted = -1L;
-
-        void printLog() {
-            long now = System.nanoTime();
-            // Log every 30 seconds
-            if (now - lastTimePrinted > 30E9) {
-                Log.d(TAG, String.format("%s dropped %s %d / %d (%.1f %%) ",
-                        IpcHandlerThread.this.mSubscriberName, IpcHandlerThread.this.mClassName,
-                        numDropped, numReceived,
-                        ((float) numDropped / (float) numReceived) * 100.0));
-                lastTimePrinted = now;
-            }
-        }
+    @Override
+    public int getQueueSize() {
+        return mQueue.size();
     }
 }
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * {@link IpcMessageQueue} backed by a bounded {@link LinkedBlockingQueue}.
+ */
+class IpcLinkedQueue<T> implements IpcMessageQueue<T> {
+
+    private final LinkedBlockingQueue<T> mQueue;
+
+    IpcLinkedQueue(int capacity) {
+        mQueue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public int push(T msg, IpcHandlerThread.Delegate<T> delegate) {
+        int discardedCount = 0;
+        while (!mQueue.offer(msg)) {
+            T discarded = mQueue.poll();
+            if (discarded != null) {
+                discardedCount++;
+                delegate.onMessageDiscarded(discarded);
+            }
+        }
+        return discardedCount;
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        return mQueue.take();
+    }
+
+    @Override
+    public T poll() {
+        return mQueue.poll();
+    }
+
+    @Override
+    public int size() {
+        return mQueue.size();
+    }
+
+    @Override
+    public Queue<T> drain() {
+        Queue<T> remaining = new ArrayDeque<>(mQueue.size());
+        mQueue.drainTo(remaining);
+        return remaining;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link IpcMessageLoop} without a thread of its own. When messages are available, the mailbox
+ * schedules itself on the executor of its {@link IpcDispatcher} and handles them. It is never
+ * scheduled twice at the same time, so messages are handled serially, in order.
+ *
+ * After a batch of messages, the mailbox goes back to the end of the executor queue to let other
+ * mailboxes sharing the same threads run.
+ * @param <T> - the message type this mailbox deals with
+ */
+class IpcMailbox<T> implements IpcMessageLoop<T>, Runnable {
+
+    // Maximum number of messages handled before letting other mailboxes run
+    private static final int BATCH_SIZE = 16;
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int CLOSED = 2;
+
+    private final Executor mExecutor;
+    private final IpcMessageQueue<T> mQueue;
+    private final IpcHandlerThread.Delegate<T> mDelegate;
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private volatile boolean mClosing = false;
+    // Thread currently handling the messages, if any
+    private volatile Thread mRunningThread = null;
+
+    IpcMailbox(Executor executor, IpcMessageQueue<T> queue, IpcHandlerThread.Delegate<T> delegate) {
+        mExecutor = executor;
+        mQueue = queue;
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void queue(T msg) {
+        if (mClosing) {
+            mDelegate.onMessageDiscarded(msg);
+            return;
+        }
+        mQueue.push(msg, mDelegate);
+        if (mState.compareAndSet(IDLE, SCHEDULED)) {
+            mExecutor.execute(this);
+        } else if (mState.get() == CLOSED) {
+            // Closed while pushing, nobody will handle this message
+            discardRemaining();
+        }
+    }
+
+    @Override
+    public void run() {
+        mRunningThread = Thread.currentThread();
+        try {
+            for (int i = 0; i < BATCH_SIZE && !mClosing; i++) {
+                T msg = mQueue.poll();
+                if (msg == null) {
+                    break;
+                }
+                mDelegate.onNewMessage(msg);
+            }
+        } finally {
+            mRunningThread = null;
+            if (mClosing) {
+                // We own the SCHEDULED state, no one else can close
+                mState.set(CLOSED);
+                onClosed();
+            } else {
+                mState.set(IDLE);
+                // Messages may have been pushed after our last poll, their producer saw us
+                // SCHEDULED and did not schedule
+                if (mClosing) {
+                    if (mState.compareAndSet(IDLE, CLOSED)) {
+                        onClosed();
+                    }
+                } else if (mQueue.size() > 0 && mState.compareAndSet(IDLE, SCHEDULED)) {
+                    mExecutor.execute(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the message being handled, if any. Called from a thread of the same dispatcher
+     * while no message is handled, it returns right away and the mailbox closes when its
+     * pending run starts.
+     */
+    @Override
+    public void quit() throws InterruptedException {
+        mClosing = true;
+        if (mState.compareAndSet(IDLE, CLOSED)) {
+            onClosed();
+            return;
+        }
+        if (mRunningThread == Thread.currentThread()) {
+            // Stopped while handling a message, run() closes when returning
+            return;
+        }
+        if (mRunningThread == null && IpcDispatcher.isPoolThread(mExecutor)) {
+            // Scheduled but not running, waiting could hold the very thread its run needs.
+            // A run starting now sees mClosing and handles nothing before closing.
+            return;
+        }
+        synchronized (this) {
+            while (mState.get() != CLOSED) {
+                wait();
+            }
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    private void onClosed() {
+        mDelegate.onThreadExit(mQueue.drain());
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void discardRemaining() {
+        T msg;
+        while ((msg = mQueue.poll()) != null) {
+            mDelegate.onMessageDiscarded(msg);
+        }
+    }
+}
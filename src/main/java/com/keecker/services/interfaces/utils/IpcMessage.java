@@ -10,6 +10,8 @@ package com.keecker.services.interfaces.utils;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class should not be manipulated directly (use IpcPublisher/IpcSubscriber).
  *
@@ -24,14 +26,29 @@ import android.os.Parcelable;
  * use reflection on each received message (when using setClassLoader). In our case we can directly
  * provide the message CREATOR.
  *
+ * Messages built by a publisher marshal their payload when published, so that the publisher can
+ * modify the object afterwards, unless it is declared immutable. It is then only marshalled when
+ * sent to another process.
+ * Subscribers in the same process receive the IpcMessage object itself, they copy it with
+ * {@link #makeLocalCopy()}, which only holds a reference to the payload if the publisher
+ * declared it immutable.
+ *
  * This class is only needed because we want an AIDL interface for the subscriber.
  * We could avoid it and all the complicated Parcel copy and recyling by using a Binder object
  * see git review 2983 (Change-Id: I1e05fbdf336abdabd47c0140b5039c632882ecc5)
  */
 public class IpcMessage implements Parcelable {
     private Parcel mMessageParcel = null;
+    // Message built in this process, marshalled only when sent to another process
+    private Parcelable mPayload = null;
+    // The payload is immutable and can be given as is to subscribers of this process
+    private final boolean mSharedLocally;
     private final int mSignature;
     private final boolean mHasBeenContructedWithAParcel;
+    // Owners of this message, the last one to recycle it releases the Parcel
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    // When a subscriber received it, see IpcMetrics
+    private long mReceivedAtNs = 0;
 
     public static final Parcelable.Creator<IpcMessage> CREATOR = new Parcelable.Creator<IpcMessage>() {
         public IpcMessage createFromParcel(Parcel in) {
@@ -48,6 +65,22 @@ public class IpcMessage implements Parcelable {
         payload.writeToParcel(mMessageParcel, 0);
         mMessageParcel.setDataPosition(0);
         mSignature = signature;
+        mSharedLocally = false;
+        mHasBeenContructedWithAParcel = false;
+    }
+
+    /**
+     * Message marshalled only if it has to be sent to another process.
+     * The payload must not be modified until the message is recycled.
+     * @param payload - the message content
+     * @param signature - see {@link #getClassSignature(Class)}
+     * @param sharedLocally - if true, subscribers of this process get the payload itself instead
+     *                        of a copy, it must then never be modified
+     */
+    public IpcMessage(Parcelable payload, int signature, boolean sharedLocally) {
+        mPayload = payload;
+        mSignature = signature;
+        mSharedLocally = sharedLocally;
         mHasBeenContructedWithAParcel = false;
     }
 
@@ -64,6 +97,7 @@ public class IpcMessage implements Parcelable {
         mMessageParcel.setDataPosition(0);
         mMessageParcel.appendFrom(parcel, offset, length);
         mMessageParcel.setDataPosition(0);
+        mSharedLocally = false;
         mHasBeenContructedWithAParcel = true;
     }
 
@@ -85,18 +119,70 @@ public class IpcMessage implements Parcelable {
         }
     }
 
+    /**
+     * @return A message to be queued by a subscriber of this process, surviving the recycling
+     * of this one. It holds the same payload if shared locally, a marshalled copy otherwise.
+     */
+    public IpcMessage makeLocalCopy() {
+        if (mSharedLocally) {
+            return new IpcMessage(mPayload, mSignature, true);
+        }
+        return makeWithAParcel();
+    }
+
+    /**
+     * Adds an owner to this message, that will also have to call {@link #recycle()}.
+     */
+    void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    /**
+     * Marshals the payload now, the message then no longer depends on the payload object
+     * which can be modified by the publisher.
+     */
+    void marshall() {
+        marshallPayloadIfNeeded();
+    }
+
+    // Synchronized as asynchronous publishers send the same message from several threads
+    private synchronized void marshallPayloadIfNeeded() {
+        if (mMessageParcel == null) {
+            // Shared by all the remote subscribers, marshalled once
+            mMessageParcel = Parcel.obtain();
+            mPayload.writeToParcel(mMessageParcel, 0);
+            mMessageParcel.setDataPosition(0);
+        }
+    }
+
     @Override
     public void writeToParcel(Parcel parcel, int i) {
+        marshallPayloadIfNeeded();
         int length = mMessageParcel.dataSize();
         parcel.writeInt(length);
         parcel.writeInt(mSignature);
         parcel.appendFrom(mMessageParcel, 0, length);
     }
 
+    @SuppressWarnings("unchecked")
     public <T extends Parcelable> T getPayload(Parcelable.Creator<T> parcelableCreator) {
+        if (mSharedLocally) {
+            return (T) mPayload;
+        }
+        marshallPayloadIfNeeded();
         return parcelableCreator.createFromParcel(mMessageParcel);
     }
 
+    /** @hide */
+    public void setReceivedAt(long timeNs) {
+        mReceivedAtNs = timeNs;
+    }
+
+    /** @hide */
+    public long getReceivedAt() {
+        return mReceivedAtNs;
+    }
+
     public int getSignature() {
         return mSignature;
     }
@@ -105,11 +191,17 @@ public class IpcMessage implements Parcelable {
         return msgClass.getCanonicalName().hashCode();
     }
 
-    // Recycles the Parcel we obtained when no longer needed
+    // Recycles the Parcel we obtained when no longer needed by any owner
     // IpcMessage cannot be used after calling recycle
     public void recycle() {
-        mMessageParcel.recycle();
-        mMessageParcel = null;
+        if (mRefCount.decrementAndGet() > 0) {
+            return;
+        }
+        if (mMessageParcel != null) {
+            mMessageParcel.recycle();
+            mMessageParcel = null;
+        }
+        mPayload = null;
     }
 
     @Override
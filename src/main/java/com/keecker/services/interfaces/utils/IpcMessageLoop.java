@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+/**
+ * Queues messages and hands them one at a time, in order, to an {@link IpcHandlerThread.Delegate}.
+ * Created by an {@link IpcDispatcher}.
+ * @param <T> - the message type this loop deals with
+ */
+public interface IpcMessageLoop<T> {
+
+    /**
+     * Enqueue a new message
+     * @param msg - the message to enqueue
+     */
+    void queue(T msg);
+
+    /**
+     * Stops handling messages, remaining ones are given to
+     * {@link IpcHandlerThread.Delegate#onThreadExit}. Waits for the message being handled, unless
+     * called while handling a message.
+     */
+    void quit() throws InterruptedException;
+
+    /**
+     * @return the number of messages waiting to be handled
+     */
+    int getQueueSize();
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import java.util.Queue;
+
+/**
+ * Fixed size queue used by {@link IpcHandlerThread}. Messages can be pushed from any thread, but
+ * only one thread is expected to take them out.
+ * @param <T> - the message type this queue deals with
+ */
+interface IpcMessageQueue<T> {
+
+    /**
+     * Enqueues a message, discarding the oldest ones if the queue is full.
+     * @param msg - the message to enqueue
+     * @param delegate - notified of each discarded message
+     * @return the number of discarded messages
+     */
+    int push(T msg, IpcHandlerThread.Delegate<T> delegate);
+
+    /**
+     * Retrieves and removes the oldest message, waiting for one if needed.
+     * Must only be called by the consumer thread.
+     */
+    T take() throws InterruptedException;
+
+    /**
+     * Retrieves and removes the oldest message.
+     * @return a message or null if the queue is empty
+     */
+    T poll();
+
+    /**
+     * @return the number of messages in the queue
+     */
+    int size();
+
+    /**
+     * Removes all the messages from this queue.
+     * @return the removed messages, the oldest first
+     */
+    Queue<T> drain();
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings of a publisher or a subscriber, updated from any thread.
+ * Metrics of all the living publishers and subscribers of the process are listed by
+ * {@link #getAll()}.
+ *
+ * For subscribers:
+ * - messages: received from the binder
+ * - dropped: discarded because the queue was full
+ * - handled: given to the user callback
+ * - queue latency: from reception to the start of handling
+ * - unmarshal time: making the message object
+ * - handler time: spent in the user callback
+ *
+ * For publishers, messages are the published ones, dropped the messages discarded by the
+ * outbound queues of asynchronous publishers, handler time the time spent in
+ * {@link IpcPublisher#publish(android.os.Parcelable)}.
+ */
+public class IpcMetrics {
+
+    /**
+     * Gives the current number of messages waiting to be handled
+     */
+    public interface QueueDepth {
+        int get();
+    }
+
+    // Weak keys, metrics of garbage collected publishers disappear
+    private static final Map<IpcMetrics, Boolean> sRegistry =
+            Collections.synchronizedMap(new WeakHashMap<IpcMetrics, Boolean>());
+
+    private final String mName;
+    private final QueueDepth mQueueDepth;
+    private final AtomicLong mMessagesCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mHandledCount = new AtomicLong();
+    private final IpcHistogram mQueueLatency = new IpcHistogram();
+    private final IpcHistogram mUnmarshalTime = new IpcHistogram();
+    private final IpcHistogram mHandlerTime = new IpcHistogram();
+    private final long mCreationTimeNs = System.nanoTime();
+
+    /** @hide
+     * Created by publishers and subscribers, see their getMetrics() method.
+     */
+    public IpcMetrics(String name, QueueDepth queueDepth) {
+        mName = name;
+        mQueueDepth = queueDepth;
+    }
+
+    /**
+     * @return the metrics of the publishers and subscribers currently alive
+     */
+    public static List<IpcMetrics> getAll() {
+        synchronized (sRegistry) {
+            return new ArrayList<>(sRegistry.keySet());
+        }
+    }
+
+    /** @hide */
+    public void register() {
+        sRegistry.put(this, Boolean.TRUE);
+    }
+
+    /** @hide */
+    public void unregister() {
+        sRegistry.remove(this);
+    }
+
+    /** @hide */
+    public void onMessage() {
+        mMessagesCount.incrementAndGet();
+    }
+
+    /** @hide */
+    public void onDropped() {
+        mDroppedCount.incrementAndGet();
+    }
+
+    /** @hide */
+    public void onHandled(long queuedAtNs, long dequeuedAtNs, long unmarshalledAtNs, long handledAtNs) {
+        mHandledCount.incrementAndGet();
+        mQueueLatency.record(dequeuedAtNs - queuedAtNs);
+        mUnmarshalTime.record(unmarshalledAtNs - dequeuedAtNs);
+        mHandlerTime.record(handledAtNs - unmarshalledAtNs);
+    }
+
+    /** @hide */
+    public void onPublished(long startNs, long endNs) {
+        mHandledCount.incrementAndGet();
+        mHandlerTime.record(endNs - startNs);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getMessagesCount() {
+        return mMessagesCount.get();
+    }
+
+    /**
+     * @return messages per second since the creation of the publisher or subscriber
+     */
+    public double getMessagesRate() {
+        double elapsedS = (System.nanoTime() - mCreationTimeNs) / 1E9;
+        return elapsedS <= 0 ? 0 : mMessagesCount.get() / elapsedS;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getHandledCount() {
+        return mHandledCount.get();
+    }
+
+    /**
+     * @return messages currently waiting, for publishers the deepest outbound queue
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public IpcHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    public IpcHistogram getUnmarshalTime() {
+        return mUnmarshalTime;
+    }
+
+    public IpcHistogram getHandlerTime() {
+        return mHandlerTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d messages (%.1f/s), %d dropped, %d handled, %d queued, "
+                        + "queue latency [%s], unmarshal [%s], handler [%s]",
+                mName, getMessagesCount(), getMessagesRate(), getDroppedCount(),
+                getHandledCount(), getQueueDepth(), mQueueLatency, mUnmarshalTime, mHandlerTime);
+    }
+}
@@ -15,12 +15,18 @@ import android.util.Log;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 
 
 /** @hide
  * Sends messages to remote subscribers via their binder interface IIpcSubscriber.
  * Methods of IpcPublisher are thread safe.
+ *
+ * By default messages are sent to each subscriber in turn, in the publishing thread. When given
+ * an {@link IpcDispatcher}, the publisher marshals each message once and queues it for each
+ * subscriber, a slow or dead subscriber then only delays its own messages.
  */
 public class IpcPublisher<T extends Parcelable> {
     private static final String TAG = IpcPublisher.class.getSimpleName();
@@ -30,18 +36,121 @@ public class IpcPublisher<T extends Parcelable> {
      * We have to do this comparison with the associated IBinder
      */
     private final ConcurrentHashMap<IBinder, IIpcSubscriber> mSubscribers = new ConcurrentHashMap<>();
+    // Used instead of mSubscribers when delivering asynchronously
+    private final ConcurrentHashMap<IBinder, Outbound> mOutbounds = new ConcurrentHashMap<>();
+    // Subscribers receiving batches of messages
+    private final ConcurrentHashMap<IBinder, IIpcSubscriber> mBatchSubscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<IBinder, Outbound> mBatchOutbounds = new ConcurrentHashMap<>();
     private final int mSignature;
+    private final int mBatchSignature;
     private final String mClassName;
+    private final boolean mSharedLocally;
+    // Null when delivering in the publishing thread
+    private final IpcDispatcher mDispatcher;
+    private final int mQueueSize;
+    private final IpcQueueType mQueueType;
+    // Batching disabled when 0
+    private int mMaxBatchSize = 0;
+    private long mMaxBatchDelayMs = 0;
+    // Messages waiting to be sent to batch subscribers, guarded by this
+    private IpcBatch<T> mPendingBatch = null;
+    private final IpcMetrics mMetrics;
 
     public void add(IIpcSubscriber subscriberInterface) {
-        mSubscribers.put(subscriberInterface.asBinder(), subscriberInterface);
+        add(subscriberInterface, mQueueSize, mQueueType);
+    }
+
+    /**
+     * Adds a subscriber with its own outbound queue, when delivering asynchronously.
+     * @param subscriberInterface - the subscriber
+     * @param queueSize - number of messages waiting to be sent before discarding the oldest
+     * @param queueType - the queue implementation, {@link IpcQueueType#CONFLATED} to only send
+     *                    the latest message to a slow subscriber
+     */
+    public void add(IIpcSubscriber subscriberInterface, int queueSize, IpcQueueType queueType) {
+        add(subscriberInterface, queueSize, queueType, mSubscribers, mOutbounds);
+    }
+
+    /**
+     * Adds a subscriber receiving the messages in batches, see {@link #setBatching(int, long)}.
+     * Only {@link IpcSubscriber} and subscribers built from the same version of this library
+     * understand batches.
+     */
+    public void addBatched(IIpcSubscriber subscriberInterface) {
+        addBatched(subscriberInterface, mQueueSize, mQueueType);
+    }
+
+    /**
+     * Same as {@link #addBatched(IIpcSubscriber)}, queue settings are the ones of
+     * {@link #add(IIpcSubscriber, int, IpcQueueType)}, applying to batches.
+     */
+    public void addBatched(IIpcSubscriber subscriberInterface, int queueSize, IpcQueueType queueType) {
+        synchronized (this) {
+            if (mMaxBatchSize == 0) {
+                throw new IllegalStateException("Batching is not enabled on " + mClassName);
+            }
+        }
+        add(subscriberInterface, queueSize, queueType, mBatchSubscribers, mBatchOutbounds);
+    }
+
+    private void add(IIpcSubscriber subscriberInterface, int queueSize, IpcQueueType queueType,
+                     ConcurrentHashMap<IBinder, IIpcSubscriber> subscribers,
+                     ConcurrentHashMap<IBinder, Outbound> outbounds) {
+        IBinder binder = subscriberInterface.asBinder();
+        if (mDispatcher == null) {
+            subscribers.put(binder, subscriberInterface);
+            return;
+        }
+        Outbound outbound = new Outbound(subscriberInterface, queueSize, queueType, outbounds);
+        try {
+            binder.linkToDeath(outbound, 0);
+        } catch (RemoteException e) {
+            // Already dead
+            outbound.close();
+            return;
+        }
+        Outbound previous = outbounds.put(binder, outbound);
+        if (previous != null) {
+            previous.close();
+        }
     }
 
     public void remove(IIpcSubscriber subscriberInterface) {
-        mSubscribers.remove(subscriberInterface.asBinder());
+        IBinder binder = subscriberInterface.asBinder();
+        mSubscribers.remove(binder);
+        mBatchSubscribers.remove(binder);
+        Outbound outbound = mOutbounds.remove(binder);
+        if (outbound != null) {
+            outbound.close();
+        }
+        outbound = mBatchOutbounds.remove(binder);
+        if (outbound != null) {
+            outbound.close();
+        }
     }
 
-    public int getSubscribersCount() { return mSubscribers.size(); }
+    public int getSubscribersCount() {
+        return mSubscribers.size() + mOutbounds.size()
+                + mBatchSubscribers.size() + mBatchOutbounds.size();
+    }
+
+    /**
+     * Packs the messages sent to subscribers added with {@link #addBatched(IIpcSubscriber)}, one
+     * binder transaction then carries several messages. A batch is sent when full, or when its
+     * first message has been waiting for too long. Batches sent on timeout are sent from a thread
+     * of the publisher dispatcher, or of {@link IpcDispatcher#getDefault()} for a synchronous
+     * publisher.
+     * @param maxBatchSize - maximum number of messages in a batch
+     * @param maxDelayMs - maximum time a message waits for the batch to be full
+     */
+    public synchronized void setBatching(int maxBatchSize, long maxDelayMs) {
+        if (maxBatchSize <= 0 || maxDelayMs < 0) {
+            throw new IllegalArgumentException("Wrong batching parameters " + maxBatchSize
+                    + ", " + maxDelayMs + "ms");
+        }
+        mMaxBatchSize = maxBatchSize;
+        mMaxBatchDelayMs = maxDelayMs;
+    }
 
     synchronized public void publish(T object) {
         if (object == null) {
@@ -54,8 +163,84 @@ public class IpcPublisher<T extends Parcelable> {
                     object.getClass().getName(), mClassName));
             return;
         }
-        IpcMessage msg = new IpcMessage(object, mSignature);
-        Iterator<Map.Entry<IBinder, IIpcSubscriber>> i = mSubscribers.entrySet().iterator();
+        long start = System.nanoTime();
+        mMetrics.onMessage();
+        if (!mSubscribers.isEmpty() || !mOutbounds.isEmpty()) {
+            deliver(new IpcMessage(object, mSignature, mSharedLocally), mSubscribers, mOutbounds);
+        }
+        if (mMaxBatchSize > 0 && (!mBatchSubscribers.isEmpty() || !mBatchOutbounds.isEmpty())) {
+            addToBatch(object);
+        }
+        mMetrics.onPublished(start, System.nanoTime());
+    }
+
+    public IpcMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private int getDeepestQueueSize() {
+        int depth = 0;
+        for (Outbound outbound : mOutbounds.values()) {
+            depth = Math.max(depth, outbound.mLoop.getQueueSize());
+        }
+        for (Outbound outbound : mBatchOutbounds.values()) {
+            depth = Math.max(depth, outbound.mLoop.getQueueSize());
+        }
+        return depth;
+    }
+
+    private void addToBatch(T object) {
+        if (mPendingBatch == null) {
+            final IpcBatch<T> batch = new IpcBatch<>(!mSharedLocally, mMaxBatchSize);
+            mPendingBatch = batch;
+            final IpcDispatcher dispatcher =
+                    mDispatcher != null ? mDispatcher : IpcDispatcher.getDefault();
+            final Runnable flush = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (IpcPublisher.this) {
+                        // Unless already sent because full
+                        if (mPendingBatch == batch) {
+                            flushBatch();
+                        }
+                    }
+                }
+            };
+            // The timer thread is shared by the whole process, it must not call subscribers
+            IpcDispatcher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatcher.execute(flush);
+                }
+            }, mMaxBatchDelayMs);
+        }
+        // Marshalled now unless shared locally, the object may be modified once published
+        mPendingBatch.add(object);
+        if (mPendingBatch.size() >= mMaxBatchSize) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        IpcBatch<T> batch = mPendingBatch;
+        mPendingBatch = null;
+        deliver(new IpcMessage(batch, mBatchSignature, mSharedLocally),
+                mBatchSubscribers, mBatchOutbounds);
+        batch.recycle();
+    }
+
+    private void deliver(IpcMessage msg, ConcurrentHashMap<IBinder, IIpcSubscriber> subscribers,
+                         ConcurrentHashMap<IBinder, Outbound> outbounds) {
+        if (!mSharedLocally) {
+            // Snapshot of the object as published, it may be modified as soon as we return
+            // while the outbound queues send it later. Only immutable payloads stay lazy.
+            msg.marshall();
+        }
+        for (Outbound outbound : outbounds.values()) {
+            msg.retain();
+            outbound.mLoop.queue(msg);
+        }
+        Iterator<Map.Entry<IBinder, IIpcSubscriber>> i = subscribers.entrySet().iterator();
         while (i.hasNext()) {
             try {
                 i.next().getValue().onNewMessage(msg);
@@ -71,15 +256,117 @@ public class IpcPublisher<T extends Parcelable> {
     }
 
     public IpcPublisher(Class<T> messageClass) {
+        this(messageClass, false);
+    }
+
+    /**
+     * @param messageClass - the type of message
+     * @param sharedLocally - if true, subscribers living in this process receive the published
+     *                        objects themselves, without any copy. Published objects must then
+     *                        never be modified.
+     */
+    public IpcPublisher(Class<T> messageClass, boolean sharedLocally) {
+        this(messageClass, sharedLocally, null, 0, IpcQueueType.LINKED);
+    }
+
+    /**
+     * @param messageClass - the type of message
+     * @param sharedLocally - see {@link #IpcPublisher(Class, boolean)}
+     * @param dispatcher - sends the messages to the subscribers, null to send them in the
+     *                     publishing thread
+     * @param queueSize - default number of messages waiting to be sent to a subscriber before
+     *                    discarding the oldest
+     * @param queueType - default queue implementation for each subscriber
+     */
+    public IpcPublisher(Class<T> messageClass, boolean sharedLocally, IpcDispatcher dispatcher,
+                        int queueSize, IpcQueueType queueType) {
         mSignature = IpcMessage.getClassSignature(messageClass);
+        mBatchSignature = IpcBatch.getBatchSignature(messageClass);
         mClassName = messageClass.getName();
+        mSharedLocally = sharedLocally;
+        mDispatcher = dispatcher;
+        mQueueSize = queueSize;
+        mQueueType = queueType;
+        mMetrics = new IpcMetrics("IpcPublisher " + messageClass.getSimpleName(),
+                new IpcMetrics.QueueDepth() {
+            @Override
+            public int get() {
+                return getDeepestQueueSize();
+            }
+        });
+        mMetrics.register();
+    }
+
+    /**
+     * Queue of the messages waiting to be sent to a subscriber. Evicts the subscriber when its
+     * process dies.
+     */
+    private class Outbound implements IpcHandlerThread.Delegate<IpcMessage>, IBinder.DeathRecipient {
+        private final IIpcSubscriber mSubscriber;
+        private final IpcMessageLoop<IpcMessage> mLoop;
+        // The map this outbound belongs to
+        private final ConcurrentHashMap<IBinder, Outbound> mOutbounds;
+
+        Outbound(IIpcSubscriber subscriber, int queueSize, IpcQueueType queueType,
+                 ConcurrentHashMap<IBinder, Outbound> outbounds) {
+            mSubscriber = subscriber;
+            mOutbounds = outbounds;
+            mLoop = mDispatcher.start(IpcMessage.class, queueSize, queueType, this, null);
+        }
+
+        @Override
+        public void onNewMessage(IpcMessage msg) {
+            try {
+                mSubscriber.onNewMessage(msg);
+            } catch (DeadObjectException e) {
+                Log.e(TAG, "Dead process", e);
+                binderDied();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Remote exception : ", e);
+            } finally {
+                msg.recycle();
+            }
+        }
+
+        @Override
+        public void onMessageDiscarded(IpcMessage msg) {
+            mMetrics.onDropped();
+            msg.recycle();
+        }
+
+        @Override
+        public void onThreadExit(Queue<IpcMessage> remainingMsg) {
+            for (IpcMessage msg : remainingMsg) {
+                msg.recycle();
+            }
+        }
+
+        @Override
+        public void binderDied() {
+            if (mOutbounds.remove(mSubscriber.asBinder(), this)) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                mSubscriber.asBinder().unlinkToDeath(this, 0);
+            } catch (NoSuchElementException e) {
+                // Never linked, the subscriber was already dead
+            }
+            try {
+                mLoop.quit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     // Helper to publish something to the given subscriber
     public static <T extends Parcelable>
     void publish(IIpcSubscriber subscriber, Class<T> messageClass, T object) throws RemoteException {
         int signature = IpcMessage.getClassSignature(messageClass);
-        IpcMessage msg = new IpcMessage(object, signature);
+        IpcMessage msg = new IpcMessage(object, signature, false);
         try {
             if (subscriber != null) {
                 subscriber.onNewMessage(msg);
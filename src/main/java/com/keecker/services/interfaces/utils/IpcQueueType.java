@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+/**
+ * Queue implementations a subscriber can use to stack the messages waiting to be handled.
+ * All of them have a fixed size and discard the oldest message when a new one arrives while full.
+ */
+public enum IpcQueueType {
+    /**
+     * Linked list based queue, allocates a node and takes a lock for each message.
+     */
+    LINKED,
+
+    /**
+     * Pre-allocated lock-free ring buffer, does not allocate when queuing messages.
+     * Preferred for high rate topics.
+     */
+    RING_BUFFER,
+
+    /**
+     * Keeps only the latest message, whatever the queue size. Superseded messages are discarded
+     * before being unmarshalled. Intended for state-like topics where only the current value
+     * matters.
+     */
+    CONFLATED;
+
+    <T> IpcMessageQueue<T> create(int capacity) {
+        switch (this) {
+            case RING_BUFFER:
+                return new IpcRingBuffer<>(capacity);
+            case CONFLATED:
+                return new IpcConflatedSlot<>();
+            case LINKED:
+            default:
+                return new IpcLinkedQueue<>(capacity);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils
+
+import android.os.Parcelable
+import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Gives each request of a service answering it with status messages an [IIpcSubscriber] of its
+ * own, taken from a small pool, instead of an [IpcSubscriber] and its thread per request.
+ *
+ * Statuses are unmarshalled in the binder thread that received them, like with
+ * [IpcChannelSubscriber]. They carry no request id, they are routed by the subscriber the
+ * service answers to: concurrent requests expecting the same status class cannot take each
+ * other's status. A subscriber goes back to the pool once its request completes. The subscriber
+ * of a request that timed out or got cancelled once sent is retired instead, until its late final
+ * status arrives or for up to [retiredTimeoutMs], so that it never answers another request.
+ *
+ * @param retiredTimeoutMs how long the late status of an abandoned request is waited for
+ */
+class IpcRequestSubscriber @JvmOverloads constructor(
+        private val retiredTimeoutMs: Long = RETIRED_TIMEOUT_MS) {
+
+    private class PendingRequest<T : Parcelable>(
+            val signature: Int,
+            private val creator: Parcelable.Creator<T>,
+            private val isFinal: (T) -> Boolean) {
+        val status = CompletableDeferred<T>()
+
+        /**
+         * @return true if the request is complete
+         */
+        fun offer(message: IpcMessage): Boolean {
+            val payload = message.getPayload(creator)
+            if (!isFinal(payload)) {
+                return false
+            }
+            status.complete(payload)
+            return true
+        }
+    }
+
+    private inner class RequestStub : IIpcSubscriber.Stub() {
+        // Guarded by the pool
+        var request: PendingRequest<*>? = null
+        var isRetired = false
+        var retiredDeadlineNs = 0L
+
+        override fun onNewMessage(message: IpcMessage) {
+            onStatus(this, message)
+        }
+    }
+
+    // Subscribers ready for a new request, guarded by itself as the other fields below
+    private val pool = ArrayDeque<RequestStub>()
+    private val retired = ArrayList<RequestStub>()
+    private var inFlight = 0
+    private val creators = ConcurrentHashMap<Class<*>, Parcelable.Creator<*>>()
+
+    /**
+     * Sends a request and waits for its status.
+     *
+     * @param statusClass class of the status answering the request
+     * @param timeoutMs maximum time to wait for the final status
+     * @param isFinal tells if a status completes the request, the others are progress updates
+     * @param send sends the request with the given subscriber, returns null if it could not be sent
+     * @return the final status, null if the request could not be sent or on timeout
+     */
+    suspend fun <T : Parcelable> request(
+            statusClass: Class<T>,
+            timeoutMs: Long,
+            isFinal: (T) -> Boolean = { true },
+            send: suspend (IIpcSubscriber) -> Unit?): T? {
+        val request = PendingRequest(IpcMessage.getClassSignature(statusClass),
+                creatorOf(statusClass), isFinal)
+        // Given the request before sending it, the status may come before the request returns
+        val stub = synchronized(pool) {
+            removeExpiredStubs()
+            inFlight++
+            (pool.pollFirst() ?: RequestStub()).also { it.request = request }
+        }
+        // Unless known not sent, the service may still answer
+        var sent = true
+        try {
+            if (send(stub) == null) {
+                sent = false
+                return null
+            }
+            return withTimeoutOrNull(timeoutMs) { request.status.await() }
+        } finally {
+            synchronized(pool) {
+                inFlight--
+                if (sent && !request.status.isCompleted) {
+                    stub.isRetired = true
+                    stub.retiredDeadlineNs = System.nanoTime() +
+                            TimeUnit.MILLISECONDS.toNanos(retiredTimeoutMs)
+                    retired.add(stub)
+                } else {
+                    release(stub)
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of requests waiting for their status.
+     */
+    val pendingCount: Int
+        get() = synchronized(pool) { inFlight }
+
+    /**
+     * Number of abandoned requests whose late status is still expected.
+     */
+    val retiredCount: Int
+        get() = synchronized(pool) {
+            removeExpiredStubs()
+            retired.size
+        }
+
+    private fun onStatus(stub: RequestStub, message: IpcMessage) {
+        // A message published from the same process is shared with the other subscribers,
+        // read a copy of it
+        val msg = if (message.hasBeenContructedWithAParcel()) message else message.makeLocalCopy()
+        try {
+            // Offered with the lock held for the statuses of a request to be taken in order
+            val delivered = synchronized(pool) {
+                removeExpiredStubs()
+                val request = stub.request
+                if (request == null || request.signature != msg.signature) {
+                    false
+                } else {
+                    if (request.offer(msg)) {
+                        // Complete, its later statuses are dropped
+                        stub.request = null
+                        // Nobody waits for the late status of a retired stub, it is done with it
+                        if (stub.isRetired) {
+                            retired.remove(stub)
+                            release(stub)
+                        }
+                    }
+                    true
+                }
+            }
+            if (!delivered) {
+                Log.w(TAG, "Status dropped, no pending request expecting it")
+            }
+        } finally {
+            msg.recycle()
+        }
+    }
+
+    private fun release(stub: RequestStub) {
+        stub.request = null
+        stub.isRetired = false
+        if (pool.size < MAX_POOLED_STUBS) {
+            pool.addFirst(stub)
+        }
+    }
+
+    private fun removeExpiredStubs() {
+        val now = System.nanoTime()
+        val iterator = retired.iterator()
+        while (iterator.hasNext()) {
+            val stub = iterator.next()
+            if (stub.retiredDeadlineNs - now <= 0) {
+                iterator.remove()
+                // Never reused, the service may still answer it
+                stub.request = null
+            }
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T : Parcelable> creatorOf(statusClass: Class<T>): Parcelable.Creator<T> {
+        return creators.getOrPut(statusClass) {
+            try {
+                statusClass.getField("CREATOR").get(null) as Parcelable.Creator<*>
+            } catch (e: NoSuchFieldException) {
+                throw UnsupportedOperationException("Parcelables are expected to have a CREATOR field")
+            }
+        } as Parcelable.Creator<T>
+    }
+
+    companion object {
+        /** Default time given to an abandoned request for its late status */
+        const val RETIRED_TIMEOUT_MS = 10_000L
+
+        // Subscribers kept for the next requests, more are only needed by concurrent requests
+        private const val MAX_POOLED_STUBS = 4
+
+        private val TAG = IpcRequestSubscriber::class.java.simpleName
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free {@link IpcMessageQueue} backed by pre-allocated arrays, nothing is allocated when
+ * pushing or taking messages.
+ *
+ * Slots are claimed with sequence numbers, as in Dmitry Vyukov's bounded MPMC queue. One more slot
+ * than the capacity is allocated so that a slot ready to be read can always be told apart from a
+ * slot ready for the next lap, even with a capacity of one.
+ * When the ring is full, the producer takes the oldest message out itself before retrying,
+ * so a message is always either handled by the consumer or discarded, never both.
+ *
+ * Only one thread is expected to call {@link #take()}, it parks when the ring is empty and gets
+ * unparked by producers.
+ */
+class IpcRingBuffer<T> implements IpcMessageQueue<T> {
+
+    private final int mCapacity;
+    private final int mSlotsCount;
+    private final Object[] mMessages;
+    // Sequence expected in each slot, tells if the slot is ready to be written or read
+    private final AtomicLongArray mSequences;
+    // Position of the next slot to write
+    private final AtomicLong mTail = new AtomicLong();
+    // Position of the next slot to read
+    private final AtomicLong mHead = new AtomicLong();
+    // The consumer, when parked waiting for a message
+    private volatile Thread mWaiter = null;
+
+    IpcRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ring buffer capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mSlotsCount = capacity + 1;
+        mMessages = new Object[mSlotsCount];
+        mSequences = new AtomicLongArray(mSlotsCount);
+        for (int i = 0; i < mSlotsCount; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    @Override
+    public int push(T msg, IpcHandlerThread.Delegate<T> delegate) {
+        int discardedCount = 0;
+        while (!offer(msg)) {
+            // Full, overwrite the oldest message
+            T discarded = poll();
+            if (discarded != null) {
+                discardedCount++;
+                delegate.onMessageDiscarded(discarded);
+            }
+        }
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return discardedCount;
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        T msg = poll();
+        if (msg != null) {
+            return msg;
+        }
+        mWaiter = Thread.currentThread();
+        try {
+            // Checking again after publishing the waiter, a producer that did not see it
+            // has already made its message visible
+            while ((msg = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            mWaiter = null;
+        }
+        return msg;
+    }
+
+    boolean offer(T msg) {
+        long pos = mTail.get();
+        int index;
+        while (true) {
+            // The head only moves forward, if there is room now there will be when claiming
+            if (pos - mHead.get() >= mCapacity) {
+                return false;
+            }
+            index = (int) (pos % mSlotsCount);
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            }
+            // Either another producer claimed this slot, or the consumer is still releasing it
+            pos = mTail.get();
+        }
+        mMessages[index] = msg;
+        // Publishes the message to the readers
+        mSequences.set(index, pos + 1);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long pos = mHead.get();
+        int index;
+        while (true) {
+            index = (int) (pos % mSlotsCount);
+            long diff = mSequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = mHead.get();
+            } else if (diff < 0) {
+                // Nothing written there yet, or a producer is still writing it
+                return null;
+            } else {
+                pos = mHead.get();
+            }
+        }
+        T msg = (T) mMessages[index];
+        mMessages[index] = null;
+        // Gives the slot back to the writers for the next lap
+        mSequences.set(index, pos + mSlotsCount);
+        return msg;
+    }
+
+    @Override
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    @Override
+    public Queue<T> drain() {
+        Queue<T> remaining = new ArrayDeque<>(mSlotsCount);
+        T msg;
+        while ((msg = poll()) != null) {
+            remaining.add(msg);
+        }
+        return remaining;
+    }
+}
@@ -11,15 +11,16 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import java.lang.reflect.Field;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
- * Implements the AIDL interface used remotely by publishers. One thread is started for each
- * subscriber to dispatch the messages. When a publisher sends a message, it is received and queued
- * to be handled in the thread. If messages are not handled fast enough, the queue will discard
- * oldest messages.
+ * Implements the AIDL interface used remotely by publishers. When a publisher sends a message, it
+ * is received and queued to be handled by the subscriber's {@link IpcDispatcher}, by default a
+ * few threads shared by all subscribers. If messages are not handled fast enough, the queue will
+ * discard oldest messages.
  *
  * The user can choose to provide an IpcMessageHandler or directly override the
  * onNewMessage method.
@@ -31,10 +32,35 @@ public class IpcSubscriber<T extends Parcelable>
 
     private static final String TAG = IpcSubscriber.class.getSimpleName();
 
-    private final IpcHandlerThread<IpcMessage> mHandlerThread;
+    private final IpcMessageLoop<IpcMessage> mMessageLoop;
     private final Parcelable.Creator<T> mParcelableCreator;
+    private final Parcelable.Creator<IpcBatch<T>> mBatchCreator;
+    private final IpcMetrics mMetrics;
 
     public IpcSubscriber(final Class<T> messageClass, int queueSize) {
+        this(messageClass, queueSize, IpcQueueType.LINKED);
+    }
+
+    /**
+     * @param messageClass - the type of message
+     * @param queueSize - number of messages stacked before discarding the oldest
+     * @param queueType - the queue implementation, prefer {@link IpcQueueType#RING_BUFFER} for
+     *                    high rate topics and {@link IpcQueueType#CONFLATED} for state-like
+     *                    topics, in which case queueSize is ignored
+     */
+    public IpcSubscriber(final Class<T> messageClass, int queueSize, IpcQueueType queueType) {
+        this(messageClass, queueSize, queueType, IpcDispatcher.getDefault());
+    }
+
+    /**
+     * @param messageClass - the type of message
+     * @param queueSize - number of messages stacked before discarding the oldest
+     * @param queueType - the queue implementation
+     * @param dispatcher - where messages are handled, {@link IpcDispatcher#dedicatedThread()} for
+     *                     subscribers spending a long time handling messages
+     */
+    public IpcSubscriber(final Class<T> messageClass, int queueSize, IpcQueueType queueType,
+                         IpcDispatcher dispatcher) {
         Field f;
         try {
             f = messageClass.getField("CREATOR");
@@ -46,12 +72,31 @@ public class IpcSubscriber<T extends Parcelable>
         } catch (IllegalAccessException e) {
             throw new UnsupportedOperationException("Unable to get parcelable CREATOR");
         }
-        mHandlerThread = new IpcHandlerThread<>(IpcMessage.class, queueSize,
+        mBatchCreator = IpcBatch.creator(mParcelableCreator);
+        mMetrics = new IpcMetrics("IpcSubscriber " + messageClass.getSimpleName(),
+                new IpcMetrics.QueueDepth() {
+            @Override
+            public int get() {
+                return getStackedMessagesCount();
+            }
+        });
+        mMessageLoop = dispatcher.start(IpcMessage.class, queueSize, queueType,
                 new IpcHandlerThread.Delegate<IpcMessage>() {
             @Override
             public void onNewMessage(IpcMessage msg) {
+                long dequeuedAt = System.nanoTime();
                 if (msg.getSignature() == IpcMessage.getClassSignature(messageClass)) {
-                    IpcSubscriber.this.onNewMessage(msg.getPayload(mParcelableCreator));
+                    T payload = msg.getPayload(mParcelableCreator);
+                    long unmarshalledAt = System.nanoTime();
+                    IpcSubscriber.this.onNewMessage(payload);
+                    mMetrics.onHandled(msg.getReceivedAt(), dequeuedAt, unmarshalledAt,
+                            System.nanoTime());
+                } else if (msg.getSignature() == IpcBatch.getBatchSignature(messageClass)) {
+                    List<T> payloads = msg.getPayload(mBatchCreator).getMessages();
+                    long unmarshalledAt = System.nanoTime();
+                    IpcSubscriber.this.onNewMessages(payloads);
+                    mMetrics.onHandled(msg.getReceivedAt(), dequeuedAt, unmarshalledAt,
+                            System.nanoTime());
                 } else {
                     Log.e(TAG, "Message not dispatched, class mismatch");
                 }
@@ -60,6 +105,7 @@ public class IpcSubscriber<T extends Parcelable>
 
             @Override
             public void onMessageDiscarded(IpcMessage msg) {
+                mMetrics.onDropped();
                 msg.recycle();
             }
 
@@ -70,7 +116,7 @@ public class IpcSubscriber<T extends Parcelable>
                 }
             }
         }, null);
-        mHandlerThread.start();
+        mMetrics.register();
         sActiveSubscribers.add(this);
     }
 
@@ -84,9 +130,11 @@ public class IpcSubscriber<T extends Parcelable>
             // If the message have been published from the same process, it may be recycled
             // before being handled by the handler thread. To avoid this, we queue a copy of the
             // message.
-            msg = msg.makeWithAParcel();
+            msg = msg.makeLocalCopy();
         }
-        mHandlerThread.queue(msg);
+        msg.setReceivedAt(System.nanoTime());
+        mMetrics.onMessage();
+        mMessageLoop.queue(msg);
     }
 
     @Override
@@ -94,14 +142,30 @@ public class IpcSubscriber<T extends Parcelable>
         // Can be overrided instead of constructing with a IpcMessageHandler
     }
 
+    /**
+     * Called with the messages of a batch, when subscribed with
+     * {@link IpcPublisher#addBatched(IIpcSubscriber)}. Calls {@link #onNewMessage(Parcelable)}
+     * for each message, can be overridden to handle the whole batch at once.
+     * @param msgs - the messages, oldest first
+     */
+    public void onNewMessages(List<T> msgs) {
+        for (T msg : msgs) {
+            onNewMessage(msg);
+        }
+    }
+
     public void stop() throws InterruptedException {
-        mHandlerThread.interrupt();
-        mHandlerThread.join();
+        mMessageLoop.quit();
+        mMetrics.unregister();
         sActiveSubscribers.remove(this);
     }
 
     public int getStackedMessagesCount() {
-        return mHandlerThread.getQueueSize();
+        return mMessageLoop.getQueueSize();
+    }
+
+    public IpcMetrics getMetrics() {
+        return mMetrics;
     }
 
     private final static CopyOnWriteArrayList<IpcSubscriber> sActiveSubscribers = new CopyOnWriteArrayList<>();
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import java.util.Arrays;
+
+/**
+ * Maps buffer ids or file descriptors to buffer indices, without boxing.
+ *
+ * Open addressing with linear probing. Filled when the {@link SharedMemory} is built and only
+ * read afterwards, so lookups need no synchronization.
+ */
+class BufferIdMap {
+
+    private static final int NO_INDEX = -1;
+
+    private final long[] mKeys;
+    private final int[] mIndices;
+    private final int mMask;
+
+    BufferIdMap(int expectedSize) {
+        // At most half full to keep the probe sequences short
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+        mKeys = new long[capacity];
+        mIndices = new int[capacity];
+        Arrays.fill(mIndices, NO_INDEX);
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Maps the key to the index, unless it is already mapped.
+     */
+    void put(long key, int index) {
+        int slot = slotOf(key);
+        while (mIndices[slot] != NO_INDEX) {
+            if (mKeys[slot] == key) {
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mIndices[slot] = index;
+    }
+
+    /**
+     * @return the index mapped to the key, or -1 if none
+     */
+    int get(long key) {
+        int slot = slotOf(key);
+        while (mIndices[slot] != NO_INDEX) {
+            if (mKeys[slot] == key) {
+                return mIndices[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NO_INDEX;
+    }
+
+    private int slotOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+}
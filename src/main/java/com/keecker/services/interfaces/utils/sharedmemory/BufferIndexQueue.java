@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free FIFO of buffer indices, the free-list of {@link SharedMemory}.
+ *
+ * Bounded multi-producer multi-consumer queue using sequence numbers, as in Dmitry Vyukov's
+ * bounded MPMC queue, with one more slot than the capacity as in
+ * {@link com.keecker.services.interfaces.utils.IpcQueueType#RING_BUFFER}. Each index is expected
+ * to be in the queue at most once, so it never holds more than its capacity.
+ */
+class BufferIndexQueue {
+
+    private final int mCapacity;
+    private final int mSlotsCount;
+    private final int[] mIndices;
+    // Sequence expected in each slot, tells if the slot is ready to be written or read
+    private final AtomicLongArray mSequences;
+    // Position of the next slot to write
+    private final AtomicLong mTail = new AtomicLong();
+    // Position of the next slot to read
+    private final AtomicLong mHead = new AtomicLong();
+
+    BufferIndexQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mSlotsCount = capacity + 1;
+        mIndices = new int[mSlotsCount];
+        mSequences = new AtomicLongArray(mSlotsCount);
+        for (int i = 0; i < mSlotsCount; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean offer(int index) {
+        long pos = mTail.get();
+        int slot;
+        while (true) {
+            // The head only moves forward, if there is room now there will be when claiming
+            if (pos - mHead.get() >= mCapacity) {
+                return false;
+            }
+            slot = (int) (pos % mSlotsCount);
+            if (mSequences.get(slot) == pos && mTail.compareAndSet(pos, pos + 1)) {
+                break;
+            }
+            // Either another producer claimed this slot, or a consumer is still releasing it
+            pos = mTail.get();
+        }
+        mIndices[slot] = index;
+        // Publishes the index to the readers
+        mSequences.set(slot, pos + 1);
+        return true;
+    }
+
+    /**
+     * @return the oldest index, or -1 if the queue is empty
+     */
+    int poll() {
+        long pos = mHead.get();
+        int slot;
+        while (true) {
+            slot = (int) (pos % mSlotsCount);
+            long diff = mSequences.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = mHead.get();
+            } else if (diff < 0) {
+                // Nothing written there yet, or a producer is still writing it
+                return -1;
+            } else {
+                pos = mHead.get();
+            }
+        }
+        int index = mIndices[slot];
+        // Gives the slot back to the writers for the next lap
+        mSequences.set(slot, pos + mSlotsCount);
+        return index;
+    }
+
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+}
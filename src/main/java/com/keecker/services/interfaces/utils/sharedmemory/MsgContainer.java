@@ -5,18 +5,49 @@
  */
 package com.keecker.services.interfaces.utils.sharedmemory;
 
+import android.os.IBinder;
+import android.os.RemoteException;
+
 import com.keecker.services.interfaces.utils.IpcMessage;
 
 class MsgContainer {
     final IpcMessage ipcMessage;
     final ISharedBufferCallbacks callback;
+    // Identifies the publisher among the subscriber mappings
+    final IBinder publisher;
+    // Sequence of a frame of a shared pool, -1 for a buffer sent with its file descriptor
+    final long frameSequence;
+    final long bufferId;
 
     MsgContainer(IpcMessage ipcMessage, ISharedBufferCallbacks callback) {
+        this(ipcMessage, callback, callback.asBinder(), -1, -1);
+    }
+
+    MsgContainer(IpcMessage ipcMessage, ISharedBufferCallbacks callback, IBinder publisher,
+                 long bufferId, long frameSequence) {
         this.ipcMessage = ipcMessage;
         this.callback = callback;
+        this.publisher = publisher;
+        this.bufferId = bufferId;
+        this.frameSequence = frameSequence;
     }
 
     int getSignature() {
         return ipcMessage.getSignature();
     }
+
+    /**
+     * Gives the buffer back to the publisher without handling it.
+     */
+    void release() {
+        try {
+            if (frameSequence >= 0) {
+                callback.doneWithFrame(bufferId, frameSequence);
+            } else {
+                callback.doneWithBuffer();
+            }
+        } catch (RemoteException e) {
+            // Ignored, nothing we can do here
+        }
+    }
 }
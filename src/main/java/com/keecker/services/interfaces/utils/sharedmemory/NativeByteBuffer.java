@@ -8,10 +8,25 @@
 package com.keecker.services.interfaces.utils.sharedmemory;
 
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 
 /** @hide */
 public class NativeByteBuffer {
 
+    /**
+     * Flag of {@link #adoptWritable(int, int, int)} faulting all the pages in right away
+     */
+    public static final int PREFAULT = 1;
+    /**
+     * Flag of {@link #adoptWritable(int, int, int)} locking the pages in memory
+     */
+    public static final int LOCK = 2;
+    /**
+     * Flag of {@link #adoptWritable(int, int, int)} asking for transparent huge pages, only
+     * granted when the kernel enables them for shared memory
+     */
+    public static final int HUGE_PAGES = 4;
+
     static {
         System.loadLibrary("sharedmemory");
     }
@@ -23,6 +38,11 @@ public class NativeByteBuffer {
      * @return a ByteBuffer or null on error
      */
     private static native ByteBuffer fdToByteBuffer(int fd, int size);
+    /**
+     * Same as {@link #fdToByteBuffer(int, int)}, mapped for writing too
+     * @param flags - {@link #PREFAULT}, {@link #LOCK}, {@link #HUGE_PAGES} or 0
+     */
+    private static native ByteBuffer fdToWritableByteBuffer(int fd, int size, int flags);
     /**
      * Returns 0 on success, -1 on failure
      * @param buffer
@@ -34,10 +54,158 @@ public class NativeByteBuffer {
      * Copy a java byte array to a native file descriptor, assuming there is enough space of course
      * @param bytes
      * @param fd
+     * @deprecated maps the file descriptor on each call, write to
+     * {@link SharedMemoryBuffer#getBytes()} instead
      */
+    @Deprecated
     public static native void copyByteArrayToFd(byte[] bytes, int fd);
 
+    /**
+     * Copies slices of direct buffers one after the other into a direct buffer
+     */
+    private static native void gatherBuffers(ByteBuffer dst, int dstOffset, ByteBuffer[] srcs,
+                                             int[] srcOffsets, int[] lengths);
+    /**
+     * Copies consecutive bytes of a direct buffer into slices of direct buffers
+     */
+    private static native void scatterBuffers(ByteBuffer src, int srcOffset, ByteBuffer[] dsts,
+                                              int[] dstOffsets, int[] lengths);
+    private static native void copyFromArray(ByteBuffer dst, int dstOffset, byte[] src,
+                                             int srcOffset, int length);
+    private static native void copyToArray(ByteBuffer src, int srcOffset, byte[] dst,
+                                           int dstOffset, int length);
+
+    /**
+     * Copies buffers one after the other into a direct buffer, each from its position to its
+     * limit, leaving them unchanged. Direct buffers are all copied by a single native call.
+     * @param dst - direct buffer, its position and limit are ignored
+     * @param offset - where to write the first byte in dst
+     * @return the offset following the last byte written
+     */
+    public static int gather(ByteBuffer dst, int offset, ByteBuffer... srcs) {
+        checkDirect(dst);
+        int total = 0;
+        boolean allDirect = true;
+        for (ByteBuffer src : srcs) {
+            total += src.remaining();
+            allDirect &= src.isDirect();
+        }
+        checkRange(dst, offset, total);
+        if (allDirect) {
+            int[] offsets = new int[srcs.length];
+            int[] lengths = new int[srcs.length];
+            for (int i = 0; i < srcs.length; i++) {
+                offsets[i] = srcs[i].position();
+                lengths[i] = srcs[i].remaining();
+            }
+            gatherBuffers(dst, offset, srcs, offsets, lengths);
+            return offset + total;
+        }
+        for (ByteBuffer src : srcs) {
+            int length = src.remaining();
+            if (src.isDirect()) {
+                gatherBuffers(dst, offset, new ByteBuffer[]{src}, new int[]{src.position()},
+                        new int[]{length});
+            } else if (src.hasArray()) {
+                copyFromArray(dst, offset, src.array(), src.arrayOffset() + src.position(), length);
+            } else {
+                // Read-only heap buffer, no access to its array
+                ByteBuffer out = dst.duplicate();
+                out.clear();
+                out.position(offset);
+                out.put(src.duplicate());
+            }
+            offset += length;
+        }
+        return offset;
+    }
+
+    /**
+     * Copies a slice of an array into a direct buffer.
+     */
+    public static void copy(byte[] src, int srcOffset, ByteBuffer dst, int dstOffset, int length) {
+        checkDirect(dst);
+        checkRange(dst, dstOffset, length);
+        if (srcOffset < 0 || srcOffset + length > src.length) {
+            throw new IndexOutOfBoundsException("Bytes " + srcOffset + " to "
+                    + (srcOffset + length) + " out of " + src.length);
+        }
+        copyFromArray(dst, dstOffset, src, srcOffset, length);
+    }
+
+    /**
+     * Copies consecutive bytes of a direct buffer into buffers, filling each from its position to
+     * its limit and moving its position past the bytes copied. Direct buffers are all filled by
+     * a single native call.
+     * @param src - direct buffer, its position and limit are ignored
+     * @param offset - of the first byte to copy in src
+     * @param length - number of bytes available in src, the copy stops there
+     * @return the number of bytes copied
+     */
+    public static int scatter(ByteBuffer src, int offset, int length, ByteBuffer... dsts) {
+        checkDirect(src);
+        checkRange(src, offset, length);
+        int[] offsets = new int[dsts.length];
+        int[] lengths = new int[dsts.length];
+        boolean allDirect = true;
+        int total = 0;
+        for (int i = 0; i < dsts.length; i++) {
+            if (dsts[i].isReadOnly()) {
+                throw new ReadOnlyBufferException();
+            }
+            offsets[i] = dsts[i].position();
+            lengths[i] = Math.min(dsts[i].remaining(), length - total);
+            allDirect &= dsts[i].isDirect();
+            total += lengths[i];
+        }
+        if (allDirect) {
+            scatterBuffers(src, offset, dsts, offsets, lengths);
+        } else {
+            int at = offset;
+            for (int i = 0; i < dsts.length; i++) {
+                ByteBuffer dst = dsts[i];
+                if (dst.isDirect()) {
+                    scatterBuffers(src, at, new ByteBuffer[]{dst}, new int[]{offsets[i]},
+                            new int[]{lengths[i]});
+                } else {
+                    copyToArray(src, at, dst.array(), dst.arrayOffset() + offsets[i], lengths[i]);
+                }
+                at += lengths[i];
+            }
+        }
+        for (int i = 0; i < dsts.length; i++) {
+            dsts[i].position(offsets[i] + lengths[i]);
+        }
+        return total;
+    }
+
+    private static void checkDirect(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Expected a direct buffer");
+        }
+    }
+
+    private static void checkRange(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+            throw new IndexOutOfBoundsException("Bytes " + offset + " to " + (offset + length)
+                    + " out of " + buffer.capacity());
+        }
+    }
+
     public static ByteBuffer adopt(final int fd, final int size) {
         return fdToByteBuffer(fd, size);
     }
+
+    public static ByteBuffer adoptWritable(final int fd, final int size) {
+        return fdToWritableByteBuffer(fd, size, 0);
+    }
+
+    public static ByteBuffer adoptWritable(final int fd, final int size, final int flags) {
+        return fdToWritableByteBuffer(fd, size, flags);
+    }
+
+    /**
+     * @return the number of pages of a mapped buffer not in memory yet, -1 on error
+     */
+    public static native int countMissingPages(ByteBuffer buffer, int size);
 }
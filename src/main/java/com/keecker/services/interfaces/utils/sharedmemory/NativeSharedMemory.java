@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+/**
+ * Native side of {@link SharedMemoryBackend#NATIVE}, see shared_memory.cpp.
+ */
+final class NativeSharedMemory {
+
+    static {
+        System.loadLibrary("sharedmemory");
+    }
+
+    private NativeSharedMemory() {
+    }
+
+    /**
+     * @return the file descriptor of the region, -1 on error
+     */
+    static native int create(String name, int size);
+
+    /**
+     * @return false if consumers can still map the region writable
+     */
+    static native boolean seal(int fd);
+
+    static native void close(int fd);
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Native side of {@link SharedRingWriter} and {@link SharedRingReader}, see shared_ring.cpp for
+ * the layout of the ring. Regions are given by their mapped address.
+ */
+final class NativeSharedRing {
+
+    static {
+        System.loadLibrary("sharedmemory");
+    }
+
+    private NativeSharedRing() {
+    }
+
+    /**
+     * @return the size of the region holding a ring of these dimensions
+     */
+    static native long regionSize(int slotCount, int slotSize);
+
+    /**
+     * @return the address of the mapped region, 0 on error
+     */
+    static native long map(int fd, int size);
+
+    static native void unmap(long address, int size);
+
+    static native void init(long address, int slotCount, int slotSize);
+
+    /**
+     * @return the number of slots of the ring, -1 if the region does not hold a valid ring
+     */
+    static native int getSlotCount(long address, int regionSize);
+
+    static native int getSlotSize(long address);
+
+    /**
+     * @return the sequence of the next message to be written
+     */
+    static native long getHead(long address);
+
+    /**
+     * Writes a message from a direct buffer.
+     * @return the sequence of the message
+     */
+    static native long writeBuffer(long address, ByteBuffer src, int offset, int length);
+
+    /**
+     * Writes a message from an array.
+     * @return the sequence of the message
+     */
+    static native long writeArray(long address, byte[] src, int offset, int length);
+
+    /**
+     * Copies the next message into a direct buffer of at least the slot size.
+     * @param cursor - sequence of the next message to read and count of lost messages, updated
+     * @return the length of the message, -1 if there is none
+     */
+    static native int read(long address, long[] cursor, ByteBuffer dst);
+
+    /**
+     * Waits for a message after the cursor.
+     * @return false on timeout
+     */
+    static native boolean await(long address, long cursor, long timeoutNs);
+}
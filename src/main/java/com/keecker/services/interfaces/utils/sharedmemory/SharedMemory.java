@@ -7,31 +7,142 @@ package com.keecker.services.interfaces.utils.sharedmemory;
 
 import android.util.Log;
 
+import com.keecker.services.interfaces.utils.IpcHistogram;
+
+import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.EnumSet;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Pool of {@link SharedMemoryBuffer}s, allocated once and reused.
+ *
+ * Free buffers are tracked by a lock-free queue of indices, and buffers are looked up by id or
+ * file descriptor with maps filled at construction: dequeueing a buffer or giving it back from
+ * any thread does not take a lock nor scan the pool.
+ *
+ * When all the buffers are in use, the {@link ExhaustionPolicy} tells whether producers wait for
+ * one to be given back, see {@link #dequeueBuffer(long, TimeUnit)}, or take the oldest one back.
+ *
+ * Pages of the buffers are faulted in by their first write, which can take a while for large
+ * frames. {@link PageOption}s move this cost to the construction of the pool, see
+ * {@link #getPrefaultTime()} and {@link #getFirstUseMissingPages()} to measure it.
+ */
 public class SharedMemory<T extends SharedMemoryBuffer> {
 
+    /**
+     * What to do when dequeueing while all the buffers are in use.
+     */
+    public enum ExhaustionPolicy {
+        /**
+         * Waits for a buffer to be given back, {@link #dequeueBuffer()} returns null right away.
+         * Producers are paced by the slowest consumer.
+         */
+        WAIT_FOR_RELEASE,
+
+        /**
+         * Takes back the buffer dequeued the longest time ago, even if consumers are still
+         * reading it, they may then read a mix of the old and the new content. The release of
+         * the reclaimed use is ignored. For producers that must never be slowed down, where a
+         * damaged frame is better than a late one.
+         */
+        RECLAIM_OLDEST
+    }
+
+    /**
+     * How the pages of the buffers are mapped, all of them when the pool is constructed.
+     */
+    public enum PageOption {
+        /**
+         * Faults all the pages in, the first frames through the buffers do not take page faults.
+         */
+        PREFAULT,
+
+        /**
+         * Locks the pages in memory, limited by RLIMIT_MEMLOCK. Faults them in as well.
+         */
+        LOCK,
+
+        /**
+         * Asks for transparent huge pages, fewer faults and TLB misses for multi-megabyte
+         * buffers. Only granted when the kernel enables them for shared memory, ignored
+         * otherwise.
+         */
+        HUGE_PAGES
+    }
+
     private static final String TAG = SharedMemory.class.getSimpleName();
 
     private final int mBufferSize;
-    private final List<T> mBuffers = new ArrayList<>();
+    private final T[] mBuffers;
+    private final BufferIndexQueue mFreeIndices;
+    private final BufferIdMap mIndicesById;
+    private final BufferIdMap mIndicesByFd;
+    private final ExhaustionPolicy mExhaustionPolicy;
+    // Numbers each use of a buffer, the oldest use has the lowest number
+    private final AtomicLong mLastFlight = new AtomicLong(1);
+    // Threads blocked in dequeueBuffer wait on this monitor
+    private final Object mReleaseSignal = new Object();
+    private final AtomicInteger mBlockedCount = new AtomicInteger();
+    // Called once when a buffer is given back
+    private final ConcurrentLinkedQueue<Runnable> mReleaseCallbacks = new ConcurrentLinkedQueue<>();
+    // Time spent faulting the pages of each buffer in at construction
+    private final IpcHistogram mPrefaultTime = new IpcHistogram();
+    private final AtomicLong mFirstUseMissingPages = new AtomicLong();
+    private volatile boolean mDestroyed = false;
 
     public SharedMemory(Class<T> clazz, int numBuffers, final int bufferSize) {
+        this(clazz, numBuffers, bufferSize, ExhaustionPolicy.WAIT_FOR_RELEASE);
+    }
+
+    public SharedMemory(Class<T> clazz, int numBuffers, final int bufferSize,
+                        ExhaustionPolicy exhaustionPolicy) {
+        this(clazz, numBuffers, bufferSize, exhaustionPolicy, EnumSet.noneOf(PageOption.class));
+    }
+
+    /**
+     * @param clazz - the buffer type, must have a constructor taking the size in bytes
+     * @param numBuffers - the number of buffers in the pool
+     * @param bufferSize - the size of each buffer in bytes
+     * @param exhaustionPolicy - what to do when dequeueing while all the buffers are in use
+     * @param pageOptions - how the pages of the buffers are mapped
+     */
+    @SuppressWarnings("unchecked")
+    public SharedMemory(Class<T> clazz, int numBuffers, final int bufferSize,
+                        ExhaustionPolicy exhaustionPolicy, Set<PageOption> pageOptions) {
         if (numBuffers <= 0 || bufferSize <= 0) {
             throw new IllegalArgumentException(String.format(
                     Locale.ENGLISH, "Wrong arguments numBuffers %d bufferSize %d", numBuffers, bufferSize));
         }
         mBufferSize = bufferSize;
+        mExhaustionPolicy = exhaustionPolicy;
+        mBuffers = (T[]) Array.newInstance(clazz, numBuffers);
+        mFreeIndices = new BufferIndexQueue(numBuffers);
+        mIndicesById = new BufferIdMap(numBuffers);
+        mIndicesByFd = new BufferIdMap(numBuffers);
+        int mapFlags = toMapFlags(pageOptions);
         for (int i = 0; i < numBuffers; i++) {
             // Create numBuffers objects of type clazz to wrap the fd
             try {
                 Constructor<T> constructor = clazz.getConstructor(int.class);
                 T buffer = constructor.newInstance(bufferSize);
-                mBuffers.add(buffer);
+                buffer.setPoolIndex(i);
+                buffer.setIsAvailableForDequeue(true);
+                mBuffers[i] = buffer;
+                if (mapFlags != 0) {
+                    long start = System.nanoTime();
+                    buffer.map(mapFlags);
+                    mPrefaultTime.record(System.nanoTime() - start);
+                }
+                mIndicesById.put(buffer.getBufferId(), i);
+                mIndicesByFd.put(buffer.getFd(), i);
+                mFreeIndices.offer(i);
             } catch (InstantiationException | IllegalAccessException | NoSuchMethodException |
                     InvocationTargetException e) {
                 throw new RuntimeException(String.format(
@@ -42,65 +153,240 @@ public class SharedMemory<T extends SharedMemoryBuffer> {
         Log.d(TAG, String.format("Created SharedMemory size: %d x %d bytes", numBuffers, bufferSize));
     }
 
+    /**
+     * Makes all the buffers of the pool start with a header giving the length of their payload,
+     * see {@link SharedMemoryBuffer#setHeaderEnabled(boolean)}.
+     */
+    public void setHeaderEnabled(boolean enabled) {
+        for (T buffer : mBuffers) {
+            buffer.setHeaderEnabled(enabled);
+        }
+    }
+
+    /**
+     * @return the time spent mapping each buffer with its {@link PageOption}s at construction,
+     * no sample without options
+     */
+    public IpcHistogram getPrefaultTime() {
+        return mPrefaultTime;
+    }
+
+    /**
+     * @return the total number of pages not in memory yet when the buffers were first dequeued,
+     * each one a page fault for the producer writing it
+     */
+    public long getFirstUseMissingPages() {
+        return mFirstUseMissingPages.get();
+    }
+
+    /**
+     * Keeps the consumers from writing to the buffers, see {@link SharedMemoryBuffer#seal()}.
+     * @return false if some buffers could not be sealed against writing
+     */
+    public boolean seal() {
+        boolean sealed = true;
+        for (T buffer : mBuffers) {
+            sealed &= buffer.seal();
+        }
+        return sealed;
+    }
+
     public synchronized void destroy() {
+        if (mDestroyed) {
+            return;
+        }
         Log.d(TAG, "Destroying " + this.toString());
+        mDestroyed = true;
         for (SharedMemoryBuffer buffer : mBuffers) {
             buffer.close();
         }
-        mBuffers.clear();
+        // Producers waiting for a buffer give up
+        signalRelease();
     }
 
-    public synchronized void enqueueBuffer(T buffer) {
-        buffer.setIsAvailableForDequeue(true);
+    public void enqueueBuffer(T buffer) {
+        int index = buffer.getPoolIndex();
+        if (index < 0 || index >= mBuffers.length || mBuffers[index] != buffer) {
+            Log.e(TAG, "Tried to enqueue a buffer from another pool: " + buffer);
+            return;
+        }
+        // Only the first of several calls for the same buffer puts it back in the free-list
+        if (buffer.endFlight()) {
+            mFreeIndices.offer(index);
+            signalRelease();
+        }
     }
 
-    synchronized void enqueueBuffer(final long bufferId) {
-        for (T buffer : mBuffers) {
-            if (buffer.getBufferId() == bufferId) {
-                enqueueBuffer(buffer);
-                break;
-            }
+    void enqueueBuffer(final long bufferId) {
+        int index = mIndicesById.get(bufferId);
+        if (index >= 0) {
+            enqueueBuffer(mBuffers[index]);
         }
     }
 
-    public synchronized T dequeueBuffer() {
-        // Return the first Buffer available for dequeue
-        for (T buffer : mBuffers) {
-            if (buffer.isAvailableForDequeue()) {
-                buffer.setIsAvailableForDequeue(false);
-                return buffer;
+    /**
+     * Dequeues a buffer without waiting.
+     * @return a buffer, or null if the pool is destroyed or if they are all in use with the
+     * {@link ExhaustionPolicy#WAIT_FOR_RELEASE} policy. With
+     * {@link ExhaustionPolicy#RECLAIM_OLDEST}, null if other producers kept reclaiming the
+     * buffers it tried to reclaim.
+     */
+    public T dequeueBuffer() {
+        int index = dequeueIndex();
+        return index >= 0 ? mBuffers[index] : null;
+    }
+
+    /**
+     * Dequeues a buffer, waiting for one to be given back if they are all in use.
+     * @param timeout - the maximum time to wait
+     * @param unit - the time unit of the timeout
+     * @return a buffer, or null if the pool is destroyed or if none was given back in time
+     */
+    public T dequeueBuffer(long timeout, TimeUnit unit) throws InterruptedException {
+        int index = dequeueIndex();
+        if (index >= 0) {
+            return mBuffers[index];
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mReleaseSignal) {
+            // Counted before checking again, releasing threads that do not see it have made
+            // their buffer visible
+            mBlockedCount.incrementAndGet();
+            try {
+                while (true) {
+                    index = dequeueIndex();
+                    if (index >= 0) {
+                        return mBuffers[index];
+                    }
+                    long remainingNs = deadline - System.nanoTime();
+                    if (mDestroyed || remainingNs <= 0) {
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(mReleaseSignal, remainingNs);
+                }
+            } finally {
+                mBlockedCount.decrementAndGet();
             }
         }
-        return null;
     }
 
     /**
      * Dequeues a buffer and returns it's file descriptor
      * @return fd of the dequeued buffer or -1 if none is available
      */
-    synchronized int dequeueBufferFd() {
-        // Return the first Buffer available for dequeue
-        for (T buffer : mBuffers) {
-            if (buffer.isAvailableForDequeue()) {
-                buffer.setIsAvailableForDequeue(false);
-                return buffer.getFd();
+    int dequeueBufferFd() {
+        int index = dequeueIndex();
+        return index >= 0 ? mBuffers[index].getFd() : -1;
+    }
+
+    private int dequeueIndex() {
+        if (mDestroyed) {
+            return -1;
+        }
+        int index = mFreeIndices.poll();
+        if (index >= 0) {
+            startFlight(index);
+            return index;
+        }
+        if (mExhaustionPolicy == ExhaustionPolicy.RECLAIM_OLDEST) {
+            return reclaimOldest();
+        }
+        return -1;
+    }
+
+    private void startFlight(int index) {
+        T buffer = mBuffers[index];
+        buffer.startFlight(mLastFlight.incrementAndGet());
+        if (buffer.markFirstUse()) {
+            mFirstUseMissingPages.addAndGet(buffer.countMissingPages());
+        }
+    }
+
+    private static int toMapFlags(Set<PageOption> pageOptions) {
+        int flags = 0;
+        if (pageOptions.contains(PageOption.PREFAULT)) {
+            flags |= NativeByteBuffer.PREFAULT;
+        }
+        if (pageOptions.contains(PageOption.LOCK)) {
+            flags |= NativeByteBuffer.LOCK;
+        }
+        if (pageOptions.contains(PageOption.HUGE_PAGES)) {
+            flags |= NativeByteBuffer.HUGE_PAGES;
+        }
+        return flags;
+    }
+
+    private int reclaimOldest() {
+        // One attempt per buffer: when producers keep reclaiming the same buffers, or consumers
+        // keep giving them back, fail instead of spinning, as with WAIT_FOR_RELEASE
+        for (int attempt = 0; attempt < mBuffers.length && !mDestroyed; attempt++) {
+            int oldestIndex = -1;
+            long oldestFlight = Long.MAX_VALUE;
+            for (int i = 0; i < mBuffers.length; i++) {
+                long flight = mBuffers[i].getFlight();
+                if (flight != 0 && flight < oldestFlight) {
+                    oldestIndex = i;
+                    oldestFlight = flight;
+                }
             }
+            if (oldestIndex < 0) {
+                // They have all been given back in the meantime
+                int index = mFreeIndices.poll();
+                if (index >= 0) {
+                    startFlight(index);
+                    return index;
+                }
+                continue;
+            }
+            if (mBuffers[oldestIndex].reclaimFlight(oldestFlight, mLastFlight.incrementAndGet())) {
+                return oldestIndex;
+            }
+            // Given back or reclaimed by another producer, looking again
         }
         return -1;
     }
 
+    /**
+     * Runs the callback once, on the thread giving back the next buffer, or right away if a
+     * buffer is available or the pool destroyed.
+     */
+    void notifyWhenAvailable(Runnable callback) {
+        mReleaseCallbacks.add(callback);
+        // Checking after adding it, a releasing thread that did not see it has made its buffer
+        // visible
+        if ((mFreeIndices.size() > 0 || mDestroyed) && mReleaseCallbacks.remove(callback)) {
+            callback.run();
+        }
+    }
+
+    void cancelNotifyWhenAvailable(Runnable callback) {
+        mReleaseCallbacks.remove(callback);
+    }
+
+    private void signalRelease() {
+        if (mBlockedCount.get() > 0) {
+            synchronized (mReleaseSignal) {
+                mReleaseSignal.notifyAll();
+            }
+        }
+        Runnable callback;
+        while ((callback = mReleaseCallbacks.poll()) != null) {
+            callback.run();
+        }
+    }
+
+    boolean isDestroyed() {
+        return mDestroyed;
+    }
+
     /**
      * Returns the buffer with the given buffer id, or null if not found
      * @param bufferId
      * @return
      */
-    public synchronized T getBufferFromId(long bufferId) {
-        for (T buffer : mBuffers) {
-            if (buffer.getBufferId() == bufferId) {
-                return buffer;
-            }
-        }
-        return null;
+    public T getBufferFromId(long bufferId) {
+        int index = mIndicesById.get(bufferId);
+        return index >= 0 && !mDestroyed ? mBuffers[index] : null;
     }
 
     /**
@@ -108,17 +394,20 @@ public class SharedMemory<T extends SharedMemoryBuffer> {
      * @param fd - the file descriptor to look for
      * @return the buffer id, or -1 if not found
      */
-    synchronized long getBufferIdFromFd(int fd) {
-        for (T buffer : mBuffers) {
-            if (buffer.getFd() == fd) {
-                return buffer.getBufferId();
-            }
-        }
-        return -1;
+    long getBufferIdFromFd(int fd) {
+        int index = mIndicesByFd.get(fd);
+        return index >= 0 && !mDestroyed ? mBuffers[index].getBufferId() : -1;
+    }
+
+    /**
+     * @return the buffer at this position of the pool, null once destroyed
+     */
+    T getBuffer(int index) {
+        return !mDestroyed ? mBuffers[index] : null;
     }
 
     int getNumBuffers() {
-        return mBuffers.size();
+        return mDestroyed ? 0 : mBuffers.length;
     }
 
     int getBufferSize() {
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+/** @hide
+ * Creates the shared memory regions of the {@link SharedMemoryBuffer}s owned by this process,
+ * see {@link SharedMemoryBuffer#setBackend(SharedMemoryBackend)}.
+ */
+public interface SharedMemoryBackend {
+
+    /**
+     * memfd_create when the kernel has it, ashmem otherwise. Works on plain Linux as well.
+     */
+    SharedMemoryBackend NATIVE = new SharedMemoryBackend() {
+        @Override
+        public int create(String name, int size) {
+            return NativeSharedMemory.create(name, size);
+        }
+
+        @Override
+        public boolean seal(int fd) {
+            return NativeSharedMemory.seal(fd);
+        }
+
+        @Override
+        public void close(int fd) {
+            NativeSharedMemory.close(fd);
+        }
+    };
+
+    /**
+     * @return the file descriptor of a new region of this size, owned by the caller, -1 on error
+     */
+    int create(String name, int size);
+
+    /**
+     * Keeps the region from being resized or mapped writable from then on, mappings already
+     * made stay writable.
+     * @return false if the region could not be sealed against writing
+     */
+    boolean seal(int fd);
+
+    void close(int fd);
+}
@@ -8,20 +8,19 @@
 package com.keecker.services.interfaces.utils.sharedmemory;
 
 import android.annotation.SuppressLint;
-import android.os.MemoryFile;
+import android.os.IBinder;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.RemoteException;
 import android.util.Log;
 
-import java.io.FileDescriptor;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Base class for all buffers managed by {@link SharedMemory}.
@@ -30,48 +29,103 @@ import java.util.concurrent.atomic.AtomicReference;
 public class SharedMemoryBuffer implements Parcelable, IRecyclable {
 
     private static final String TAG = SharedMemoryBuffer.class.getSimpleName();
+    /**
+     * Size of the optional header at the start of the buffer, see {@link #setHeaderEnabled}.
+     * Holds a magic number, a version, the payload length and a reserved int.
+     */
+    public static final int HEADER_SIZE = 16;
+    // "KSMB"
+    private static final int HEADER_MAGIC = 0x4b534d42;
+    private static final int HEADER_VERSION = 1;
+    private static final AtomicLongFieldUpdater<SharedMemoryBuffer> STATE =
+            AtomicLongFieldUpdater.newUpdater(SharedMemoryBuffer.class, "state");
+    // State of a buffer available for dequeue
+    private static final long AVAILABLE = 0;
+    // State of a buffer in use outside of any SharedMemory
+    private static final long IN_USE = 1;
+    // The low bits of the state hold the flight number, the high ones the count of releases still
+    // expected from reclaimed flights
+    private static final int FLIGHT_BITS = 48;
+    private static final long FLIGHT_MASK = (1L << FLIGHT_BITS) - 1;
+    private static final long STALE_RELEASE = 1L << FLIGHT_BITS;
+    // Positive, ids only have to differ among the buffers of a publisher
+    private static final AtomicLong sNextBufferId =
+            new AtomicLong(new Random().nextInt() & Integer.MAX_VALUE);
+    private static volatile SharedMemoryBackend sBackend = SharedMemoryBackend.NATIVE;
 
+    // Backend of the region owned by this buffer, null for a buffer received from another one
+    private final SharedMemoryBackend mBackend;
+    // File descriptor of the owned region, -1 for a received buffer
+    private final int mOwnedFd;
     // Unique ID of this ipcMessage, among a SharedMemory object
-    private final MemoryFile mMemoryFile;
-    private final FileDescriptor mFd;
     private final long bufferId;
-    private final ParcelFileDescriptor pfd;
+    // Made on demand from the owned region, received otherwise
+    private ParcelFileDescriptor pfd;
     // Size in bytes
     private final int size;
-    private final AtomicReference<Boolean> isAvailableForDequeue = new AtomicReference<>();
+    // Bytes holding the message, the whole buffer unless told otherwise
+    private int length;
+    // Whether the buffer starts with a header giving the length of the payload following it
+    private boolean mHeaderEnabled = false;
+    // When published, System.nanoTime() clock, 0 if unknown
+    private long publishedAtNs = 0;
+    // AVAILABLE when in the free-list of its SharedMemory, else the number of the flight using it.
+    // Only changed with CAS once pooled.
+    private volatile long state = IN_USE;
+    // Position in its SharedMemory, -1 if not pooled
+    private int poolIndex = -1;
+    // Whether a SharedMemory already gave this buffer out, producers dequeue from any thread
+    private final AtomicBoolean mUsed = new AtomicBoolean(false);
+    // Written without its file descriptor, for subscribers which received it with the pool of the
+    // buffer. Set by the publishing thread while it sends a frame.
+    private boolean mWriteAsFrame = false;
     private ByteBuffer mByteBuffer = null;
     private ISharedBufferCallbacks mSharedBufferCallbacks;
+    // On the subscriber side, where the mapping of this buffer is kept between messages
+    private SharedMemoryMappings mMappings;
+    private IBinder mPublisher;
+    private SharedMemoryMappings.Mapping mMapping;
+    // Sequence of a frame received without its file descriptor, -1 for a buffer received with it
+    private long mFrameSequence = -1;
 
     protected SharedMemoryBuffer() {
-        this.mMemoryFile = null;
-        this.mFd = null;
+        this.mBackend = null;
+        this.mOwnedFd = -1;
         this.bufferId = -1;
         this.pfd = null;
         this.size = 0;
+        this.length = 0;
     }
 
     public SharedMemoryBuffer(int size) {
-        try {
-            this.mMemoryFile = new MemoryFile("", size);
-            // Keep a ref on this to prevent closing
-            this.mFd = getFd(mMemoryFile);
-            if (this.mFd == null) {
-                throw new RuntimeException("Failed to get FileDescriptor through reflection");
-            }
-            Constructor<ParcelFileDescriptor> constructor = ParcelFileDescriptor.class.getConstructor(FileDescriptor.class);
-            this.pfd = constructor.newInstance(mFd);
-        } catch (IOException | NoSuchMethodException | IllegalAccessException | InvocationTargetException | InstantiationException e) {
-            throw new RuntimeException(e);
+        this.mBackend = sBackend;
+        this.mOwnedFd = mBackend.create(TAG, size);
+        if (this.mOwnedFd < 0) {
+            throw new RuntimeException("Failed to create a shared memory region of " + size
+                    + " bytes");
         }
-        this.bufferId = mFd.hashCode();
+        this.bufferId = sNextBufferId.incrementAndGet();
         // ipcMessage is available for dequeue when built
-        this.isAvailableForDequeue.set(true);
+        this.state = AVAILABLE;
         this.size = size;
+        this.length = size;
+    }
+
+    /** @hide
+     * Sets the backend of the buffers constructed from then on,
+     * {@link SharedMemoryBackend#NATIVE} by default.
+     */
+    public static void setBackend(SharedMemoryBackend backend) {
+        sBackend = backend;
     }
 
-    public final void close() {
-        if (mMemoryFile != null) {
-            mMemoryFile.close();
+    public final synchronized void close() {
+        if (isOwner() && mByteBuffer != null) {
+            NativeByteBuffer.munmapByteBuffer(mByteBuffer, size);
+            mByteBuffer = null;
+        }
+        if (isOwner() && pfd == null) {
+            mBackend.close(mOwnedFd);
         }
         if (pfd != null) {
             try {
@@ -82,35 +136,352 @@ public class SharedMemoryBuffer implements Parcelable, IRecyclable {
         }
     }
 
+    /**
+     * Gives the content of the buffer. Buffers of a {@link SharedMemory} are mapped for writing,
+     * once for their whole life: publishers write their messages there directly. Buffers received
+     * by subscribers are mapped read-only.
+     */
     public final ByteBuffer getBytes() {
         if (mByteBuffer != null) {
             return mByteBuffer;
         }
-        mByteBuffer = NativeByteBuffer.adopt(pfd.getFd(), size);
+        if (isOwner()) {
+            mByteBuffer = NativeByteBuffer.adoptWritable(mOwnedFd, size);
+        } else if (mMappings != null) {
+            // A frame has no fd, it can only be found among the mappings of its pool
+            mMapping = mMappings.acquire(bufferId, mPublisher, pfd != null ? pfd.getFd() : -1,
+                    size);
+            mByteBuffer = mMapping != null ? mMapping.getBytes() : null;
+        } else {
+            mByteBuffer = NativeByteBuffer.adopt(pfd.getFd(), size);
+        }
         if (mByteBuffer == null) {
             throw new RuntimeException("mmap failed!");
         }
         return mByteBuffer;
     }
 
+    /**
+     * Maps a buffer of a {@link SharedMemory} ahead of its first use.
+     * @param flags - see {@link NativeByteBuffer#adoptWritable(int, int, int)}
+     */
+    void map(int flags) {
+        if (!isOwner() || mByteBuffer != null) {
+            return;
+        }
+        mByteBuffer = NativeByteBuffer.adoptWritable(mOwnedFd, size, flags);
+        if (mByteBuffer == null) {
+            throw new RuntimeException("mmap failed!");
+        }
+    }
+
+    /**
+     * @return the number of pages the first writes will fault in, 0 for buffers not backed by
+     * shared memory
+     */
+    int countMissingPages() {
+        if (!isOwner()) {
+            return 0;
+        }
+        return Math.max(0, NativeByteBuffer.countMissingPages(getBytes(), size));
+    }
+
+    /**
+     * @return true the first time only
+     */
+    boolean markFirstUse() {
+        return mUsed.compareAndSet(false, true);
+    }
+
+    /**
+     * Makes {@link #writeToParcel(Parcel, int)} leave the file descriptor out. Not a Parcelable
+     * flag, subclasses may not forward the flags they are given.
+     */
+    void setWriteAsFrame(boolean writeAsFrame) {
+        mWriteAsFrame = writeAsFrame;
+    }
+
     public final int getSize() {
         return size;
     }
 
-    public final ParcelFileDescriptor getPfd() {
+    /**
+     * @return the number of bytes holding the message, from {@link #getPayloadOffset()}
+     */
+    public final int getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the number of bytes holding the message, before publishing it. Also written in the
+     * header of the buffer when enabled.
+     */
+    public final void setLength(int length) {
+        if (length < 0 || length > getCapacity()) {
+            throw new IllegalArgumentException("Length " + length + " out of buffer of "
+                    + getCapacity());
+        }
+        this.length = length;
+        if (mHeaderEnabled) {
+            writeHeader();
+        }
+    }
+
+    /**
+     * Makes the buffer start with a {@link #HEADER_SIZE} bytes header giving the length of the
+     * payload following it, for consumers which only get the buffer, see {@link #readHeader()}.
+     * Set by the publisher, usually for a whole pool with {@link SharedMemory#setHeaderEnabled}.
+     * The length is clamped to the room left for the payload.
+     */
+    public final void setHeaderEnabled(boolean enabled) {
+        checkWritable();
+        if (enabled == mHeaderEnabled) {
+            return;
+        }
+        if (enabled && size < HEADER_SIZE) {
+            throw new IllegalArgumentException("No room for a header in " + this);
+        }
+        if (!enabled) {
+            // Invalidates the magic number
+            getBytes().putInt(0, 0);
+        }
+        mHeaderEnabled = enabled;
+        if (enabled) {
+            length = Math.min(length, getCapacity());
+            writeHeader();
+        }
+    }
+
+    public final boolean isHeaderEnabled() {
+        return mHeaderEnabled;
+    }
+
+    /**
+     * Reads the header written by the publisher, if any, giving the payload length.
+     * @return false if the buffer does not start with a valid header, left unchanged then
+     */
+    public final boolean readHeader() {
+        ByteBuffer bytes = getBytes();
+        if (size < HEADER_SIZE || bytes.getInt(0) != HEADER_MAGIC
+                || bytes.getInt(4) != HEADER_VERSION) {
+            return false;
+        }
+        int payloadLength = bytes.getInt(8);
+        if (payloadLength < 0 || payloadLength > size - HEADER_SIZE) {
+            return false;
+        }
+        mHeaderEnabled = true;
+        length = payloadLength;
+        return true;
+    }
+
+    /**
+     * @return where the payload starts in the buffer, after the header if enabled
+     */
+    public final int getPayloadOffset() {
+        return mHeaderEnabled ? HEADER_SIZE : 0;
+    }
+
+    /**
+     * @return the maximum length of the payload
+     */
+    public final int getCapacity() {
+        return size - getPayloadOffset();
+    }
+
+    /**
+     * @return the valid bytes of the message only, read-only on the subscriber side
+     */
+    public final ByteBuffer getPayload() {
+        ByteBuffer bytes = getBytes().duplicate();
+        bytes.clear();
+        bytes.position(getPayloadOffset());
+        bytes.limit(getPayloadOffset() + length);
+        return isOwner() ? bytes.slice() : bytes.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies buffers one after the other into the payload, leaving them unchanged. The rest of
+     * the payload keeps its content, so that producers can only write what changed since the
+     * previous use of the buffer. The length is not changed, see {@link #setLength(int)}.
+     * @param offset - in the payload
+     * @return the offset following the last byte written
+     */
+    public final int write(int offset, ByteBuffer... srcs) {
+        checkWritable();
+        if (offset < 0 || offset > getCapacity()) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " out of " + getCapacity());
+        }
+        int end = offset;
+        for (ByteBuffer src : srcs) {
+            end += src.remaining();
+        }
+        if (end > getCapacity()) {
+            throw new IndexOutOfBoundsException("Bytes " + offset + " to " + end + " out of "
+                    + getCapacity());
+        }
+        return NativeByteBuffer.gather(getBytes(), getPayloadOffset() + offset, srcs)
+                - getPayloadOffset();
+    }
+
+    /**
+     * Copies a slice of an array into the payload, see {@link #write(int, ByteBuffer...)}.
+     */
+    public final void write(int offset, byte[] src, int srcOffset, int length) {
+        checkWritable();
+        if (offset < 0 || length < 0 || offset + length > getCapacity()) {
+            throw new IndexOutOfBoundsException("Bytes " + offset + " to " + (offset + length)
+                    + " out of " + getCapacity());
+        }
+        NativeByteBuffer.copy(src, srcOffset, getBytes(), getPayloadOffset() + offset, length);
+    }
+
+    /**
+     * Copies the payload from an offset up to its length into buffers, filling each from its
+     * position to its limit and moving its position past the bytes copied.
+     * @return the number of bytes copied
+     */
+    public final int read(int offset, ByteBuffer... dsts) {
+        if (offset < 0 || offset > length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " out of " + length);
+        }
+        return NativeByteBuffer.scatter(getBytes(), getPayloadOffset() + offset, length - offset,
+                dsts);
+    }
+
+    private void writeHeader() {
+        ByteBuffer bytes = getBytes();
+        bytes.putInt(0, HEADER_MAGIC);
+        bytes.putInt(4, HEADER_VERSION);
+        bytes.putInt(8, length);
+        bytes.putInt(12, 0);
+    }
+
+    private void checkWritable() {
+        // Received buffers are mapped read-only, writing there would crash
+        if (!isOwner()) {
+            throw new IllegalStateException("Only the owner of " + this + " can write it");
+        }
+    }
+
+    /**
+     * @return when the buffer was published, in the {@link System#nanoTime()} clock, 0 if unknown
+     */
+    public final long getPublishedAt() {
+        return publishedAtNs;
+    }
+
+    void setPublishedAt(long publishedAtNs) {
+        this.publishedAtNs = publishedAtNs;
+    }
+
+    public final synchronized ParcelFileDescriptor getPfd() {
+        if (pfd == null && isOwner()) {
+            // Owns the region from then on
+            pfd = ParcelFileDescriptor.adoptFd(mOwnedFd);
+        }
         return pfd;
     }
 
+    /**
+     * Keeps the consumers of an owned buffer from writing it, see
+     * {@link SharedMemoryBackend#seal(int)}. The buffer stays writable through
+     * {@link #getBytes()}, mapped before sealing.
+     * @return false if the region could not be sealed against writing
+     */
+    public final boolean seal() {
+        checkWritable();
+        getBytes();
+        return mBackend.seal(mOwnedFd);
+    }
+
+    private boolean isOwner() {
+        return mBackend != null;
+    }
+
     public boolean isAvailableForDequeue() {
-        return isAvailableForDequeue.get();
+        return state == AVAILABLE;
     }
 
+    /**
+     * Must not be used once the buffer belongs to a {@link SharedMemory}, which keeps this flag
+     * in sync with its free-list. Give buffers back with {@link SharedMemory#enqueueBuffer}.
+     */
     public void setIsAvailableForDequeue(boolean isAvailableForDequeue) {
-        this.isAvailableForDequeue.set(isAvailableForDequeue);
+        this.state = isAvailableForDequeue ? AVAILABLE : IN_USE;
+    }
+
+    /**
+     * @return the number of the flight using this buffer, 0 if available for dequeue
+     */
+    long getFlight() {
+        return state & FLIGHT_MASK;
+    }
+
+    /**
+     * Marks an available buffer as used by a new flight.
+     * @param flight - positive flight number, higher than the ones of the previous flights
+     * @return false if the buffer was not available
+     */
+    boolean startFlight(long flight) {
+        return STATE.compareAndSet(this, AVAILABLE, flight);
     }
 
+    /**
+     * Hands a buffer still in use over to a new flight. The release of the previous flight will
+     * then be ignored.
+     * @return false if the buffer is no longer used by the expected flight
+     */
+    boolean reclaimFlight(long previousFlight, long flight) {
+        while (true) {
+            long current = state;
+            if ((current & FLIGHT_MASK) != previousFlight) {
+                return false;
+            }
+            long staleReleases = current & ~FLIGHT_MASK;
+            if (STATE.compareAndSet(this, current, (staleReleases + STALE_RELEASE) | flight)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends a flight, a release expected from a reclaimed flight is consumed first.
+     * @return true if the buffer became available for dequeue
+     */
+    boolean endFlight() {
+        while (true) {
+            long current = state;
+            if (current == AVAILABLE) {
+                // Already given back
+                return false;
+            }
+            if (current >= STALE_RELEASE) {
+                if (STATE.compareAndSet(this, current, current - STALE_RELEASE)) {
+                    return false;
+                }
+            } else if (STATE.compareAndSet(this, current, AVAILABLE)) {
+                return true;
+            }
+        }
+    }
+
+    int getPoolIndex() {
+        return poolIndex;
+    }
+
+    void setPoolIndex(int poolIndex) {
+        this.poolIndex = poolIndex;
+    }
+
+    /**
+     * @return the file descriptor of the buffer, -1 for a frame received without it
+     */
     public int getFd() {
-        return pfd.getFd();
+        if (isOwner()) {
+            return mOwnedFd;
+        }
+        return pfd != null ? pfd.getFd() : -1;
     }
 
     @Override
@@ -121,17 +492,31 @@ public class SharedMemoryBuffer implements Parcelable, IRecyclable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeLong(this.bufferId);
-        dest.writeParcelable(this.pfd, flags);
-        dest.writeInt(this.size);
+        if (mWriteAsFrame) {
+            // Written as a null file descriptor, followed by the frame fields
+            dest.writeParcelable(null, 0);
+            dest.writeInt(this.size);
+            dest.writeInt(this.length);
+            dest.writeLong(this.publishedAtNs);
+        } else {
+            dest.writeParcelable(getPfd(), flags);
+            dest.writeInt(this.size);
+        }
     }
 
     protected SharedMemoryBuffer(Parcel in) {
         this.bufferId = in.readLong();
         this.pfd = in.readParcelable(ParcelFileDescriptor.class.getClassLoader());
         this.size = in.readInt();
+        if (this.pfd == null) {
+            this.length = in.readInt();
+            this.publishedAtNs = in.readLong();
+        } else {
+            this.length = this.size;
+        }
         // Unused here
-        this.mMemoryFile = null;
-        this.mFd = null;
+        this.mBackend = null;
+        this.mOwnedFd = -1;
     }
 
     public long getBufferId() {
@@ -142,14 +527,20 @@ public class SharedMemoryBuffer implements Parcelable, IRecyclable {
         mSharedBufferCallbacks = callbacks;
     }
 
-    private static FileDescriptor getFd(MemoryFile memFile) {
-        try {
-            Method method = memFile.getClass().getMethod("getFileDescriptor");
-            return (FileDescriptor) method.invoke(memFile);
-        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-            Log.e(TAG, e.getMessage(), e);
-            return null;
-        }
+    /**
+     * Maps the buffer through the mappings of its subscriber rather than on its own.
+     * @param publisher - binder identifying the publisher of the buffer
+     */
+    void setMappings(SharedMemoryMappings mappings, IBinder publisher) {
+        mMappings = mappings;
+        mPublisher = publisher;
+    }
+
+    /**
+     * Given back with {@link ISharedBufferCallbacks#doneWithFrame(long, long)} when recycled.
+     */
+    void setFrameSequence(long sequence) {
+        mFrameSequence = sequence;
     }
 
     @Override
@@ -163,22 +554,36 @@ public class SharedMemoryBuffer implements Parcelable, IRecyclable {
     /**
      * Closes the file descriptor on the side of the receiver of the buffer, you should not call this
      * method if you are in the same process as the publisher!
+     * The bytes must not be used afterwards. Received by a {@link SharedMemorySubscriber}, the
+     * buffer stays mapped for its next messages.
      */
     @Override
     public void recycle() {
         // Done with the buffer, close the fd on this side
-        NativeByteBuffer.munmapByteBuffer(getBytes(), getSize());
-        try {
-            getPfd().close();
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
+        if (mMapping != null) {
+            mMappings.release(mMapping);
+            mMapping = null;
+        } else if (mByteBuffer != null) {
+            NativeByteBuffer.munmapByteBuffer(mByteBuffer, getSize());
+        }
+        mByteBuffer = null;
+        if (pfd != null) {
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
         }
         // Try to notify the SharedMemoryService if there's one
         if (mSharedBufferCallbacks == null) {
             return;
         }
         try {
-            mSharedBufferCallbacks.doneWithBuffer();
+            if (mFrameSequence >= 0) {
+                mSharedBufferCallbacks.doneWithFrame(bufferId, mFrameSequence);
+            } else {
+                mSharedBufferCallbacks.doneWithBuffer();
+            }
         } catch (RemoteException e) {
             Log.e(TAG, e.getMessage(), e);
         }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keecker.services.interfaces.utils.sharedmemory
+
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlin.coroutines.resume
+
+/**
+ * Dequeues a buffer, suspending until one is given back if they are all in use.
+ * No thread is blocked while waiting, the coroutine is resumed by the thread giving a buffer back.
+ *
+ * @return a buffer, or null if the pool is destroyed
+ */
+suspend fun <T : SharedMemoryBuffer> SharedMemory<T>.awaitBuffer(): T? {
+    while (true) {
+        dequeueBuffer()?.let { return it }
+        if (isDestroyed) {
+            return null
+        }
+        // Another producer may take the buffer first, trying again when resumed
+        suspendCancellableCoroutine<Unit> { cont ->
+            val callback = Runnable { cont.resume(Unit) }
+            cont.invokeOnCancellation { cancelNotifyWhenAvailable(callback) }
+            notifyWhenAvailable(callback)
+        }
+    }
+}
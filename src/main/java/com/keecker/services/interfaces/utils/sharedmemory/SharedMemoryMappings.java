@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import android.os.IBinder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Memory mappings of the buffers received by a subscriber, kept for the lifetime of the
+ * subscription. Publishers reuse the buffers of a fixed pool, so each of them is mapped once
+ * instead of on every message.
+ *
+ * Mappings are identified by buffer id and by a callbacks binder of the publisher, created once
+ * per buffer and subscriber, or once per pool shared with the subscriber: a buffer id seen again
+ * from another publisher, or from a publisher that has been restarted, is mapped again. A mapping
+ * is only unmapped once no received buffer uses it anymore.
+ *
+ * The buffers of a shared pool are mapped when the pool is received, and stay acquired by it
+ * until it is replaced, so that frames without file descriptor always find them.
+ */
+class SharedMemoryMappings {
+
+    // Mappings not used by any buffer are unmapped past this count, oldest first
+    static final int MAX_MAPPINGS = 32;
+
+    /**
+     * Maps and unmaps file descriptors, {@link #NATIVE} outside of the tests.
+     */
+    interface Mapper {
+        ByteBuffer map(int fd, int size);
+
+        void unmap(ByteBuffer bytes, int size);
+    }
+
+    static final Mapper NATIVE = new Mapper() {
+        @Override
+        public ByteBuffer map(int fd, int size) {
+            return NativeByteBuffer.adopt(fd, size);
+        }
+
+        @Override
+        public void unmap(ByteBuffer bytes, int size) {
+            NativeByteBuffer.munmapByteBuffer(bytes, size);
+        }
+    };
+
+    /**
+     * A mapped buffer, shared by all the messages received for it.
+     */
+    static final class Mapping {
+        final long mBufferId;
+        final IBinder mPublisher;
+        final int mSize;
+        final ByteBuffer mBytes;
+        // Guarded by the SharedMemoryMappings
+        private int mUsers = 0;
+        private boolean mDropped = false;
+
+        Mapping(long bufferId, IBinder publisher, int size, ByteBuffer bytes) {
+            mBufferId = bufferId;
+            mPublisher = publisher;
+            mSize = size;
+            mBytes = bytes;
+        }
+
+        /**
+         * @return a view of the mapping, with its own position and limit
+         */
+        ByteBuffer getBytes() {
+            return mBytes.duplicate();
+        }
+    }
+
+    private final Mapper mMapper;
+    // Searched linearly, buffer pools are small
+    private final ArrayList<Mapping> mMappings = new ArrayList<>();
+    private boolean mClosed = false;
+
+    SharedMemoryMappings() {
+        this(NATIVE);
+    }
+
+    SharedMemoryMappings(Mapper mapper) {
+        mMapper = mapper;
+    }
+
+    /**
+     * Gives the mapping of a received buffer, mapping it if needed. Must be given back with
+     * {@link #release(Mapping)}.
+     * @param publisher - the binder of the callbacks given with the buffer
+     * @param fd - the file descriptor of the buffer, or -1 to only look for an existing mapping
+     * @return null if the buffer could not be mapped
+     */
+    synchronized Mapping acquire(long bufferId, IBinder publisher, int fd, int size) {
+        for (int i = 0; i < mMappings.size(); i++) {
+            Mapping mapping = mMappings.get(i);
+            if (mapping.mBufferId != bufferId) {
+                continue;
+            }
+            if (mapping.mPublisher == publisher && mapping.mSize == size) {
+                mapping.mUsers++;
+                return mapping;
+            }
+            if (fd < 0) {
+                return null;
+            }
+            // Same id from another pool
+            mMappings.remove(i);
+            drop(mapping);
+            break;
+        }
+        if (fd < 0) {
+            return null;
+        }
+        ByteBuffer bytes = mMapper.map(fd, size);
+        if (bytes == null) {
+            return null;
+        }
+        Mapping mapping = new Mapping(bufferId, publisher, size, bytes);
+        mapping.mUsers = 1;
+        if (mClosed) {
+            // Not kept, unmapped once released
+            mapping.mDropped = true;
+            return mapping;
+        }
+        mMappings.add(mapping);
+        trim();
+        return mapping;
+    }
+
+    synchronized void release(Mapping mapping) {
+        mapping.mUsers--;
+        if (mapping.mUsers == 0 && mapping.mDropped) {
+            mMapper.unmap(mapping.mBytes, mapping.mSize);
+        }
+    }
+
+    /**
+     * Unmaps everything, the mappings still used are unmapped once released.
+     */
+    synchronized void close() {
+        mClosed = true;
+        for (Mapping mapping : mMappings) {
+            drop(mapping);
+        }
+        mMappings.clear();
+    }
+
+    synchronized int size() {
+        return mMappings.size();
+    }
+
+    private void trim() {
+        for (int i = 0; i < mMappings.size() && mMappings.size() > MAX_MAPPINGS; ) {
+            Mapping mapping = mMappings.get(i);
+            if (mapping.mUsers == 0) {
+                mMappings.remove(i);
+                drop(mapping);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void drop(Mapping mapping) {
+        mapping.mDropped = true;
+        if (mapping.mUsers == 0) {
+            mMapper.unmap(mapping.mBytes, mapping.mSize);
+        }
+    }
+}
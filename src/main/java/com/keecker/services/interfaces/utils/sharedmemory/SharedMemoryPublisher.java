@@ -6,60 +6,203 @@
 package com.keecker.services.interfaces.utils.sharedmemory;
 
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
-import android.util.LongSparseArray;
 
+import com.keecker.services.interfaces.utils.IpcDispatcher;
 import com.keecker.services.interfaces.utils.IpcMessage;
+import com.keecker.services.interfaces.utils.IpcMetrics;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Publishes shared memory buffers, and tells its delegate when all the subscribers are done with
+ * each of them.
+ *
+ * Buffers not given back yet are tracked in an in-flight table, sized to the
+ * {@link SharedMemory} pool the buffers come from, whose entries are reused from one publication
+ * to the next. Each entry holds a count of the subscribers still using its buffer, the last
+ * {@link ISharedBufferCallbacks#doneWithBuffer()} calls the delegate directly. Subscribers too slow
+ * to give a buffer back are ignored after {@link #RELEASE_TIMEOUT_MS}, checked by a single sweep
+ * task while buffers are in use. If the table is full, it grows rather than giving up on a
+ * buffer early.
+ *
+ * The callback binders given to the subscribers are created once for each subscriber and buffer,
+ * and reused for every publication of that buffer.
+ *
+ * Subscribers speaking version 1 of the protocol, see {@link SharedMemorySubscriber}, receive the
+ * file descriptors of the whole pool once, when added or when {@link #sharePool(SharedMemory)} is
+ * called again, then frames without file descriptor for the buffers of that pool.
+ *
+ * Once {@link #close() closed}, the buffers still in use are handed back to their delegates and
+ * new ones are refused.
  *
  * @param <T>
  */
 public class SharedMemoryPublisher<T extends SharedMemoryBuffer> {
 
     private static final String TAG = SharedMemoryPublisher.class.getSimpleName();
+    // Subscribers not done with a buffer after this delay are ignored
+    static final long RELEASE_TIMEOUT_MS = 10000;
+    // Period of the checks for timed out buffers
+    private static final long SWEEP_PERIOD_MS = 1000;
+    // Initial size of the in-flight table when the buffer pool is not known
+    static final int DEFAULT_IN_FLIGHT_CAPACITY = 16;
+    // First version sending frames without file descriptor
+    private static final int FRAMES_PROTOCOL_VERSION = 1;
+    // Pool ids only have to differ among the publishers of a subscriber
+    private static final AtomicInteger sNextPoolId = new AtomicInteger(new Random().nextInt());
 
     public interface Delegate<T> {
+        /**
+         * Called once all the subscribers are done with a published buffer, or timed out.
+         * Called from the thread of the last subscriber giving it back, which can be a binder
+         * thread, or from the publishing thread if there are no subscribers.
+         */
         void onAllClientsDone(T buffer);
     }
 
-    private final ExecutorService mLatchesThreadpool;
-    private final LongSparseArray<CountDownLatch> mLatches;
-    private final ConcurrentHashMap<IBinder, ISharedMemorySubscriber> mSubscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<IBinder, Subscription> mSubscribers = new ConcurrentHashMap<>();
+    // Publications, free or in flight. Only taken by the publishing thread, holding the lock.
+    private final CopyOnWriteArrayList<Publication> mInFlight = new CopyOnWriteArrayList<>();
+    // Where to start looking for a free publication
+    private int mNextFree = 0;
+    private final AtomicInteger mInFlightCount = new AtomicInteger(0);
+    private final AtomicLong mTimedOutCount = new AtomicLong(0);
+    private final AtomicBoolean mSweepScheduled = new AtomicBoolean(false);
+    private final Runnable mSweep = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
     private final int mSignature;
     private final String mClassName;
+    private final long mReleaseTimeoutMs;
+    private final long mSweepPeriodMs;
+    private final IpcMetrics mMetrics;
+    private volatile boolean mClosed = false;
+    // Pool shared with the subscribers speaking frames, guarded by this
+    private SharedMemory<T> mSharedMemory = null;
+    private int mPoolId = 0;
+    private ParcelFileDescriptor[] mPoolFds = null;
+    private long[] mPoolBufferIds = null;
+    private long mSequence = 0;
 
+    /**
+     * Prefer {@link #SharedMemoryPublisher(Class, SharedMemory)}, the in-flight table can only
+     * be sized to the pool when given it, it grows as needed otherwise.
+     */
     public SharedMemoryPublisher(Class<T> msgClass) {
-        // Threadpool that will wait for clients to tell us they're done with the buffers
-        mLatchesThreadpool = Executors.newCachedThreadPool(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "BufferDoneWaiter");
-            }
-        });
-        // Latches to check that all clients are done with one ipcMessage
-        mLatches = new LongSparseArray<>();
+        this(msgClass, DEFAULT_IN_FLIGHT_CAPACITY, RELEASE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param msgClass - the type of buffer
+     * @param sharedMemory - the pool of the published buffers
+     */
+    public SharedMemoryPublisher(Class<T> msgClass, SharedMemory<T> sharedMemory) {
+        this(msgClass, Math.max(1, sharedMemory.getNumBuffers()), RELEASE_TIMEOUT_MS);
+        sharePool(sharedMemory);
+    }
+
+    SharedMemoryPublisher(Class<T> msgClass, int inFlightCapacity, long releaseTimeoutMs) {
+        if (inFlightCapacity <= 0) {
+            throw new IllegalArgumentException("In-flight capacity must be positive: "
+                    + inFlightCapacity);
+        }
         // Class signature
         mSignature = IpcMessage.getClassSignature(msgClass);
         mClassName = msgClass.getSimpleName();
+        mReleaseTimeoutMs = releaseTimeoutMs;
+        mSweepPeriodMs = Math.min(SWEEP_PERIOD_MS, releaseTimeoutMs);
+        growInFlight(inFlightCapacity);
+        mMetrics = new IpcMetrics("SharedMemoryPublisher " + mClassName,
+                new IpcMetrics.QueueDepth() {
+            @Override
+            public int get() {
+                return getInFlightCount();
+            }
+        });
+        mMetrics.register();
     }
 
     public synchronized void add(ISharedMemorySubscriber sub) {
-        mSubscribers.put(sub.asBinder(), sub);
+        if (mClosed) {
+            Log.e(TAG, "Subscriber added to closed publisher of " + mClassName);
+            return;
+        }
+        int version;
+        try {
+            // Answered 0 by subscribers not knowing the call
+            version = sub.getProtocolVersion();
+        } catch (RemoteException e) {
+            // Already dead
+            return;
+        }
+        Subscription subscription = new Subscription(sub, version);
+        if (version >= FRAMES_PROTOCOL_VERSION && mSharedMemory != null
+                && !sharePoolWith(subscription)) {
+            return;
+        }
+        Subscription previous = mSubscribers.put(sub.asBinder(), subscription);
+        if (previous != null) {
+            previous.releaseAll();
+        }
+    }
+
+    /**
+     * Shares the file descriptors of a pool with the subscribers speaking frames, which will
+     * then receive the buffers of this pool without their file descriptor. Replaces the pool
+     * given to the constructor, or previously shared, for instance when resized.
+     */
+    public synchronized void sharePool(SharedMemory<T> sharedMemory) {
+        if (mClosed) {
+            return;
+        }
+        int count = sharedMemory.getNumBuffers();
+        ParcelFileDescriptor[] fds = new ParcelFileDescriptor[count];
+        long[] bufferIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            T buffer = sharedMemory.getBuffer(i);
+            if (buffer == null) {
+                // Destroyed meanwhile
+                return;
+            }
+            fds[i] = buffer.getPfd();
+            bufferIds[i] = buffer.getBufferId();
+        }
+        mSharedMemory = sharedMemory;
+        mPoolId = sNextPoolId.incrementAndGet();
+        mPoolFds = fds;
+        mPoolBufferIds = bufferIds;
+        growInFlight(count);
+        Iterator<Subscription> i = mSubscribers.values().iterator();
+        while (i.hasNext()) {
+            Subscription subscription = i.next();
+            if (subscription.mVersion >= FRAMES_PROTOCOL_VERSION && !sharePoolWith(subscription)) {
+                i.remove();
+                subscription.releaseAll();
+            }
+        }
     }
 
     public synchronized void remove(ISharedMemorySubscriber sub) {
-        mSubscribers.remove(sub.asBinder());
+        Subscription subscription = mSubscribers.remove(sub.asBinder());
+        if (subscription != null) {
+            subscription.releaseAll();
+        }
     }
 
     public synchronized void publish(final T object, final Delegate<T> delegate) {
@@ -74,44 +217,503 @@ public class SharedMemoryPublisher<T extends SharedMemoryBuffer> {
                     object.getClass().getName(), mClassName));
             return;
         }
-        // Create the countdown latch
-        final CountDownLatch latch = new CountDownLatch(getSubscribersCount());
-        mLatches.put(object.getBufferId(), latch);
-        // Start the watcher thread that will wait on the latch
-        mLatchesThreadpool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    latch.await(10000, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, e.getMessage(), e);
-                } finally {
-                    // All subscribers are done or timed out, notify our parent
-                    delegate.onAllClientsDone(object);
-                }
-            }
-        });
-        // Notify our clients
-        IpcMessage msg = new IpcMessage(object, mSignature);
-        Iterator<Map.Entry<IBinder, ISharedMemorySubscriber>> i = mSubscribers.entrySet().iterator();
+        if (mClosed) {
+            Log.e(TAG, "Buffer published on closed publisher of " + mClassName);
+            delegate.onAllClientsDone(object);
+            return;
+        }
+        long start = System.nanoTime();
+        mMetrics.onMessage();
+        object.setPublishedAt(start);
+        long bufferId = object.getBufferId();
+        long sequence = mSequence++;
+        boolean inSharedPool = mSharedMemory != null
+                && mSharedMemory.getBufferFromId(bufferId) == object;
+        // Held by the publishing thread too, until all the subscribers have been notified
+        final Publication publication = takeFreePublication();
+        final long generation = publication.start(object, delegate, getSubscribersCount() + 1);
+        scheduleSweep();
+        // Notify our clients, only marshalled for the ones in another process, with or without
+        // file descriptor
+        IpcMessage msg = null;
+        IpcMessage frame = null;
+        Iterator<Map.Entry<IBinder, Subscription>> i = mSubscribers.entrySet().iterator();
         while (i.hasNext()) {
+            Subscription subscription = i.next().getValue();
+            BufferCallbacks callbacks = subscription.hold(bufferId, inSharedPool, publication,
+                    generation, sequence);
             try {
-                i.next().getValue().onNewMessage(msg, new ISharedBufferCallbacks.Stub() {
-                    @Override
-                    public void doneWithBuffer() throws RemoteException {
-                        latch.countDown();
+                if (inSharedPool && subscription.mPoolId == mPoolId) {
+                    if (frame == null) {
+                        frame = new IpcMessage(object, mSignature, false);
+                    }
+                    // Marshalled during the call, by the first subscriber needing it
+                    object.setWriteAsFrame(true);
+                    try {
+                        subscription.mSubscriber.onNewFrame(frame, mPoolId, bufferId, sequence);
+                    } finally {
+                        object.setWriteAsFrame(false);
                     }
-                });
+                } else {
+                    if (msg == null) {
+                        msg = new IpcMessage(object, mSignature, false);
+                    }
+                    subscription.mSubscriber.onNewMessage(msg, callbacks);
+                }
             } catch (RemoteException e) {
                 // This subscriber is dead, remove it
                 i.remove();
                 // Won't need the ipcMessage anymore as it's dead
-                latch.countDown();
+                subscription.releaseAll();
             }
         }
+        // Subscribers of this process have made their own copy
+        if (msg != null) {
+            msg.recycle();
+        }
+        if (frame != null) {
+            frame.recycle();
+        }
+        publication.release(generation);
+        mMetrics.onPublished(start, System.nanoTime());
+    }
+
+    /**
+     * Hands the buffers still in use back to their delegates and forgets the subscribers.
+     * Buffers published afterwards are handed back right away.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (Subscription subscription : mSubscribers.values()) {
+            subscription.releaseAll();
+        }
+        mSubscribers.clear();
+        for (Publication publication : mInFlight) {
+            publication.expire(publication.getGeneration(), false);
+        }
+        mMetrics.unregister();
     }
 
     public int getSubscribersCount() {
         return mSubscribers.size();
     }
+
+    /**
+     * @return the number of published buffers not given back yet
+     */
+    public int getInFlightCount() {
+        return mInFlightCount.get();
+    }
+
+    /**
+     * @return the number of buffers given up on because some subscribers were too slow to give
+     * them back
+     */
+    public long getTimedOutCount() {
+        return mTimedOutCount.get();
+    }
+
+    /**
+     * @return the number of callback binders kept for the subscribers
+     */
+    int getCallbacksCount() {
+        int count = 0;
+        for (Subscription subscription : mSubscribers.values()) {
+            count += subscription.getCallbacksCount();
+        }
+        return count;
+    }
+
+    /**
+     * Messages are the published buffers, queue depth the buffers in flight.
+     */
+    public IpcMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return false if the subscriber is dead
+     */
+    private boolean sharePoolWith(Subscription subscription) {
+        try {
+            subscription.mSubscriber.onPoolShared(mPoolId, mPoolFds, mPoolBufferIds,
+                    mSharedMemory.getBufferSize(), subscription.mPoolCallbacks);
+        } catch (RemoteException e) {
+            return false;
+        }
+        subscription.mPoolId = mPoolId;
+        return true;
+    }
+
+    private void growInFlight(int capacity) {
+        while (mInFlight.size() < capacity) {
+            mInFlight.add(new Publication());
+        }
+    }
+
+    private Publication takeFreePublication() {
+        int capacity = mInFlight.size();
+        for (int n = 0; n < capacity; n++) {
+            Publication publication = mInFlight.get(mNextFree);
+            mNextFree = (mNextFree + 1) % capacity;
+            if (!publication.isInFlight()) {
+                return publication;
+            }
+        }
+        // More buffers in flight than in the pool or than expected, grow rather than give up on
+        // a buffer still read by its subscribers. Bounded by the buffers actually in flight.
+        growInFlight(capacity * 2);
+        mNextFree = (capacity + 1) % mInFlight.size();
+        return mInFlight.get(capacity);
+    }
+
+    private void scheduleSweep() {
+        if (mSweepScheduled.compareAndSet(false, true)) {
+            IpcDispatcher.schedule(mSweep, mSweepPeriodMs);
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Publication publication : mInFlight) {
+            long generation = publication.getGeneration();
+            if (publication.isInFlight() && publication.mDeadlineNs - now <= 0
+                    && publication.expire(generation, true)) {
+                Log.w(TAG, String.format("Subscribers of %s took more than %d ms to give %s back",
+                        mClassName, mReleaseTimeoutMs, publication.mBuffer));
+            }
+        }
+        mSweepScheduled.set(false);
+        // Checking after clearing the flag, a publisher that saw it set has counted its buffer
+        if (mInFlightCount.get() > 0 && !mClosed) {
+            scheduleSweep();
+        }
+    }
+
+    /**
+     * An entry of the in-flight table, reused for each publication it tracks.
+     *
+     * The generation of the current publication and the number of subscribers still using its
+     * buffer are packed in a single atomic state, so a late call for a previous publication can
+     * never be counted against the next one.
+     */
+    private final class Publication {
+        private static final int COUNT_BITS = 24;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+        private final AtomicLong mState = new AtomicLong(0);
+        // Written by the publishing thread before the state, read after it
+        private T mBuffer;
+        private Delegate<T> mDelegate;
+        private long mDeadlineNs;
+
+        /**
+         * @return the generation of this publication, to give to its users
+         */
+        long start(T buffer, Delegate<T> delegate, int count) {
+            long generation = getGeneration() + 1;
+            mBuffer = buffer;
+            mDelegate = delegate;
+            mDeadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mReleaseTimeoutMs);
+            mInFlightCount.incrementAndGet();
+            mState.set((generation << COUNT_BITS) | count);
+            return generation;
+        }
+
+        long getGeneration() {
+            return mState.get() >>> COUNT_BITS;
+        }
+
+        boolean isInFlight() {
+            return (mState.get() & COUNT_MASK) != 0;
+        }
+
+        void release(long generation) {
+            while (true) {
+                long state = mState.get();
+                if (state >>> COUNT_BITS != generation || (state & COUNT_MASK) == 0) {
+                    // Already given back or timed out
+                    return;
+                }
+                // Read before the update, the entry can be reused right after the last release
+                T buffer = mBuffer;
+                Delegate<T> delegate = mDelegate;
+                if (mState.compareAndSet(state, state - 1)) {
+                    if (((state - 1) & COUNT_MASK) == 0) {
+                        complete(buffer, delegate);
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if it was still in use
+         */
+        boolean expire(long generation, boolean timedOut) {
+            while (true) {
+                long state = mState.get();
+                if (state >>> COUNT_BITS != generation || (state & COUNT_MASK) == 0) {
+                    return false;
+                }
+                T buffer = mBuffer;
+                Delegate<T> delegate = mDelegate;
+                if (mState.compareAndSet(state, generation << COUNT_BITS)) {
+                    if (timedOut) {
+                        mTimedOutCount.incrementAndGet();
+                    }
+                    complete(buffer, delegate);
+                    return true;
+                }
+            }
+        }
+
+        private void complete(T buffer, Delegate<T> delegate) {
+            mInFlightCount.decrementAndGet();
+            delegate.onAllClientsDone(buffer);
+        }
+    }
+
+    /**
+     * Callbacks given to one subscriber for one buffer, reused each time the buffer is published.
+     *
+     * A subscriber gives back the publications of a buffer in order, so each call is matched
+     * with the oldest publication it holds. A late call for a publication that timed out is
+     * ignored. Callbacks of buffers out of the shared pool are dropped once they hold nothing,
+     * such buffers may be published once each.
+     */
+    private final class BufferCallbacks extends ISharedBufferCallbacks.Stub {
+        // Past this, the subscriber is considered stuck and its oldest publications released
+        private static final int MAX_HELD = 8;
+
+        private final Subscription mSubscription;
+        final long mBufferId;
+        // Kept while the subscription lasts, guarded by the subscription
+        boolean mPooled = false;
+
+        // Ring of the held publications, their generations and sequences, guarded by this
+        private final Object[] mHeld = new Object[MAX_HELD];
+        private final long[] mHeldGenerations = new long[MAX_HELD];
+        private final long[] mHeldSequences = new long[MAX_HELD];
+        private int mFirst = 0;
+        private int mCount = 0;
+
+        BufferCallbacks(Subscription subscription, long bufferId) {
+            mSubscription = subscription;
+            mBufferId = bufferId;
+        }
+
+        synchronized boolean isHolding() {
+            return mCount > 0;
+        }
+
+        void hold(Publication publication, long generation, long sequence) {
+            Publication evicted = null;
+            long evictedGeneration = 0;
+            synchronized (this) {
+                if (mCount == MAX_HELD) {
+                    evicted = take();
+                    evictedGeneration = mHeldGenerations[mFirst];
+                    mFirst = (mFirst + 1) % MAX_HELD;
+                    mCount--;
+                }
+                int index = (mFirst + mCount) % MAX_HELD;
+                mHeld[index] = publication;
+                mHeldGenerations[index] = generation;
+                mHeldSequences[index] = sequence;
+                mCount++;
+            }
+            if (evicted != null) {
+                // Outside of the lock, may call the delegate. Not kept out until it times out.
+                evicted.release(evictedGeneration);
+            }
+        }
+
+        /**
+         * Releases the publication of a given frame, whatever the order.
+         */
+        @SuppressWarnings("unchecked")
+        void release(long sequence) {
+            Publication publication = null;
+            long generation = 0;
+            synchronized (this) {
+                for (int n = 0; n < mCount; n++) {
+                    int index = (mFirst + n) % MAX_HELD;
+                    if (mHeldSequences[index] != sequence) {
+                        continue;
+                    }
+                    publication = (Publication) mHeld[index];
+                    generation = mHeldGenerations[index];
+                    // Moves the older ones up
+                    for (; n > 0; n--) {
+                        int previous = (mFirst + n - 1) % MAX_HELD;
+                        mHeld[index] = mHeld[previous];
+                        mHeldGenerations[index] = mHeldGenerations[previous];
+                        mHeldSequences[index] = mHeldSequences[previous];
+                        index = previous;
+                    }
+                    mHeld[mFirst] = null;
+                    mFirst = (mFirst + 1) % MAX_HELD;
+                    mCount--;
+                    break;
+                }
+            }
+            if (publication != null) {
+                publication.release(generation);
+                mSubscription.dropIfIdle(this);
+            }
+        }
+
+        /**
+         * @return false if no publication was held
+         */
+        boolean release() {
+            Publication publication;
+            long generation;
+            synchronized (this) {
+                if (mCount == 0) {
+                    return false;
+                }
+                publication = take();
+                generation = mHeldGenerations[mFirst];
+                mFirst = (mFirst + 1) % MAX_HELD;
+                mCount--;
+            }
+            // Outside of the lock, may call the delegate
+            publication.release(generation);
+            mSubscription.dropIfIdle(this);
+            return true;
+        }
+
+        void releaseAll() {
+            while (release()) {
+                // Until none is held
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Publication take() {
+            Publication publication = (Publication) mHeld[mFirst];
+            mHeld[mFirst] = null;
+            return publication;
+        }
+
+        @Override
+        public void doneWithBuffer() {
+            release();
+        }
+
+        @Override
+        public void doneWithFrame(long bufferId, long sequence) {
+            release(sequence);
+        }
+    }
+
+    /**
+     * Callbacks of the pool shared with one subscriber, giving frames back.
+     */
+    private final class PoolCallbacks extends ISharedBufferCallbacks.Stub {
+        private final Subscription mSubscription;
+
+        PoolCallbacks(Subscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void doneWithBuffer() {
+            Log.w(TAG, "Buffer of " + mClassName + " given back without frame sequence");
+        }
+
+        @Override
+        public void doneWithFrame(long bufferId, long sequence) {
+            BufferCallbacks callbacks = mSubscription.findCallbacks(bufferId);
+            if (callbacks != null) {
+                callbacks.release(sequence);
+            }
+        }
+    }
+    /**
+     * A subscriber and its callbacks, by buffer id.
+     */
+    private final class Subscription {
+        final ISharedMemorySubscriber mSubscriber;
+        final int mVersion;
+        final PoolCallbacks mPoolCallbacks;
+        // Id of the pool shared with the subscriber, guarded by the publisher lock
+        int mPoolId = 0;
+        // Guarded by this, frames are given back from binder threads. Searched linearly, buffer
+        // pools are small and callbacks of other buffers are dropped once given back.
+        private long[] mBufferIds = new long[8];
+        private final ArrayList<BufferCallbacks> mCallbacks = new ArrayList<>(8);
+
+        Subscription(ISharedMemorySubscriber subscriber, int version) {
+            mSubscriber = subscriber;
+            mVersion = version;
+            mPoolCallbacks = version >= FRAMES_PROTOCOL_VERSION ? new PoolCallbacks(this) : null;
+        }
+
+        synchronized BufferCallbacks findCallbacks(long bufferId) {
+            int count = mCallbacks.size();
+            for (int i = 0; i < count; i++) {
+                if (mBufferIds[i] == bufferId) {
+                    return mCallbacks.get(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Holds a publication in the callbacks of its buffer, made if needed.
+         */
+        synchronized BufferCallbacks hold(long bufferId, boolean pooled, Publication publication,
+                long generation, long sequence) {
+            BufferCallbacks callbacks = findCallbacks(bufferId);
+            if (callbacks == null) {
+                int count = mCallbacks.size();
+                if (count == mBufferIds.length) {
+                    mBufferIds = Arrays.copyOf(mBufferIds, count * 2);
+                }
+                callbacks = new BufferCallbacks(this, bufferId);
+                mBufferIds[count] = bufferId;
+                mCallbacks.add(callbacks);
+            }
+            callbacks.mPooled |= pooled;
+            callbacks.hold(publication, generation, sequence);
+            return callbacks;
+        }
+
+        /**
+         * Forgets the callbacks of a buffer out of the pool once they hold nothing.
+         */
+        synchronized void dropIfIdle(BufferCallbacks callbacks) {
+            if (callbacks.mPooled || callbacks.isHolding()) {
+                return;
+            }
+            int index = mCallbacks.indexOf(callbacks);
+            if (index < 0) {
+                return;
+            }
+            int last = mCallbacks.size() - 1;
+            mBufferIds[index] = mBufferIds[last];
+            mCallbacks.set(index, mCallbacks.get(last));
+            mCallbacks.remove(last);
+        }
+
+        synchronized int getCallbacksCount() {
+            return mCallbacks.size();
+        }
+
+        void releaseAll() {
+            ArrayList<BufferCallbacks> callbacks;
+            synchronized (this) {
+                callbacks = new ArrayList<>(mCallbacks);
+            }
+            for (BufferCallbacks bufferCallbacks : callbacks) {
+                bufferCallbacks.releaseAll();
+            }
+        }
+    }
 }
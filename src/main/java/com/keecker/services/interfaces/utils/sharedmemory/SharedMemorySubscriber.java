@@ -6,27 +6,74 @@
 package com.keecker.services.interfaces.utils.sharedmemory;
 
 
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.keecker.services.interfaces.utils.IpcDispatcher;
 import com.keecker.services.interfaces.utils.IpcHandlerThread;
 import com.keecker.services.interfaces.utils.IpcMessage;
+import com.keecker.services.interfaces.utils.IpcMessageLoop;
+import com.keecker.services.interfaces.utils.IpcMetrics;
+import com.keecker.services.interfaces.utils.IpcQueueType;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Receives shared memory buffers and hands them to {@link #onNewMessage(SharedMemoryBuffer)}.
+ *
+ * Speaks version {@link #PROTOCOL_VERSION} of the shared memory protocol:
+ * - 0: each message carries the file descriptor of its buffer
+ * - 1: the publisher shares the file descriptors of its whole pool once, with
+ *   {@link #onPoolShared}, then only sends frames identifying the buffers, with
+ *   {@link #onNewFrame}. Buffers not in the pool are still sent with their file descriptor.
+ */
 public class SharedMemorySubscriber<T extends SharedMemoryBuffer>
         extends ISharedMemorySubscriber.Stub
         implements SharedMemoryMessageHandler<T> {
 
     private static final String TAG = SharedMemorySubscriber.class.getSimpleName();
+    public static final int PROTOCOL_VERSION = 1;
 
-    private final IpcHandlerThread<MsgContainer> mHandlerThread;
+    private final IpcMessageLoop<MsgContainer> mMessageLoop;
     private final Parcelable.Creator<T> mParcelableCreator;
+    private final IpcMetrics mMetrics;
+    // Buffers stay mapped between messages, until the subscriber is stopped
+    private final SharedMemoryMappings mMappings = new SharedMemoryMappings();
+    // Pools shared by the publishers, few of them
+    private final CopyOnWriteArrayList<SharedPool> mPools = new CopyOnWriteArrayList<>();
 
     public SharedMemorySubscriber(final Class<T> msgClass, String subscriberName) {
+        this(msgClass, subscriberName, IpcQueueType.LINKED);
+    }
+
+    /**
+     * @param msgClass - the type of buffer
+     * @param subscriberName - the name of this subscriber, can be null
+     * @param queueType - the queue implementation used to stack the received buffer
+     */
+    public SharedMemorySubscriber(final Class<T> msgClass, String subscriberName,
+                                  IpcQueueType queueType) {
+        this(msgClass, subscriberName, queueType, IpcDispatcher.getDefault());
+    }
+
+    /**
+     * @param msgClass - the type of buffer
+     * @param subscriberName - the name of this subscriber, can be null
+     * @param queueType - the queue implementation used to stack the received buffer
+     * @param dispatcher - where buffers are handled, {@link IpcDispatcher#dedicatedThread()} for
+     *                     subscribers spending a long time handling buffers
+     */
+    public SharedMemorySubscriber(final Class<T> msgClass, String subscriberName,
+                                  IpcQueueType queueType, IpcDispatcher dispatcher) {
         Field f;
         try {
             f = msgClass.getField("CREATOR");
@@ -38,13 +85,27 @@ public class SharedMemorySubscriber<T extends SharedMemoryBuffer>
         } catch (IllegalAccessException e) {
             throw new UnsupportedOperationException("Unable to get parcelable CREATOR");
         }
-        mHandlerThread = new IpcHandlerThread<>(MsgContainer.class, 1, new IpcHandlerThread.Delegate<MsgContainer>() {
+        mMetrics = new IpcMetrics("SharedMemorySubscriber "
+                + (subscriberName != null ? subscriberName + " " : "") + msgClass.getSimpleName(),
+                new IpcMetrics.QueueDepth() {
+            @Override
+            public int get() {
+                return mMessageLoop.getQueueSize();
+            }
+        });
+        mMessageLoop = dispatcher.start(MsgContainer.class, 1, queueType, new IpcHandlerThread.Delegate<MsgContainer>() {
             @Override
             public void onNewMessage(MsgContainer msg) {
+                long dequeuedAt = System.nanoTime();
                 if (msg.getSignature() == IpcMessage.getClassSignature(msgClass)) {
                     T object = msg.ipcMessage.getPayload(mParcelableCreator);
                     object.setBufferCallbacks(msg.callback);
+                    object.setMappings(mMappings, msg.publisher);
+                    object.setFrameSequence(msg.frameSequence);
+                    long unmarshalledAt = System.nanoTime();
                     SharedMemorySubscriber.this.onNewMessage(object);
+                    mMetrics.onHandled(msg.ipcMessage.getReceivedAt(), dequeuedAt, unmarshalledAt,
+                            System.nanoTime());
                     // Recycle the "Parcel"
                     msg.ipcMessage.recycle();
                 } else {
@@ -54,34 +115,98 @@ public class SharedMemorySubscriber<T extends SharedMemoryBuffer>
 
             @Override
             public void onMessageDiscarded(MsgContainer msg) {
+                mMetrics.onDropped();
                 msg.ipcMessage.recycle();
-                try {
-                    msg.callback.doneWithBuffer();
-                } catch (RemoteException e) {
-                    // Ignored, nothing we can do here
-                }
+                msg.release();
             }
 
             @Override
             public void onThreadExit(Queue<MsgContainer> remainingMsg) {
                 for (MsgContainer msg : remainingMsg) {
                     msg.ipcMessage.recycle();
-                    try {
-                        msg.callback.doneWithBuffer();
-                    } catch (RemoteException e) {
-                        // Ignored, nothing we can do here
-                    }
+                    msg.release();
                 }
             }
         }, subscriberName);
-        mHandlerThread.start();
+        mMetrics.register();
         sActiveSubscribers.add(this);
     }
 
     @Override
     public void onNewMessage(IpcMessage msg, ISharedBufferCallbacks bufferEventsCallback) throws RemoteException {
-        // Coming from the other process, queue to handler thread
-        mHandlerThread.queue(new MsgContainer(msg, bufferEventsCallback));
+        if (!msg.hasBeenContructedWithAParcel()) {
+            // Published from this process, the message is shared with the other subscribers and
+            // recycled by each of them, queueing a copy
+            msg = msg.makeLocalCopy();
+        }
+        // Queue to handler thread
+        msg.setReceivedAt(System.nanoTime());
+        mMetrics.onMessage();
+        mMessageLoop.queue(new MsgContainer(msg, bufferEventsCallback));
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return PROTOCOL_VERSION;
+    }
+
+    @Override
+    public void onPoolShared(int poolId, ParcelFileDescriptor[] fds, long[] bufferIds,
+                             int bufferSize, ISharedBufferCallbacks callbacks) {
+        IBinder binder = callbacks.asBinder();
+        // Received from the same process, the descriptors are the ones of the publisher
+        boolean ownsFds = !(binder instanceof Binder);
+        SharedPool pool = new SharedPool(poolId, callbacks);
+        for (int i = 0; i < fds.length; i++) {
+            if (fds[i] == null) {
+                continue;
+            }
+            SharedMemoryMappings.Mapping mapping = mMappings.acquire(bufferIds[i], binder,
+                    fds[i].getFd(), bufferSize);
+            if (mapping != null) {
+                pool.mPinned.add(mapping);
+            } else {
+                Log.e(TAG, "Failed to map buffer " + bufferIds[i] + " of pool " + poolId);
+            }
+            if (ownsFds) {
+                try {
+                    // Mapped, no longer needed
+                    fds[i].close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        }
+        try {
+            binder.linkToDeath(pool, 0);
+        } catch (RemoteException e) {
+            // The publisher is already gone
+            pool.close();
+            return;
+        }
+        // Replaces the previous pool of the same publisher
+        for (SharedPool previous : mPools) {
+            if (previous.mBinder == binder) {
+                removePool(previous);
+            }
+        }
+        mPools.add(pool);
+    }
+
+    @Override
+    public void onNewFrame(IpcMessage msg, int poolId, long bufferId, long sequence) {
+        SharedPool pool = getPool(poolId);
+        if (pool == null) {
+            Log.e(TAG, "Frame of unknown pool " + poolId);
+            return;
+        }
+        if (!msg.hasBeenContructedWithAParcel()) {
+            msg = msg.makeLocalCopy();
+        }
+        msg.setReceivedAt(System.nanoTime());
+        mMetrics.onMessage();
+        mMessageLoop.queue(new MsgContainer(msg, pool.mCallbacks, pool.mBinder, bufferId,
+                sequence));
     }
 
     @Override
@@ -90,11 +215,72 @@ public class SharedMemorySubscriber<T extends SharedMemoryBuffer>
     }
 
     public void stop() throws InterruptedException {
-        mHandlerThread.interrupt();
-        mHandlerThread.join();
+        mMessageLoop.quit();
+        for (SharedPool pool : mPools) {
+            removePool(pool);
+        }
+        mMappings.close();
+        mMetrics.unregister();
         sActiveSubscribers.remove(this);
     }
 
+    public IpcMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private SharedPool getPool(int poolId) {
+        for (int i = 0; i < mPools.size(); i++) {
+            SharedPool pool = mPools.get(i);
+            if (pool.mPoolId == poolId) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private void removePool(SharedPool pool) {
+        if (mPools.remove(pool)) {
+            try {
+                pool.mBinder.unlinkToDeath(pool, 0);
+            } catch (NoSuchElementException e) {
+                // Already dead
+            }
+            pool.close();
+        }
+    }
+
+    /**
+     * A pool shared by a publisher, its buffers stay mapped until it is replaced or the publisher
+     * dies.
+     */
+    private final class SharedPool implements IBinder.DeathRecipient {
+        final int mPoolId;
+        final ISharedBufferCallbacks mCallbacks;
+        final IBinder mBinder;
+        // Acquired as long as the pool is used
+        final ArrayList<SharedMemoryMappings.Mapping> mPinned = new ArrayList<>();
+
+        SharedPool(int poolId, ISharedBufferCallbacks callbacks) {
+            mPoolId = poolId;
+            mCallbacks = callbacks;
+            mBinder = callbacks.asBinder();
+        }
+
+        void close() {
+            for (SharedMemoryMappings.Mapping mapping : mPinned) {
+                mMappings.release(mapping);
+            }
+            mPinned.clear();
+        }
+
+        @Override
+        public void binderDied() {
+            if (mPools.remove(this)) {
+                close();
+            }
+        }
+    }
+
     private final static CopyOnWriteArrayList<SharedMemorySubscriber> sActiveSubscribers = new CopyOnWriteArrayList<>();
 
     public static CopyOnWriteArrayList<SharedMemorySubscriber> getActiveSubscribers() {
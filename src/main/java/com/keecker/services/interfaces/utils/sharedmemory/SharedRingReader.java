@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumer of a ring written by a {@link SharedRingWriter}, possibly in another process.
+ *
+ * Messages are read from the shared memory only, without any binder call. {@link #poll} returns
+ * right away, {@link #take} waits on a futex of the region until the writer adds a message.
+ * Messages overwritten before being read are skipped and counted by {@link #getLostCount()}.
+ *
+ * Meant to be used by a single thread.
+ */
+public class SharedRingReader {
+
+    // Waits are split to check for interruptions and closing
+    private static final long WAIT_SLICE_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int mRegionSize;
+    private final int mSlotCount;
+    private final int mSlotSize;
+    // Sequence of the next message to read, then count of lost messages
+    private final long[] mCursor = new long[2];
+    // 0 once closed
+    private long mAddress;
+    private volatile boolean mClosing = false;
+
+    /**
+     * Maps the region, the messages written from then on will be read. The region can be
+     * recycled right away, the mapping does not need its file descriptor.
+     * @param region - region of the ring, see {@link SharedRingWriter#getRegion()}
+     */
+    public SharedRingReader(SharedMemoryBuffer region) {
+        mRegionSize = region.getSize();
+        mAddress = NativeSharedRing.map(region.getFd(), mRegionSize);
+        if (mAddress == 0) {
+            throw new RuntimeException("mmap failed!");
+        }
+        mSlotCount = NativeSharedRing.getSlotCount(mAddress, mRegionSize);
+        if (mSlotCount < 0) {
+            NativeSharedRing.unmap(mAddress, mRegionSize);
+            mAddress = 0;
+            throw new IllegalArgumentException("Not a shared ring: " + region);
+        }
+        mSlotSize = NativeSharedRing.getSlotSize(mAddress);
+        mCursor[0] = NativeSharedRing.getHead(mAddress);
+    }
+
+    public int getSlotSize() {
+        return mSlotSize;
+    }
+
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * Copies the next message, if any.
+     * @param dst - direct buffer of at least {@link #getSlotSize()} bytes, set to the message
+     *              from 0 to its length
+     * @return the length of the message, -1 if there is none
+     */
+    public synchronized int poll(ByteBuffer dst) {
+        checkReadable(dst);
+        int length = NativeSharedRing.read(mAddress, mCursor, dst);
+        if (length >= 0) {
+            dst.clear();
+            dst.limit(length);
+        }
+        return length;
+    }
+
+    /**
+     * Copies the next message, waiting for it if needed.
+     * @param dst - see {@link #poll(ByteBuffer)}
+     * @return the length of the message, -1 on timeout or once closed
+     */
+    public synchronized int take(ByteBuffer dst, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (mClosing) {
+                return -1;
+            }
+            int length = poll(dst);
+            if (length >= 0) {
+                return length;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            NativeSharedRing.await(mAddress, mCursor[0], Math.min(remaining, WAIT_SLICE_NS));
+        }
+    }
+
+    /**
+     * @return the number of messages overwritten before being read
+     */
+    public synchronized long getLostCount() {
+        return mCursor[1];
+    }
+
+    /**
+     * Unmaps the region, waiting for a {@link #take} in progress to return.
+     */
+    public void close() {
+        mClosing = true;
+        synchronized (this) {
+            if (mAddress == 0) {
+                return;
+            }
+            NativeSharedRing.unmap(mAddress, mRegionSize);
+            mAddress = 0;
+        }
+    }
+
+    private void checkReadable(ByteBuffer dst) {
+        if (mAddress == 0) {
+            throw new IllegalStateException("Ring closed");
+        }
+        if (!dst.isDirect() || dst.capacity() < mSlotSize) {
+            throw new IllegalArgumentException("Expected a direct buffer of at least " + mSlotSize
+                    + " bytes");
+        }
+    }
+}
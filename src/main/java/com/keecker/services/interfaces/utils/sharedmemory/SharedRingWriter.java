@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Producer of a ring of messages held in a single shared memory region, for high rate topics
+ * where a binder call per message costs too much.
+ *
+ * The region is given once to the consumers, through any AIDL call returning or taking a
+ * {@link SharedMemoryBuffer}, then each of them reads the messages with a
+ * {@link SharedRingReader}. Writing never waits for the consumers: the ones falling more than
+ * the number of slots behind lose the oldest messages.
+ *
+ * Messages are copied in the ring, a slot holds at most {@link #getSlotSize()} bytes.
+ */
+public class SharedRingWriter {
+
+    private final SharedMemoryBuffer mRegion;
+    private final int mRegionSize;
+    private final int mSlotCount;
+    private final int mSlotSize;
+    // 0 once closed
+    private long mAddress;
+
+    /**
+     * @param slotCount - number of messages kept for the consumers
+     * @param slotSize - maximum size of a message, in bytes
+     */
+    public SharedRingWriter(int slotCount, int slotSize) {
+        if (slotCount <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("Invalid ring of " + slotCount + " slots of "
+                    + slotSize + " bytes");
+        }
+        long regionSize = NativeSharedRing.regionSize(slotCount, slotSize);
+        if (regionSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ring of " + regionSize + " bytes is too large");
+        }
+        mRegionSize = (int) regionSize;
+        mSlotCount = slotCount;
+        mSlotSize = slotSize;
+        mRegion = new SharedMemoryBuffer(mRegionSize);
+        mAddress = NativeSharedRing.map(mRegion.getFd(), mRegionSize);
+        if (mAddress == 0) {
+            mRegion.close();
+            throw new RuntimeException("mmap failed!");
+        }
+        NativeSharedRing.init(mAddress, slotCount, slotSize);
+    }
+
+    /**
+     * @return the region to give to the consumers
+     */
+    public SharedMemoryBuffer getRegion() {
+        return mRegion;
+    }
+
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    public int getSlotSize() {
+        return mSlotSize;
+    }
+
+    /**
+     * Writes the bytes of a buffer from its position to its limit, leaving them unchanged.
+     * @return the sequence of the message
+     */
+    public synchronized long write(ByteBuffer src) {
+        int length = src.remaining();
+        checkWritable(length);
+        if (src.isDirect()) {
+            return NativeSharedRing.writeBuffer(mAddress, src, src.position(), length);
+        }
+        return NativeSharedRing.writeArray(mAddress, src.array(), src.arrayOffset()
+                + src.position(), length);
+    }
+
+    /**
+     * @return the sequence of the message
+     */
+    public synchronized long write(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException("Bytes " + offset + " to " + (offset + length)
+                    + " out of " + bytes.length);
+        }
+        checkWritable(length);
+        return NativeSharedRing.writeArray(mAddress, bytes, offset, length);
+    }
+
+    /**
+     * Unmaps and closes the region. Consumers keep their own mapping until they close their
+     * reader, but no message will come anymore.
+     */
+    public synchronized void close() {
+        if (mAddress == 0) {
+            return;
+        }
+        NativeSharedRing.unmap(mAddress, mRegionSize);
+        mAddress = 0;
+        mRegion.close();
+    }
+
+    private void checkWritable(int length) {
+        if (mAddress == 0) {
+            throw new IllegalStateException("Ring closed");
+        }
+        if (length > mSlotSize) {
+            throw new IllegalArgumentException("Message of " + length + " bytes larger than the "
+                    + mSlotSize + " bytes slots");
+        }
+    }
+}
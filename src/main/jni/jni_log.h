@@ -0,0 +1,23 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+
+#ifndef JNI_LOG_H
+#define JNI_LOG_H
+
+// Logs to logcat on Android, to stderr when built for the host JVM tests
+#ifdef __ANDROID__
+#include <android/log.h>
+#define LOG_ERROR(tag, ...) __android_log_print(ANDROID_LOG_ERROR, tag, __VA_ARGS__)
+#define LOG_WARN(tag, ...) __android_log_print(ANDROID_LOG_WARN, tag, __VA_ARGS__)
+#else
+#include <stdio.h>
+#define LOG_PRINT(level, tag, ...) \
+    (fprintf(stderr, "%s/%s: ", level, tag), fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#define LOG_ERROR(tag, ...) LOG_PRINT("E", tag, __VA_ARGS__)
+#define LOG_WARN(tag, ...) LOG_PRINT("W", tag, __VA_ARGS__)
+#endif
+
+#endif // JNI_LOG_H
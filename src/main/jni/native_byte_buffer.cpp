@@ -7,32 +7,93 @@
  */
 
 #include <jni.h>
+#include <stdint.h>
+#include <stdlib.h>
 #include <sys/mman.h>
 #include <string.h>
 #include <errno.h>
-#include <string.h>
-#include <android/log.h>
+#include <unistd.h>
+#include "jni_log.h"
 
 extern "C" {
 
-JNIEXPORT jobject JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_fdToByteBuffer(
-    JNIEnv * env, jobject /*thiz*/, jint fd, jint size) {
-    void * ptr = mmap(0, size, PROT_READ, MAP_SHARED, static_cast<int>(fd), 0);
+// Flags of NativeByteBuffer.adoptWritable
+static const jint PREFAULT = 1;
+static const jint LOCK = 2;
+static const jint HUGE_PAGES = 4;
+
+static void tunePages(void * ptr, jint size, jint flags) {
+    // Advised before any fault, pages populated afterwards are allocated huge when possible
+    if ((flags & HUGE_PAGES) != 0 && madvise(ptr, size, MADV_HUGEPAGE) != 0) {
+        LOG_WARN("JniNativeByteBuffer",
+                 "no transparent huge pages for %d bytes, error %d", size, errno);
+    }
+    if ((flags & PREFAULT) != 0) {
+        madvise(ptr, size, MADV_WILLNEED);
+        // MAP_POPULATE would fault the pages before the huge pages advice, touching them
+        // instead. Each page is written back with its own content to be mapped writable.
+        long page = sysconf(_SC_PAGESIZE);
+        volatile uint8_t * bytes = static_cast<volatile uint8_t *>(ptr);
+        for (long offset = 0; offset < size; offset += page) {
+            bytes[offset] = bytes[offset];
+        }
+    }
+    if ((flags & LOCK) != 0 && mlock(ptr, size) != 0) {
+        LOG_WARN("JniNativeByteBuffer",
+                 "failed to lock %d bytes, error %d", size, errno);
+    }
+}
+
+static jobject mapToByteBuffer(JNIEnv * env, jint fd, jint size, int prot, jint flags) {
+    void * ptr = mmap(0, size, prot, MAP_SHARED, static_cast<int>(fd), 0);
     if (ptr == MAP_FAILED) {
-        __android_log_print(ANDROID_LOG_ERROR, "JniNativeByteBuffer",
-                            "fdByteToBuffer failed to mmap on fd %d error %d", fd, errno);
+        LOG_ERROR("JniNativeByteBuffer",
+                  "fdByteToBuffer failed to mmap on fd %d error %d", fd, errno);
         return NULL;
     }
-    // TODO(thomas): check mmap failures and handle errors somehow
+    if (flags != 0) {
+        tunePages(ptr, size, flags);
+    }
     jobject bb = env->NewDirectByteBuffer(reinterpret_cast<void*>(ptr), size);
     if (bb == NULL) {
-        __android_log_print(ANDROID_LOG_ERROR, "JniNativeByteBuffer",
-            "NewDirectByteBuffer failed");
+        LOG_ERROR("JniNativeByteBuffer",
+                  "NewDirectByteBuffer failed");
+        munmap(ptr, size);
         return NULL;
     }
     return bb;
 }
 
+JNIEXPORT jobject JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_fdToByteBuffer(
+    JNIEnv * env, jobject /*thiz*/, jint fd, jint size) {
+    return mapToByteBuffer(env, fd, size, PROT_READ, 0);
+}
+
+JNIEXPORT jobject JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_fdToWritableByteBuffer(
+    JNIEnv * env, jobject /*thiz*/, jint fd, jint size, jint flags) {
+    return mapToByteBuffer(env, fd, size, PROT_READ | PROT_WRITE, flags);
+}
+
+JNIEXPORT jint JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_countMissingPages(
+    JNIEnv * env, jclass /*clazz*/, jobject byte_buffer, jint size) {
+    void * addr = env->GetDirectBufferAddress(byte_buffer);
+    long page = sysconf(_SC_PAGESIZE);
+    size_t pages = (static_cast<size_t>(size) + page - 1) / page;
+    unsigned char * resident = static_cast<unsigned char *>(malloc(pages));
+    if (resident == NULL || mincore(addr, size, resident) != 0) {
+        free(resident);
+        return -1;
+    }
+    jint missing = 0;
+    for (size_t i = 0; i < pages; i++) {
+        if ((resident[i] & 1) == 0) {
+            missing++;
+        }
+    }
+    free(resident);
+    return missing;
+}
+
 JNIEXPORT jint JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_munmapByteBuffer(
     JNIEnv * env, jobject /*thiz*/, jobject byte_buffer, jint size) {
     void * addr = env->GetDirectBufferAddress(byte_buffer);
@@ -44,18 +105,72 @@ JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_N
     JNIEnv *env, jobject /*thiz*/, jbyteArray src, jint destFd)
 {
     jsize array_length = env->GetArrayLength(src);
-    jbyte* buffer_ptr = env->GetByteArrayElements(src, NULL);
     // mmap to get a pointer from the file descriptor
     void *dst_ptr = mmap(0, array_length, PROT_READ | PROT_WRITE, MAP_SHARED, static_cast<int>(destFd), 0);
     if (dst_ptr == MAP_FAILED) {
-        __android_log_print(ANDROID_LOG_ERROR, "JniNativeByteBuffer",
-                            "map (size = %d, fd = %d) failed with errno = %d", array_length, destFd, errno);
+        LOG_ERROR("JniNativeByteBuffer",
+                  "map (size = %d, fd = %d) failed with errno = %d", array_length, destFd, errno);
         return;
-    } else {
-        memcpy(dst_ptr, buffer_ptr, array_length);
     }
+    // Copied once, straight from the array, which is neither pinned nor copied back
+    env->GetByteArrayRegion(src, 0, array_length, reinterpret_cast<jbyte*>(dst_ptr));
     munmap(dst_ptr, array_length);
-    env->ReleaseByteArrayElements(src, buffer_ptr, 0);
+}
+
+JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_gatherBuffers(
+    JNIEnv * env, jclass /*clazz*/, jobject dst, jint dstOffset, jobjectArray srcs,
+    jintArray srcOffsets, jintArray lengths)
+{
+    // Bounds are checked on the Java side
+    uint8_t * out = static_cast<uint8_t *>(env->GetDirectBufferAddress(dst)) + dstOffset;
+    jsize count = env->GetArrayLength(srcs);
+    jint * offsets = env->GetIntArrayElements(srcOffsets, NULL);
+    jint * sizes = env->GetIntArrayElements(lengths, NULL);
+    for (jsize i = 0; i < count; i++) {
+        jobject src = env->GetObjectArrayElement(srcs, i);
+        const uint8_t * in = static_cast<const uint8_t *>(env->GetDirectBufferAddress(src));
+        memcpy(out, in + offsets[i], sizes[i]);
+        out += sizes[i];
+        env->DeleteLocalRef(src);
+    }
+    env->ReleaseIntArrayElements(lengths, sizes, JNI_ABORT);
+    env->ReleaseIntArrayElements(srcOffsets, offsets, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_scatterBuffers(
+    JNIEnv * env, jclass /*clazz*/, jobject src, jint srcOffset, jobjectArray dsts,
+    jintArray dstOffsets, jintArray lengths)
+{
+    // Bounds are checked on the Java side
+    const uint8_t * in = static_cast<const uint8_t *>(env->GetDirectBufferAddress(src)) + srcOffset;
+    jsize count = env->GetArrayLength(dsts);
+    jint * offsets = env->GetIntArrayElements(dstOffsets, NULL);
+    jint * sizes = env->GetIntArrayElements(lengths, NULL);
+    for (jsize i = 0; i < count; i++) {
+        jobject dst = env->GetObjectArrayElement(dsts, i);
+        uint8_t * out = static_cast<uint8_t *>(env->GetDirectBufferAddress(dst));
+        memcpy(out + offsets[i], in, sizes[i]);
+        in += sizes[i];
+        env->DeleteLocalRef(dst);
+    }
+    env->ReleaseIntArrayElements(lengths, sizes, JNI_ABORT);
+    env->ReleaseIntArrayElements(dstOffsets, offsets, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_copyFromArray(
+    JNIEnv * env, jclass /*clazz*/, jobject dst, jint dstOffset, jbyteArray src, jint srcOffset,
+    jint length)
+{
+    jbyte * out = static_cast<jbyte *>(env->GetDirectBufferAddress(dst));
+    env->GetByteArrayRegion(src, srcOffset, length, out + dstOffset);
+}
+
+JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeByteBuffer_copyToArray(
+    JNIEnv * env, jclass /*clazz*/, jobject src, jint srcOffset, jbyteArray dst, jint dstOffset,
+    jint length)
+{
+    const jbyte * in = static_cast<const jbyte *>(env->GetDirectBufferAddress(src));
+    env->SetByteArrayRegion(dst, dstOffset, length, in + srcOffset);
 }
 
 }   // extern C
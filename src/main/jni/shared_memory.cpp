@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+
+#include <jni.h>
+#include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <string.h>
+#include <errno.h>
+#include "jni_log.h"
+
+// Shared memory regions of SharedMemoryBuffer, created with memfd_create when the kernel has it
+// (3.17+) and with ashmem otherwise. Neither needs the hidden APIs of MemoryFile.
+//
+// Sealing keeps the consumers from writing to a region: with memfd the size and any new
+// writable mapping are sealed (F_SEAL_FUTURE_WRITE, 5.1+), with ashmem the protection mask
+// is reduced to reading. Mappings made before sealing, the producer's one, stay writable.
+
+#ifndef MFD_CLOEXEC
+#define MFD_CLOEXEC 0x0001U
+#endif
+#ifndef MFD_ALLOW_SEALING
+#define MFD_ALLOW_SEALING 0x0002U
+#endif
+#ifndef F_ADD_SEALS
+#define F_ADD_SEALS (1024 + 9)
+#endif
+#ifndef F_SEAL_SHRINK
+#define F_SEAL_SHRINK 0x0002
+#endif
+#ifndef F_SEAL_GROW
+#define F_SEAL_GROW 0x0004
+#endif
+#ifndef F_SEAL_FUTURE_WRITE
+#define F_SEAL_FUTURE_WRITE 0x0010
+#endif
+
+// From linux/ashmem.h, not part of the NDK
+#define ASHMEM_NAME_LEN 256
+#define ASHMEM_SET_NAME _IOW(0x77, 1, char[ASHMEM_NAME_LEN])
+#define ASHMEM_SET_SIZE _IOW(0x77, 3, size_t)
+#define ASHMEM_SET_PROT_MASK _IOW(0x77, 5, unsigned long)
+
+static const char * TAG = "JniSharedMemory";
+
+static int createMemfd(const char * name, jint size) {
+#ifdef __NR_memfd_create
+    int fd = static_cast<int>(syscall(__NR_memfd_create, name, MFD_CLOEXEC | MFD_ALLOW_SEALING));
+    if (fd < 0) {
+        return -1;
+    }
+    if (ftruncate(fd, size) != 0) {
+        LOG_ERROR(TAG, "ftruncate of memfd to %d bytes failed with errno %d", size, errno);
+        close(fd);
+        return -1;
+    }
+    return fd;
+#else
+    (void) name;
+    (void) size;
+    errno = ENOSYS;
+    return -1;
+#endif
+}
+
+static int createAshmem(const char * name, jint size) {
+    int fd = open("/dev/ashmem", O_RDWR | O_CLOEXEC);
+    if (fd < 0) {
+        return -1;
+    }
+    char buf[ASHMEM_NAME_LEN];
+    strncpy(buf, name, sizeof(buf) - 1);
+    buf[sizeof(buf) - 1] = '\0';
+    ioctl(fd, ASHMEM_SET_NAME, buf);
+    if (ioctl(fd, ASHMEM_SET_SIZE, static_cast<size_t>(size)) < 0) {
+        LOG_ERROR(TAG, "ashmem of %d bytes failed with errno %d", size, errno);
+        close(fd);
+        return -1;
+    }
+    return fd;
+}
+
+extern "C" {
+
+JNIEXPORT jint JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedMemory_create(
+    JNIEnv * env, jclass /*clazz*/, jstring name, jint size) {
+    const char * chars = env->GetStringUTFChars(name, NULL);
+    if (chars == NULL) {
+        return -1;
+    }
+    int fd = createMemfd(chars, size);
+    if (fd < 0) {
+        fd = createAshmem(chars, size);
+    }
+    if (fd < 0) {
+        LOG_ERROR(TAG, "no shared memory of %d bytes, errno %d", size, errno);
+    }
+    env->ReleaseStringUTFChars(name, chars);
+    return fd;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedMemory_seal(
+    JNIEnv * /*env*/, jclass /*clazz*/, jint fd) {
+    if (fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_FUTURE_WRITE) == 0) {
+        return JNI_TRUE;
+    }
+    if (errno == EINVAL && fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW) == 0) {
+        // Kernel without F_SEAL_FUTURE_WRITE, consumers could still map the region writable
+        return JNI_FALSE;
+    }
+    // Not a memfd
+    return ioctl(fd, ASHMEM_SET_PROT_MASK, static_cast<unsigned long>(PROT_READ)) == 0
+           ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedMemory_close(
+    JNIEnv * /*env*/, jclass /*clazz*/, jint fd) {
+    close(fd);
+}
+
+}   // extern C
@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+
+#include <jni.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+#include <unistd.h>
+#include <limits.h>
+#include <stdint.h>
+#include <string.h>
+#include <errno.h>
+#include <time.h>
+#include "jni_log.h"
+
+// Ring of messages inside a single shared memory region, written by one producer and read by
+// any number of consumers, each with its own cursor. Binder is only used to give the region to
+// the consumers, messages go through the memory only.
+//
+// Layout, each counter on its own cache line so that producer and consumers do not share lines
+// they write:
+//   line 0: RingInfo, immutable once initialized
+//   line 1: head, sequence of the next message to be written
+//   line 2: futex word, incremented after each message, waited on by the consumers
+//   line 3: number of consumers waiting on the futex, the producer only wakes them if needed
+//   slots:  slot_count slots, each a SlotHeader line followed by slot_size bytes rounded up to
+//           cache lines
+//
+// Each slot is a seqlock: its sequence is odd while the producer writes it, and 2 * (n + 1) once
+// it holds message n. Consumers copy the message and check the sequence did not move meanwhile,
+// a message overwritten while being read is counted as lost. The producer never waits for the
+// consumers, the ones falling more than slot_count messages behind lose the oldest ones.
+
+namespace {
+
+const char * const TAG = "JniSharedRing";
+const uint32_t RING_MAGIC = 0x4b52494e; // "KRIN"
+const uint32_t RING_VERSION = 1;
+const size_t CACHE_LINE = 64;
+const size_t HEADER_SIZE = 4 * CACHE_LINE;
+
+struct RingInfo {
+    uint32_t magic;
+    uint32_t version;
+    uint32_t slot_count;
+    uint32_t slot_size;
+};
+
+struct SlotHeader {
+    uint64_t sequence;
+    uint32_t length;
+};
+
+// Read results, see SharedRingReader
+const jint READ_EMPTY = -1;
+
+inline size_t roundToCacheLine(size_t size) {
+    return (size + CACHE_LINE - 1) & ~(CACHE_LINE - 1);
+}
+
+inline size_t slotStride(uint32_t slot_size) {
+    return CACHE_LINE + roundToCacheLine(slot_size);
+}
+
+inline RingInfo * info(uint8_t * base) {
+    return reinterpret_cast<RingInfo *>(base);
+}
+
+inline uint64_t * head(uint8_t * base) {
+    return reinterpret_cast<uint64_t *>(base + CACHE_LINE);
+}
+
+inline int32_t * futexWord(uint8_t * base) {
+    return reinterpret_cast<int32_t *>(base + 2 * CACHE_LINE);
+}
+
+inline int32_t * waiters(uint8_t * base) {
+    return reinterpret_cast<int32_t *>(base + 3 * CACHE_LINE);
+}
+
+inline SlotHeader * slot(uint8_t * base, uint64_t sequence) {
+    const RingInfo * ring = info(base);
+    size_t index = static_cast<size_t>(sequence % ring->slot_count);
+    return reinterpret_cast<SlotHeader *>(base + HEADER_SIZE + index * slotStride(ring->slot_size));
+}
+
+inline uint8_t * payload(SlotHeader * header) {
+    return reinterpret_cast<uint8_t *>(header) + CACHE_LINE;
+}
+
+inline uint8_t * toBase(jlong address) {
+    return reinterpret_cast<uint8_t *>(static_cast<intptr_t>(address));
+}
+
+int futex(int32_t * word, int op, int32_t value, const struct timespec * timeout) {
+    // Not FUTEX_PRIVATE_FLAG, waiters and wakers live in different processes
+    return static_cast<int>(syscall(__NR_futex, word, op, value, timeout, NULL, 0));
+}
+
+// Reserves the slot of the next message, the caller then fills the payload and commits it
+SlotHeader * beginWrite(uint8_t * base, uint64_t * sequence) {
+    *sequence = __atomic_load_n(head(base), __ATOMIC_RELAXED);
+    SlotHeader * header = slot(base, *sequence);
+    // Odd while written, readers of the previous message of this slot see it changing
+    __atomic_store_n(&header->sequence, 2 * *sequence + 1, __ATOMIC_RELAXED);
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+    return header;
+}
+
+void commitWrite(uint8_t * base, SlotHeader * header, uint64_t sequence, uint32_t length) {
+    header->length = length;
+    __atomic_store_n(&header->sequence, 2 * (sequence + 1), __ATOMIC_RELEASE);
+    __atomic_store_n(head(base), sequence + 1, __ATOMIC_SEQ_CST);
+    __atomic_add_fetch(futexWord(base), 1, __ATOMIC_SEQ_CST);
+    if (__atomic_load_n(waiters(base), __ATOMIC_SEQ_CST) > 0) {
+        futex(futexWord(base), FUTEX_WAKE, INT_MAX, NULL);
+    }
+}
+
+}   // namespace
+
+extern "C" {
+
+JNIEXPORT jlong JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_regionSize(
+    JNIEnv * /*env*/, jclass /*clazz*/, jint slotCount, jint slotSize) {
+    return static_cast<jlong>(HEADER_SIZE + static_cast<size_t>(slotCount) * slotStride(slotSize));
+}
+
+JNIEXPORT jlong JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_map(
+    JNIEnv * /*env*/, jclass /*clazz*/, jint fd, jint size) {
+    // Writable on the consumer side too, futexes need it on older kernels
+    void * ptr = mmap(0, size, PROT_READ | PROT_WRITE, MAP_SHARED, static_cast<int>(fd), 0);
+    if (ptr == MAP_FAILED) {
+        LOG_ERROR(TAG, "map of fd %d (size %d) failed with errno %d",
+                  fd, size, errno);
+        return 0;
+    }
+    return static_cast<jlong>(reinterpret_cast<intptr_t>(ptr));
+}
+
+JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_unmap(
+    JNIEnv * /*env*/, jclass /*clazz*/, jlong address, jint size) {
+    munmap(toBase(address), size);
+}
+
+JNIEXPORT void JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_init(
+    JNIEnv * /*env*/, jclass /*clazz*/, jlong address, jint slotCount, jint slotSize) {
+    uint8_t * base = toBase(address);
+    memset(base, 0, HEADER_SIZE);
+    RingInfo * ring = info(base);
+    ring->slot_count = static_cast<uint32_t>(slotCount);
+    ring->slot_size = static_cast<uint32_t>(slotSize);
+    ring->version = RING_VERSION;
+    for (uint32_t i = 0; i < ring->slot_count; i++) {
+        // No message yet
+        slot(base, i)->sequence = 0;
+    }
+    // Published last, consumers check it before anything else
+    __atomic_store_n(&ring->magic, RING_MAGIC, __ATOMIC_RELEASE);
+}
+
+JNIEXPORT jint JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_getSlotCount(
+    JNIEnv * /*env*/, jclass /*clazz*/, jlong address, jint regionSize) {
+    uint8_t * base = toBase(address);
+    const RingInfo * ring = info(base);
+    if (static_cast<size_t>(regionSize) < HEADER_SIZE
+            || __atomic_load_n(&ring->magic, __ATOMIC_ACQUIRE) != RING_MAGIC
+            || ring->version != RING_VERSION || ring->slot_count == 0
+            || HEADER_SIZE + ring->slot_count * slotStride(ring->slot_size)
+               > static_cast<size_t>(regionSize)) {
+        return -1;
+    }
+    return static_cast<jint>(ring->slot_count);
+}
+
+JNIEXPORT jint JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_getSlotSize(
+    JNIEnv * /*env*/, jclass /*clazz*/, jlong address) {
+    return static_cast<jint>(info(toBase(address))->slot_size);
+}
+
+JNIEXPORT jlong JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_getHead(
+    JNIEnv * /*env*/, jclass /*clazz*/, jlong address) {
+    return static_cast<jlong>(__atomic_load_n(head(toBase(address)), __ATOMIC_ACQUIRE));
+}
+
+JNIEXPORT jlong JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_writeBuffer(
+    JNIEnv * env, jclass /*clazz*/, jlong address, jobject src, jint offset, jint length) {
+    uint8_t * base = toBase(address);
+    const uint8_t * bytes = static_cast<const uint8_t *>(env->GetDirectBufferAddress(src));
+    uint64_t sequence;
+    SlotHeader * header = beginWrite(base, &sequence);
+    memcpy(payload(header), bytes + offset, length);
+    commitWrite(base, header, sequence, static_cast<uint32_t>(length));
+    return static_cast<jlong>(sequence);
+}
+
+JNIEXPORT jlong JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_writeArray(
+    JNIEnv * env, jclass /*clazz*/, jlong address, jbyteArray src, jint offset, jint length) {
+    uint8_t * base = toBase(address);
+    uint64_t sequence;
+    SlotHeader * header = beginWrite(base, &sequence);
+    // Copied straight into the slot
+    env->GetByteArrayRegion(src, offset, length, reinterpret_cast<jbyte *>(payload(header)));
+    commitWrite(base, header, sequence, static_cast<uint32_t>(length));
+    return static_cast<jlong>(sequence);
+}
+
+// cursor[0]: sequence of the next message to read, cursor[1]: count of lost messages
+JNIEXPORT jint JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_read(
+    JNIEnv * env, jclass /*clazz*/, jlong address, jlongArray cursorArray, jobject dst) {
+    uint8_t * base = toBase(address);
+    const RingInfo * ring = info(base);
+    uint8_t * out = static_cast<uint8_t *>(env->GetDirectBufferAddress(dst));
+    jlong cursor[2];
+    env->GetLongArrayRegion(cursorArray, 0, 2, cursor);
+    uint64_t next = static_cast<uint64_t>(cursor[0]);
+    jint result = READ_EMPTY;
+    while (true) {
+        uint64_t written = __atomic_load_n(head(base), __ATOMIC_ACQUIRE);
+        if (next >= written) {
+            break;
+        }
+        if (written - next > ring->slot_count) {
+            // Overwritten before being read
+            cursor[1] += written - ring->slot_count - next;
+            next = written - ring->slot_count;
+        }
+        SlotHeader * header = slot(base, next);
+        uint64_t before = __atomic_load_n(&header->sequence, __ATOMIC_ACQUIRE);
+        if (before != 2 * (next + 1)) {
+            // Being overwritten, the producer lapped us
+            cursor[1]++;
+            next++;
+            continue;
+        }
+        uint32_t length = header->length;
+        if (length > ring->slot_size) {
+            length = ring->slot_size;
+        }
+        memcpy(out, payload(header), length);
+        __atomic_thread_fence(__ATOMIC_ACQUIRE);
+        uint64_t after = __atomic_load_n(&header->sequence, __ATOMIC_RELAXED);
+        next++;
+        if (after != before) {
+            // Torn copy
+            cursor[1]++;
+            continue;
+        }
+        result = static_cast<jint>(length);
+        break;
+    }
+    cursor[0] = static_cast<jlong>(next);
+    env->SetLongArrayRegion(cursorArray, 0, 2, cursor);
+    return result;
+}
+
+// Returns true if a message after the cursor is available, false on timeout
+JNIEXPORT jboolean JNICALL Java_com_keecker_services_interfaces_utils_sharedmemory_NativeSharedRing_await(
+    JNIEnv * /*env*/, jclass /*clazz*/, jlong address, jlong cursor, jlong timeoutNs) {
+    uint8_t * base = toBase(address);
+    struct timespec deadline;
+    clock_gettime(CLOCK_MONOTONIC, &deadline);
+    deadline.tv_sec += static_cast<time_t>(timeoutNs / 1000000000LL);
+    deadline.tv_nsec += static_cast<long>(timeoutNs % 1000000000LL);
+    if (deadline.tv_nsec >= 1000000000L) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000L;
+    }
+    __atomic_add_fetch(waiters(base), 1, __ATOMIC_SEQ_CST);
+    jboolean available = JNI_FALSE;
+    while (true) {
+        // Read before checking the head, a message written afterwards changes it and the wait
+        // returns right away
+        int32_t word = __atomic_load_n(futexWord(base), __ATOMIC_SEQ_CST);
+        if (__atomic_load_n(head(base), __ATOMIC_SEQ_CST) > static_cast<uint64_t>(cursor)) {
+            available = JNI_TRUE;
+            break;
+        }
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        struct timespec remaining;
+        remaining.tv_sec = deadline.tv_sec - now.tv_sec;
+        remaining.tv_nsec = deadline.tv_nsec - now.tv_nsec;
+        if (remaining.tv_nsec < 0) {
+            remaining.tv_sec--;
+            remaining.tv_nsec += 1000000000L;
+        }
+        if (remaining.tv_sec < 0) {
+            break;
+        }
+        // Relative timeout for FUTEX_WAIT
+        if (futex(futexWord(base), FUTEX_WAIT, word, &remaining) != 0
+                && errno != EAGAIN && errno != EINTR && errno != ETIMEDOUT) {
+            LOG_ERROR(TAG, "futex wait failed with errno %d", errno);
+            break;
+        }
+    }
+    __atomic_sub_fetch(waiters(base), 1, __ATOMIC_SEQ_CST);
+    return available;
+}
+
+}   // extern C
@@ -0,0 +1,415 @@
+package com.keecker.services.interfaces
+
+import android.os.IBinder
+import android.os.Parcelable
+import com.keecker.services.interfaces.common.utils.map.Pose
+import com.keecker.services.interfaces.navigation.*
+import com.keecker.services.interfaces.utils.IIpcSubscriber
+import com.keecker.services.interfaces.utils.IpcMessage
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+import java.lang.AssertionError
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+
+class MovementClientTest {
+
+    data class ManualCommand(val doControl: Boolean, val linear: Double, val angular: Double)
+
+    @Test
+    fun `sends only the latest velocity command when the Service is busy`() = runBlocking<Unit> {
+        val commands = Collections.synchronizedList(ArrayList<ManualCommand>())
+        val firstCallStarted = CompletableDeferred<Unit>()
+        val release = CountDownLatch(1)
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun setManualCommand(doControl: Boolean, linear: Double, angular: Double) {
+                firstCallStarted.complete(Unit)
+                release.await()
+                commands.add(ManualCommand(doControl, linear, angular))
+            }
+        })
+        client.setVelocity(0.05, 0.0)
+        withTimeout(1000) { firstCallStarted.await() }
+
+        // Given while the first one is still being sent
+        for (i in 2..10) {
+            client.setVelocity(0.05 * i, 0.0)
+        }
+        release.countDown()
+        client.stop()
+
+        // The intermediate commands have been replaced by the latest one
+        assertEquals(ManualCommand(true, 0.1, 0.0), commands.first())
+        assertEquals(ManualCommand(false, 0.0, 0.0), commands.last())
+        for (command in commands.subList(1, commands.size - 1)) {
+            assertEquals(ManualCommand(true, 1.0, 0.0), command)
+        }
+    }
+
+    @Test
+    fun `repeats the latest velocity command for a while`() = runBlocking<Unit> {
+        val commands = Collections.synchronizedList(ArrayList<ManualCommand>())
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun setManualCommand(doControl: Boolean, linear: Double, angular: Double) {
+                commands.add(ManualCommand(doControl, linear, angular))
+            }
+        }, velocityHoldMs = 400)
+        client.setVelocity(0.25, 1.5)
+        delay(300)
+        // Sent at least every 100 ms as required by the Service
+        assertTrue(commands.size >= 3)
+        assertTrue(commands.all { it == ManualCommand(true, 0.5, 0.5) })
+
+        // No longer repeated when not updated
+        delay(200)
+        val count = commands.size
+        delay(200)
+        assertEquals(count, commands.size)
+    }
+
+    @Test
+    fun `repeats the latest velocity command shortly by default`() = runBlocking<Unit> {
+        val commands = Collections.synchronizedList(ArrayList<ManualCommand>())
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun setManualCommand(doControl: Boolean, linear: Double, angular: Double) {
+                commands.add(ManualCommand(doControl, linear, angular))
+            }
+        })
+        client.setVelocity(0.25, 1.5)
+        delay(MovementClient.VELOCITY_HOLD_MS + 50)
+        val count = commands.size
+        assertTrue(count <= 1 + MovementClient.VELOCITY_HOLD_MS / MovementClient.VELOCITY_KEEP_ALIVE_MS)
+        delay(200)
+        assertEquals(count, commands.size)
+    }
+
+    @Test
+    fun `stops repeating the velocity command once stopped`() = runBlocking<Unit> {
+        val commands = Collections.synchronizedList(ArrayList<ManualCommand>())
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun setManualCommand(doControl: Boolean, linear: Double, angular: Double) {
+                commands.add(ManualCommand(doControl, linear, angular))
+            }
+        })
+        client.setVelocity(0.25, 0.0)
+        delay(100)
+        client.stop()
+        // Sent once stop() returns
+        assertEquals(ManualCommand(false, 0.0, 0.0), commands.last())
+        val count = commands.size
+        delay(200)
+        assertEquals(count, commands.size)
+    }
+
+    @Test
+    fun `stops repeating the velocity command once closed`() = runBlocking<Unit> {
+        val commands = Collections.synchronizedList(ArrayList<ManualCommand>())
+        val client = MovementClient(MockedKeeckerServiceConnection<IMovementPlannerService>(
+                object : MockedMovementPlannerService() {
+                    override fun setManualCommand(doControl: Boolean, linear: Double, angular: Double) {
+                        commands.add(ManualCommand(doControl, linear, angular))
+                    }
+                }), ProjectorClientTest.MockedApiChecker(), 1000)
+        client.setVelocity(0.25, 0.0)
+        delay(100)
+        client.close()
+        delay(50)
+        val count = commands.size
+        delay(200)
+        assertEquals(count, commands.size)
+
+        // Still sent once closed
+        client.stop()
+        assertEquals(ManualCommand(false, 0.0, 0.0), commands.last())
+        client.setVelocity(0.25, 0.0)
+        delay(100)
+        assertEquals(count + 1, commands.size)
+    }
+
+    @Test
+    fun `completes goals from a single status subscriber`() = runBlocking<Unit> {
+        val subscribers = HashSet<IIpcSubscriber>()
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun goToRelative(x: Double, y: Double, theta: Double, linear_speed: Double,
+                                      angular_speed: Double, sub: IIpcSubscriber?) {
+                subscribers.add(sub!!)
+                sub!!.onNewMessage(status(RelativeGoToStatus(x > 0)))
+            }
+
+            override fun alignToWall(sub: IIpcSubscriber?) {
+                subscribers.add(sub!!)
+                sub!!.onNewMessage(status(AlignToWallStatus(true)))
+            }
+        })
+        assertTrue(client.goToRelative(1.0, 0.0, 0.0))
+        assertFalse(client.goToRelative(-1.0, 0.0, 0.0))
+        assertTrue(client.alignToWall())
+        assertEquals(1, subscribers.size)
+    }
+
+    @Test
+    fun `completes concurrent goals with the status sent to their subscriber`() = runBlocking<Unit> {
+        var goToSubscriber: IIpcSubscriber? = null
+        var alignSubscriber: IIpcSubscriber? = null
+        val goalsSent = CountDownLatch(2)
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun goToRelative(x: Double, y: Double, theta: Double, linear_speed: Double,
+                                      angular_speed: Double, sub: IIpcSubscriber?) {
+                goToSubscriber = sub
+                goalsSent.countDown()
+            }
+
+            override fun alignToWall(sub: IIpcSubscriber?) {
+                alignSubscriber = sub
+                goalsSent.countDown()
+            }
+        })
+        val goTo = async(Dispatchers.Default) { client.goToRelative(1.0, 0.0, 0.0) }
+        val align = async(Dispatchers.Default) { client.alignToWall() }
+        goalsSent.await()
+
+        alignSubscriber!!.onNewMessage(status(AlignToWallStatus(false)))
+        assertFalse(withTimeout(1000) { align.await() })
+        assertFalse(goTo.isCompleted)
+        goToSubscriber!!.onNewMessage(status(RelativeGoToStatus(true)))
+        assertTrue(withTimeout(1000) { goTo.await() })
+    }
+
+    @Test
+    fun `stops keecker when a goal gets cancelled`() = runBlocking<Unit> {
+        val goalSent = CompletableDeferred<Unit>()
+        val stopped = CompletableDeferred<Unit>()
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun goToRelative(x: Double, y: Double, theta: Double, linear_speed: Double,
+                                      angular_speed: Double, sub: IIpcSubscriber?) {
+                goalSent.complete(Unit)
+            }
+
+            override fun stopRobot() {
+                stopped.complete(Unit)
+            }
+        }) as MovementAsyncClient
+        val goTo = client.goToRelativeAsync(1.0, 0.0, 0.0)
+        withTimeout(1000) { goalSent.await() }
+        assertFalse(stopped.isCompleted)
+
+        goTo.cancel(false)
+        withTimeout(1000) { stopped.await() }
+    }
+
+    @Test
+    fun `turns and goes to global goals`() = runBlocking<Unit> {
+        var turns = 0
+        var goals = 0
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun turn(angle: Double, speed: Double, sub: IIpcSubscriber?) {
+                turns += 1
+                sub!!.onNewMessage(status(RelativeGoToStatus(true)))
+            }
+
+            override fun setGlobalGoal(goal: Pose?, sub: IIpcSubscriber?) {
+                goals += 1
+                sub!!.onNewMessage(status(RelativeGoToStatus(goal!!.x > 0)))
+            }
+        })
+        assertTrue(client.turn(Math.PI))
+        assertTrue(client.setGlobalGoal(Pose(1f, 0f, 0f)))
+        assertFalse(client.setGlobalGoal(Pose(-1f, 0f, 0f)))
+        assertEquals(1, turns)
+        assertEquals(2, goals)
+    }
+
+    @Test
+    fun `waits for keecker to be docked`() = runBlocking<Unit> {
+        var subscriber: IIpcSubscriber? = null
+        val goalSent = CompletableDeferred<Unit>()
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun goToChargingStation(sub: IIpcSubscriber?) {
+                subscriber = sub
+                goalSent.complete(Unit)
+            }
+
+            override fun isReturningToChargingStation(): Boolean {
+                return subscriber != null
+            }
+        })
+        assertEquals(false, client.isReturningToChargingStation())
+        val docked = async(Dispatchers.Default) { client.goToChargingStation() }
+        withTimeout(1000) { goalSent.await() }
+        assertEquals(true, client.isReturningToChargingStation())
+
+        // Progress updates do not complete the call
+        subscriber!!.onNewMessage(status(GoToChargingStationStatus.STARTED))
+        subscriber!!.onNewMessage(status(GoToChargingStationStatus.DOCKING))
+        delay(50)
+        assertFalse(docked.isCompleted)
+        subscriber!!.onNewMessage(status(GoToChargingStationStatus.DOCKED))
+        assertTrue(withTimeout(1000) { docked.await() })
+    }
+
+    @Test
+    fun `automatically resubscribes to the path on Service reconnect`() = runBlocking<Unit> {
+        var subscribeCalls = 0
+        val unsubscribed = CompletableDeferred<Unit>()
+        val service = object : MockedMovementPlannerService() {
+            override fun subscribeToPath(sub: IIpcSubscriber?) {
+                subscribeCalls += 1
+            }
+
+            override fun unsubscribeToPath(sub: IIpcSubscriber?) {
+                unsubscribed.complete(Unit)
+            }
+        }
+        val connection = MockedKeeckerServiceConnection<IMovementPlannerService>(service)
+        val client = makeClient(connection = connection)
+        val path = client.pathChannel()
+        withTimeout(1000) { while (subscribeCalls < 1) delay(10) }
+
+        connection.pretendANewServiceConnection(service)
+        assertEquals(2, subscribeCalls)
+
+        path.cancel()
+        withTimeout(1000) { unsubscribed.await() }
+        connection.pretendANewServiceConnection(service)
+        assertEquals(2, subscribeCalls)
+    }
+
+    @Test
+    fun `late status of a cancelled goal does not complete the next one`() = runBlocking<Unit> {
+        val subscribers = ArrayList<IIpcSubscriber>()
+        val stopped = CompletableDeferred<Unit>()
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun goToRelative(x: Double, y: Double, theta: Double, linear_speed: Double,
+                                      angular_speed: Double, sub: IIpcSubscriber?) {
+                synchronized(subscribers) { subscribers.add(sub!!) }
+            }
+
+            override fun stopRobot() {
+                stopped.complete(Unit)
+            }
+        })
+        val first = async(Dispatchers.Default) { client.goToRelative(1.0, 0.0, 0.0) }
+        withTimeout(1000) { while (synchronized(subscribers) { subscribers.size } < 1) delay(10) }
+        first.cancel()
+        withTimeout(1000) { stopped.await() }
+
+        val second = async(Dispatchers.Default) { client.goToRelative(2.0, 0.0, 0.0) }
+        withTimeout(1000) { while (synchronized(subscribers) { subscribers.size } < 2) delay(10) }
+        // The first goal failed once stopped, then the second one succeeds
+        subscribers[0].onNewMessage(status(RelativeGoToStatus(false)))
+        delay(50)
+        assertFalse(second.isCompleted)
+        subscribers[1].onNewMessage(status(RelativeGoToStatus(true)))
+        assertTrue(withTimeout(1000) { second.await() })
+    }
+
+    @Test
+    fun `cancelled goal without late status does not hold the next one`() = runBlocking<Unit> {
+        val subscribers = ArrayList<IIpcSubscriber>()
+        val stopped = CompletableDeferred<Unit>()
+        val client = makeClient(service = object : MockedMovementPlannerService() {
+            override fun goToRelative(x: Double, y: Double, theta: Double, linear_speed: Double,
+                                      angular_speed: Double, sub: IIpcSubscriber?) {
+                synchronized(subscribers) { subscribers.add(sub!!) }
+            }
+
+            override fun turn(angle: Double, speed: Double, sub: IIpcSubscriber?) {
+                synchronized(subscribers) { subscribers.add(sub!!) }
+            }
+
+            override fun stopRobot() {
+                stopped.complete(Unit)
+            }
+        })
+        val first = async(Dispatchers.Default) { client.goToRelative(1.0, 0.0, 0.0) }
+        withTimeout(1000) { while (synchronized(subscribers) { subscribers.size } < 1) delay(10) }
+        first.cancel()
+        withTimeout(1000) { stopped.await() }
+
+        // The service never answers the first goal once stopped
+        val second = async(Dispatchers.Default) { client.turn(1.0, 0.5) }
+        withTimeout(1000) { while (synchronized(subscribers) { subscribers.size } < 2) delay(10) }
+        subscribers[1].onNewMessage(status(RelativeGoToStatus(true)))
+        assertTrue(withTimeout(1000) { second.await() })
+    }
+
+    fun status(payload: Parcelable): IpcMessage {
+        // Shared locally, as if published from this process
+        return IpcMessage(payload, IpcMessage.getClassSignature(payload.javaClass), true)
+    }
+
+    /*
+     * Mocking boiler plate
+     */
+
+    fun makeClient(
+            service: IMovementPlannerService? = null,
+            connection: PersistentServiceConnection<IMovementPlannerService>? = null,
+            apiChecker: ApiChecker? = null,
+            velocityHoldMs: Long = MovementClient.VELOCITY_HOLD_MS
+    ) : MovementCoroutineClient {
+        return MovementClient(
+                connection ?: MockedKeeckerServiceConnection(
+                        service ?: MockedMovementPlannerService()),
+                apiChecker ?: ProjectorClientTest.MockedApiChecker(),
+                velocityHoldMs)
+    }
+
+    open class MockedMovementPlannerService : IMovementPlannerService {
+
+        override fun setManualCommand(doControl: Boolean, linear: Double, angular: Double) {}
+
+        override fun goToRelative(x: Double, y: Double, theta: Double, linear_speed: Double,
+                                  angular_speed: Double, sub: IIpcSubscriber?) {}
+
+        override fun setGlobalGoal(goal: Pose?, sub: IIpcSubscriber?) {}
+
+        override fun subscribeToPath(sub: IIpcSubscriber?) {}
+
+        override fun unsubscribeToPath(sub: IIpcSubscriber?) {}
+
+        override fun subscribeToSafeModeState(sub: IIpcSubscriber?) {}
+
+        override fun unsubscribeToSafeModeState(sub: IIpcSubscriber?) {}
+
+        override fun alignToWall(sub: IIpcSubscriber?) {}
+
+        override fun turn(angle: Double, speed: Double, sub: IIpcSubscriber?) {}
+
+        override fun goToChargingStation(sub: IIpcSubscriber?) {}
+
+        override fun isReturningToChargingStation(): Boolean {
+            return false
+        }
+
+        override fun stopRobot() {}
+
+        override fun asBinder(): IBinder? {
+            return null
+        }
+
+        // All the other methods are not exposed
+
+        override fun disableAvoidance(disable: Boolean) {
+            throw AssertionError("Not exposed")
+        }
+
+        override fun goToGivenChargingStation(goal: Pose?, sub: IIpcSubscriber?) {
+            throw AssertionError("Not exposed")
+        }
+
+        override fun toggleSafeMode(state: SafeModeState?) {
+            throw AssertionError("Not exposed")
+        }
+
+        override fun logDataTo(contentUrl: String?, type: String?) {
+            throw AssertionError("Not exposed")
+        }
+    }
+}
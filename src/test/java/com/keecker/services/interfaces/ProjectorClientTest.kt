@@ -4,7 +4,9 @@ import android.os.IBinder
 import com.keecker.services.interfaces.projection.*
 import com.keecker.services.interfaces.utils.IIpcSubscriber
 import com.keecker.services.interfaces.utils.ILowBatteryNotificationListener
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
 import org.junit.Assert.*
 import org.junit.Test
 import java.lang.AssertionError
@@ -95,6 +97,28 @@ class ProjectorClientTest {
         assertEquals(2, subscribeCalls)
     }
 
+    @Test
+    fun `unsubscribes from projector state when the channel is cancelled`() = runBlocking<Unit> {
+        val subscribed = CompletableDeferred<Unit>()
+        val unsubscribed = CompletableDeferred<Unit>()
+        val client = makeClient(service = object : MockedProjectorService() {
+            override fun subscribeToState(subscriber: IIpcSubscriber?) {
+                subscribed.complete(Unit)
+            }
+
+            override fun unsubscribeToState(subscriber: IIpcSubscriber?) {
+                unsubscribed.complete(Unit)
+            }
+        })
+        val states = client.stateChannel()
+        withTimeout(1000) { subscribed.await() }
+        assertFalse(unsubscribed.isCompleted)
+
+        // The consumer is done, the subscription is released
+        states.cancel()
+        withTimeout(1000) { unsubscribed.await() }
+    }
+
     @Test
     fun `requires the PROJECTOR_ACCESS_STATE feature`() = runBlocking {
         val apiChecker = object : MockedApiChecker() {
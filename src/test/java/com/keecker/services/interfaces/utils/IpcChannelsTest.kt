@@ -0,0 +1,43 @@
+package com.keecker.services.interfaces.utils
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Test
+
+class IpcChannelsTest {
+
+    @Test
+    fun `unsubscribes when cancelled while subscribing`() = runBlocking<Unit> {
+        val subscribing = CompletableDeferred<Unit>()
+        val unsubscribed = CompletableDeferred<Unit>()
+        val channel = GlobalScope.subscriptionChannel<Int, Unit>(Channel.CONFLATED,
+                { },
+                {
+                    subscribing.complete(Unit)
+                    // Subscribed by the service, the answer is still on its way
+                    CompletableDeferred<Unit>().await()
+                },
+                { unsubscribed.complete(Unit) })
+        withTimeout(1000) { subscribing.await() }
+        channel.cancel()
+        withTimeout(1000) { unsubscribed.await() }
+    }
+
+    @Test
+    fun `unsubscribes when subscribing fails`() = runBlocking<Unit> {
+        val unsubscribed = CompletableDeferred<Unit>()
+        val channel = GlobalScope.subscriptionChannel<Int, Unit>(Channel.CONFLATED,
+                { },
+                { throw IllegalStateException("Subscription failed") },
+                { unsubscribed.complete(Unit) })
+        withTimeout(1000) { unsubscribed.await() }
+        // The failure closes the channel
+        withTimeout(1000) {
+            while (!channel.isClosedForReceive) delay(10)
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class IpcConflatedSlotTest {
+
+    private IpcHandlerThread.Delegate<Integer> mDelegate;
+    private IpcHandlerThread<Integer> mIpcHandlerThread;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        mDelegate = (IpcHandlerThread.Delegate<Integer>) mock(IpcHandlerThread.Delegate.class);
+    }
+
+    @After
+    public void after() {
+        if (mIpcHandlerThread != null) {
+            mIpcHandlerThread.interrupt();
+        }
+    }
+
+    @Test
+    public void testKeepsOnlyTheLatestMessage() {
+        IpcConflatedSlot<Integer> slot = new IpcConflatedSlot<>();
+        assertEquals(0, slot.push(1, mDelegate));
+        assertEquals(1, slot.push(2, mDelegate));
+        assertEquals(1, slot.push(3, mDelegate));
+        verify(mDelegate).onMessageDiscarded(1);
+        verify(mDelegate).onMessageDiscarded(2);
+        assertEquals(1, slot.size());
+        assertEquals(Integer.valueOf(3), slot.poll());
+        assertNull(slot.poll());
+        assertEquals(0, slot.size());
+        verify(mDelegate, never()).onMessageDiscarded(3);
+    }
+
+    @Test
+    public void testHandlerGetsTheLatestMessageOfABurst() throws InterruptedException {
+        final CountDownLatch firstMessageHandled = new CountDownLatch(1);
+        final CountDownLatch burstDone = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                if ((Integer) invocation.getArguments()[0] == 0) {
+                    firstMessageHandled.countDown();
+                    burstDone.await();
+                }
+                return null;
+            }
+        }).when(mDelegate).onNewMessage(any(Integer.class));
+        mIpcHandlerThread = new IpcHandlerThread<>(Integer.class, 1, IpcQueueType.CONFLATED,
+                mDelegate, null);
+        mIpcHandlerThread.start();
+
+        // Blocks the handler on the first message
+        mIpcHandlerThread.queue(0);
+        assertTrue(firstMessageHandled.await(500, TimeUnit.MILLISECONDS));
+        // Burst while the handler is busy, only the last one should be handled
+        for (int i = 1; i <= 100; i++) {
+            mIpcHandlerThread.queue(i);
+        }
+        burstDone.countDown();
+        verify(mDelegate, timeout(500)).onNewMessage(100);
+        verify(mDelegate, times(2)).onNewMessage(any(Integer.class));
+        verify(mDelegate, times(99)).onMessageDiscarded(any(Integer.class));
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class IpcDispatcherTest {
+
+    private IpcDispatcher mDispatcher;
+
+    @Before
+    public void before() {
+        mDispatcher = new IpcDispatcher("IpcDispatcherTest", 2);
+    }
+
+    @After
+    public void after() {
+        mDispatcher.shutdown();
+    }
+
+    @Test
+    public void testMessagesHandledInOrder() throws InterruptedException {
+        final int numMessages = 1000;
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(numMessages);
+        final AtomicInteger concurrentCalls = new AtomicInteger();
+        final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+        IpcMessageLoop<Integer> loop = mDispatcher.start(Integer.class, numMessages,
+                IpcQueueType.RING_BUFFER, new DelegateAdapter<Integer>() {
+            @Override
+            public void onNewMessage(Integer msg) {
+                int calls = concurrentCalls.incrementAndGet();
+                maxConcurrentCalls.set(Math.max(maxConcurrentCalls.get(), calls));
+                handled.add(msg);
+                concurrentCalls.decrementAndGet();
+                done.countDown();
+            }
+        }, null);
+        for (int i = 0; i < numMessages; i++) {
+            loop.queue(i);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxConcurrentCalls.get());
+        for (int i = 0; i < numMessages; i++) {
+            assertEquals(Integer.valueOf(i), handled.get(i));
+        }
+        loop.quit();
+    }
+
+    @Test
+    public void testSubscribersShareThreads() throws InterruptedException {
+        final int numLoops = 50;
+        final CountDownLatch done = new CountDownLatch(numLoops);
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        List<IpcMessageLoop<Integer>> loops = new ArrayList<>();
+        for (int i = 0; i < numLoops; i++) {
+            loops.add(mDispatcher.start(Integer.class, 10, IpcQueueType.LINKED,
+                    new DelegateAdapter<Integer>() {
+                @Override
+                public void onNewMessage(Integer msg) {
+                    if (!threads.contains(Thread.currentThread())) {
+                        threads.add(Thread.currentThread());
+                    }
+                    done.countDown();
+                }
+            }, null));
+        }
+        for (IpcMessageLoop<Integer> loop : loops) {
+            loop.queue(0);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(threads.size() <= 2);
+        for (IpcMessageLoop<Integer> loop : loops) {
+            loop.quit();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQuitDrainsAndDiscardsLateMessages() throws InterruptedException {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        IpcHandlerThread.Delegate<Integer> delegate = mock(IpcHandlerThread.Delegate.class);
+        final IpcMessageLoop<Integer> loop = mDispatcher.start(Integer.class, 10,
+                IpcQueueType.LINKED, new ForwardingDelegate<Integer>(delegate) {
+            @Override
+            public void onNewMessage(Integer msg) {
+                super.onNewMessage(msg);
+                handling.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+        }, null);
+        loop.queue(1);
+        assertTrue(handling.await(1, TimeUnit.SECONDS));
+        loop.queue(2);
+        Thread quitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop.quit();
+                } catch (InterruptedException ignored) {}
+            }
+        });
+        quitter.start();
+        Thread.sleep(100);
+        release.countDown();
+        quitter.join(1000);
+        verify(delegate).onNewMessage(1);
+        verify(delegate, never()).onNewMessage(2);
+        verify(delegate).onThreadExit(any(Queue.class));
+        loop.queue(3);
+        verify(delegate).onMessageDiscarded(3);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQuitFromHandler() throws InterruptedException {
+        IpcHandlerThread.Delegate<Integer> delegate = mock(IpcHandlerThread.Delegate.class);
+        final IpcMessageLoop<Integer>[] loop = new IpcMessageLoop[1];
+        loop[0] = mDispatcher.start(Integer.class, 10, IpcQueueType.LINKED,
+                new ForwardingDelegate<Integer>(delegate) {
+            @Override
+            public void onNewMessage(Integer msg) {
+                super.onNewMessage(msg);
+                try {
+                    loop[0].quit();
+                } catch (InterruptedException ignored) {}
+            }
+        }, null);
+        loop[0].queue(1);
+        verify(delegate, timeout(1000)).onThreadExit(any(Queue.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQuitFromAnotherMailboxOfASingleThread() throws InterruptedException {
+        IpcDispatcher dispatcher = new IpcDispatcher("IpcDispatcherTest-single", 1);
+        IpcHandlerThread.Delegate<Integer> delegate = mock(IpcHandlerThread.Delegate.class);
+        final IpcMessageLoop<Integer> other = dispatcher.start(Integer.class, 10,
+                IpcQueueType.LINKED, delegate, null);
+        final CountDownLatch quitReturned = new CountDownLatch(1);
+        IpcMessageLoop<Integer> loop = dispatcher.start(Integer.class, 10, IpcQueueType.LINKED,
+                new DelegateAdapter<Integer>() {
+            @Override
+            public void onNewMessage(Integer msg) {
+                // Scheduled behind this mailbox, on the only thread
+                other.queue(msg);
+                try {
+                    other.quit();
+                } catch (InterruptedException ignored) {}
+                quitReturned.countDown();
+            }
+        }, null);
+        loop.queue(1);
+        assertTrue(quitReturned.await(1, TimeUnit.SECONDS));
+        verify(delegate, timeout(1000)).onThreadExit(any(Queue.class));
+        verify(delegate, never()).onNewMessage(1);
+        loop.quit();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testQuitFromAnotherMailboxWaitsForTheMessageBeingHandled()
+            throws InterruptedException {
+        IpcDispatcher dispatcher = new IpcDispatcher("IpcDispatcherTest-pair", 2);
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean handled = new AtomicBoolean(false);
+        final IpcMessageLoop<Integer> slow = dispatcher.start(Integer.class, 10,
+                IpcQueueType.LINKED, new DelegateAdapter<Integer>() {
+            @Override
+            public void onNewMessage(Integer msg) {
+                handling.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                handled.set(true);
+            }
+        }, null);
+        final CountDownLatch quitReturned = new CountDownLatch(1);
+        final AtomicBoolean handledWhenQuitReturned = new AtomicBoolean(false);
+        IpcMessageLoop<Integer> quitter = dispatcher.start(Integer.class, 10,
+                IpcQueueType.LINKED, new DelegateAdapter<Integer>() {
+            @Override
+            public void onNewMessage(Integer msg) {
+                try {
+                    slow.quit();
+                } catch (InterruptedException ignored) {}
+                handledWhenQuitReturned.set(handled.get());
+                quitReturned.countDown();
+            }
+        }, null);
+        slow.queue(1);
+        assertTrue(handling.await(1, TimeUnit.SECONDS));
+        // Handled by the other thread of the pool
+        quitter.queue(1);
+        assertFalse(quitReturned.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(quitReturned.await(1, TimeUnit.SECONDS));
+        assertTrue(handledWhenQuitReturned.get());
+        quitter.quit();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testDedicatedThread() throws InterruptedException {
+        IpcMessageLoop<Integer> loop = IpcDispatcher.dedicatedThread().start(Integer.class, 10,
+                IpcQueueType.LINKED, new DelegateAdapter<Integer>(), null);
+        assertTrue(loop instanceof IpcHandlerThread);
+        assertTrue(((IpcHandlerThread) loop).isAlive());
+        loop.quit();
+        assertTrue(!((IpcHandlerThread) loop).isAlive());
+    }
+
+    private static class DelegateAdapter<T> implements IpcHandlerThread.Delegate<T> {
+        @Override
+        public void onNewMessage(T msg) {}
+
+        @Override
+        public void onMessageDiscarded(T msg) {}
+
+        @Override
+        public void onThreadExit(Queue<T> remainingMsg) {}
+    }
+
+    private static class ForwardingDelegate<T> implements IpcHandlerThread.Delegate<T> {
+        private final IpcHandlerThread.Delegate<T> mDelegate;
+
+        ForwardingDelegate(IpcHandlerThread.Delegate<T> delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void onNewMessage(T msg) {
+            mDelegate.onNewMessage(msg);
+        }
+
+        @Override
+        public void onMessageDiscarded(T msg) {
+            mDelegate.onMessageDiscarded(msg);
+        }
+
+        @Override
+        public void onThreadExit(Queue<T> remainingMsg) {
+            mDelegate.onThreadExit(remainingMsg);
+        }
+    }
+}
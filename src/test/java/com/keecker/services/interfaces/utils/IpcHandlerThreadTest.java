@@ -8,10 +8,14 @@ package com.keecker.services.interfaces.utils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Queue;
 
 import static junit.framework.Assert.assertEquals;
@@ -24,8 +28,18 @@ import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+@RunWith(Parameterized.class)
 public class IpcHandlerThreadTest {
 
+    // Queues stacking messages up to their size, CONFLATED is tested on its own
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<IpcQueueType> queueTypes() {
+        return Arrays.asList(IpcQueueType.LINKED, IpcQueueType.RING_BUFFER);
+    }
+
+    @Parameterized.Parameter
+    public IpcQueueType mQueueType;
+
     private enum Fruit {
         BANANA, LEMON
     }
@@ -36,7 +50,7 @@ public class IpcHandlerThreadTest {
     @Before
     public void before() {
         mDelegate  = (IpcHandlerThread.Delegate<Fruit>) mock(IpcHandlerThread.Delegate.class);
-        mIpcHandlerThread = new IpcHandlerThread<>(Fruit.class, 10, mDelegate, null);
+        mIpcHandlerThread = new IpcHandlerThread<>(Fruit.class, 10, mQueueType, mDelegate, null);
     }
 
     @After
@@ -77,7 +91,7 @@ public class IpcHandlerThreadTest {
                 return null;
             }
         }).when(mDelegate).onNewMessage(any(Fruit.class));
-        mIpcHandlerThread = new IpcHandlerThread<>(Fruit.class, 10, mDelegate, "");
+        mIpcHandlerThread = new IpcHandlerThread<>(Fruit.class, 10, mQueueType, mDelegate, "");
 
         mIpcHandlerThread.start();
         // Queue 10 BANANAS
@@ -115,7 +129,7 @@ public class IpcHandlerThreadTest {
     @Test
     public void testMessagesGetDiscarded() {
         mDelegate  = (IpcHandlerThread.Delegate<Fruit>) mock(IpcHandlerThread.Delegate.class);
-        mIpcHandlerThread = new IpcHandlerThread<>(Fruit.class, 1, mDelegate, "");
+        mIpcHandlerThread = new IpcHandlerThread<>(Fruit.class, 1, mQueueType, mDelegate, "");
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
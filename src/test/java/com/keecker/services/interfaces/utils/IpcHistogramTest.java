@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class IpcHistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        long previousHighest = -1;
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 1000, 123456789L, Long.MAX_VALUE}) {
+            int index = IpcHistogram.bucketIndex(value);
+            long highest = IpcHistogram.bucketHighestValue(index);
+            assertTrue(value <= highest);
+            // Precision of 1/8
+            assertTrue(highest - value <= value / 8);
+            assertTrue(highest >= previousHighest);
+            previousHighest = highest;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        IpcHistogram histogram = new IpcHistogram();
+        assertEquals(0, histogram.getValueAtPercentileNs(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxNs());
+        assertEquals(500500, histogram.getMeanNs());
+        long p50 = histogram.getValueAtPercentileNs(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 9 / 8);
+        long p99 = histogram.getValueAtPercentileNs(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getValueAtPercentileNs(100));
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IpcPublisherTest {
+
+    private IpcDispatcher mDispatcher;
+    private IpcPublisher<Fruit> mPublisher;
+
+    @Before
+    public void before() {
+        mDispatcher = new IpcDispatcher("IpcPublisherTest", 2);
+        mPublisher = new IpcPublisher<>(Fruit.class, true, mDispatcher, 10, IpcQueueType.LINKED);
+    }
+
+    @After
+    public void after() {
+        mDispatcher.shutdown();
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotDelayOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final IBinder slowBinder = mock(IBinder.class);
+        IIpcSubscriber slow = new IIpcSubscriber.Stub() {
+            @Override
+            public void onNewMessage(IpcMessage message) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+
+            @Override
+            public IBinder asBinder() {
+                return slowBinder;
+            }
+        };
+        IIpcSubscriber fast = mockSubscriber();
+        mPublisher.add(slow);
+        mPublisher.add(fast);
+        for (int i = 0; i < 3; i++) {
+            mPublisher.publish(new Fruit());
+        }
+        verify(fast, timeout(1000).times(3)).onNewMessage(any(IpcMessage.class));
+        // Messages are waiting for the slow subscriber
+        assertEquals(3, mPublisher.getMetrics().getMessagesCount());
+        assertTrue(mPublisher.getMetrics().getQueueDepth() >= 2);
+        assertTrue(IpcMetrics.getAll().contains(mPublisher.getMetrics()));
+        release.countDown();
+        mPublisher.remove(slow);
+        mPublisher.remove(fast);
+        assertEquals(0, mPublisher.getSubscribersCount());
+    }
+
+    @Test
+    public void testDeadSubscriberIsEvicted() throws Exception {
+        IIpcSubscriber dead = mockSubscriber();
+        doThrow(new DeadObjectException()).when(dead).onNewMessage(any(IpcMessage.class));
+        mPublisher.add(dead);
+        assertEquals(1, mPublisher.getSubscribersCount());
+        mPublisher.publish(new Fruit());
+        verify(dead, timeout(1000)).onNewMessage(any(IpcMessage.class));
+        waitForSubscribersCount(0);
+    }
+
+    @Test
+    public void testSubscriberEvictedWhenItsProcessDies() throws Exception {
+        IIpcSubscriber subscriber = mockSubscriber();
+        mPublisher.add(subscriber);
+        ArgumentCaptor<IBinder.DeathRecipient> recipient =
+                ArgumentCaptor.forClass(IBinder.DeathRecipient.class);
+        verify(subscriber.asBinder()).linkToDeath(recipient.capture(), anyInt());
+        recipient.getValue().binderDied();
+        assertEquals(0, mPublisher.getSubscribersCount());
+        mPublisher.publish(new Fruit());
+        Thread.sleep(100);
+        verify(subscriber, times(0)).onNewMessage(any(IpcMessage.class));
+    }
+
+    @Test
+    public void testBatchSentWhenFull() throws Exception {
+        mPublisher.setBatching(3, 10000);
+        BatchRecorder subscriber = new BatchRecorder(1);
+        mPublisher.addBatched(subscriber);
+        for (int i = 0; i < 3; i++) {
+            mPublisher.publish(new Fruit());
+        }
+        assertTrue(subscriber.mReceived.await(1, TimeUnit.SECONDS));
+        assertEquals(3, subscriber.mMessagesCount.get());
+    }
+
+    @Test
+    public void testBatchSentAfterDelay() throws Exception {
+        mPublisher.setBatching(100, 50);
+        BatchRecorder subscriber = new BatchRecorder(1);
+        IIpcSubscriber single = mockSubscriber();
+        mPublisher.addBatched(subscriber);
+        mPublisher.add(single);
+        mPublisher.publish(new Fruit());
+        mPublisher.publish(new Fruit());
+        assertTrue(subscriber.mReceived.await(1, TimeUnit.SECONDS));
+        assertEquals(2, subscriber.mMessagesCount.get());
+        // Flushed by the publisher dispatcher, not by the timer thread of the process
+        assertTrue(subscriber.mThreadName.startsWith("IpcPublisherTest"));
+        // Other subscribers still get messages one by one
+        verify(single, timeout(1000).times(2)).onNewMessage(any(IpcMessage.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBatchingMustBeEnabled() {
+        mPublisher.addBatched(mockSubscriber());
+    }
+
+    private IIpcSubscriber mockSubscriber() {
+        IIpcSubscriber subscriber = mock(IIpcSubscriber.class);
+        when(subscriber.asBinder()).thenReturn(mock(IBinder.class));
+        return subscriber;
+    }
+
+    private void waitForSubscribersCount(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mPublisher.getSubscribersCount() != count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mPublisher.getSubscribersCount());
+    }
+
+    private static class BatchRecorder extends IIpcSubscriber.Stub {
+        final CountDownLatch mReceived;
+        final AtomicInteger mMessagesCount = new AtomicInteger();
+        volatile String mThreadName;
+        private final IBinder mBinder = mock(IBinder.class);
+
+        BatchRecorder(int expectedBatches) {
+            mReceived = new CountDownLatch(expectedBatches);
+        }
+
+        @Override
+        public void onNewMessage(IpcMessage message) {
+            assertEquals(IpcBatch.getBatchSignature(Fruit.class), message.getSignature());
+            IpcBatch<Fruit> batch = message.getPayload(IpcBatch.creator(Fruit.CREATOR));
+            mMessagesCount.addAndGet(batch.getMessages().size());
+            mThreadName = Thread.currentThread().getName();
+            mReceived.countDown();
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return mBinder;
+        }
+    }
+
+    public static class Fruit implements Parcelable {
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {}
+
+        public static final Creator<Fruit> CREATOR = new Creator<Fruit>() {
+            @Override
+            public Fruit createFromParcel(Parcel source) {
+                return new Fruit();
+            }
+
+            @Override
+            public Fruit[] newArray(int size) {
+                return new Fruit[size];
+            }
+        };
+    }
+}
@@ -0,0 +1,158 @@
+package com.keecker.services.interfaces.utils
+
+import com.keecker.services.interfaces.navigation.AlignToWallStatus
+import com.keecker.services.interfaces.navigation.GoToChargingStationStatus
+import com.keecker.services.interfaces.navigation.RelativeGoToStatus
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+
+class IpcRequestSubscriberTest {
+
+    private fun status(success: Boolean): IpcMessage {
+        return IpcMessage(RelativeGoToStatus(success),
+                IpcMessage.getClassSignature(RelativeGoToStatus::class.java), true)
+    }
+
+    @Test
+    fun `completes each request with the status sent to its subscriber`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        val firstSub = CompletableDeferred<IIpcSubscriber>()
+        val first = async(Dispatchers.Default) {
+            subscriber.request(RelativeGoToStatus::class.java, 1000) { firstSub.complete(it); Unit }
+        }
+        val secondSub = CompletableDeferred<IIpcSubscriber>()
+        val second = async(Dispatchers.Default) {
+            subscriber.request(RelativeGoToStatus::class.java, 1000) { secondSub.complete(it); Unit }
+        }
+        withTimeout(1000) { while (subscriber.pendingCount < 2) Thread.yield() }
+        assertNotSame(firstSub.await(), secondSub.await())
+
+        // Answered in the reverse order
+        secondSub.await().onNewMessage(status(false))
+        firstSub.await().onNewMessage(status(true))
+        assertEquals(RelativeGoToStatus(true), first.await())
+        assertEquals(RelativeGoToStatus(false), second.await())
+        assertEquals(0, subscriber.pendingCount)
+    }
+
+    @Test
+    fun `reuses the subscriber of a completed request`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        val used = ArrayList<IIpcSubscriber>()
+        for (i in 0..1) {
+            subscriber.request(RelativeGoToStatus::class.java, 1000) {
+                used.add(it)
+                it.onNewMessage(status(true))
+            }
+        }
+        assertSame(used[0], used[1])
+    }
+
+    @Test
+    fun `completes a request answered before being sent`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        val status = subscriber.request(RelativeGoToStatus::class.java, 1000) {
+            it.onNewMessage(status(true))
+        }
+        assertEquals(RelativeGoToStatus(true), status)
+    }
+
+    @Test
+    fun `waits for the final status`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        val updates = ArrayList<GoToChargingStationStatus>()
+        val status = subscriber.request(GoToChargingStationStatus::class.java, 1000,
+                { updates.add(it); it == GoToChargingStationStatus.DOCKED }) {
+            for (update in GoToChargingStationStatus.values()) {
+                it.onNewMessage(IpcMessage(update,
+                        IpcMessage.getClassSignature(GoToChargingStationStatus::class.java), true))
+            }
+        }
+        assertEquals(GoToChargingStationStatus.DOCKED, status)
+        assertEquals(listOf(GoToChargingStationStatus.STARTED, GoToChargingStationStatus.DOCKING,
+                GoToChargingStationStatus.DOCKED), updates)
+    }
+
+    @Test
+    fun `retires the subscriber of a request that timed out`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        var abandoned: IIpcSubscriber? = null
+        assertNull(subscriber.request(RelativeGoToStatus::class.java, 50) { abandoned = it; Unit })
+        assertEquals(0, subscriber.pendingCount)
+        assertEquals(1, subscriber.retiredCount)
+        subscriber.request(RelativeGoToStatus::class.java, 1000) {
+            assertNotSame(abandoned, it)
+            it.onNewMessage(status(true))
+        }
+    }
+
+    @Test
+    fun `swallows the late status of a request that timed out`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        var abandoned: IIpcSubscriber? = null
+        assertNull(subscriber.request(RelativeGoToStatus::class.java, 50) { abandoned = it; Unit })
+        val status = subscriber.request(RelativeGoToStatus::class.java, 1000) {
+            // Late status of the first request, then the one of this request
+            abandoned!!.onNewMessage(status(false))
+            it.onNewMessage(status(true))
+        }
+        assertEquals(RelativeGoToStatus(true), status)
+        assertEquals(0, subscriber.retiredCount)
+    }
+
+    @Test
+    fun `completes the next request when the late status never comes`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        assertNull(subscriber.request(RelativeGoToStatus::class.java, 50) { })
+        val status = subscriber.request(RelativeGoToStatus::class.java, 1000) {
+            it.onNewMessage(status(true))
+        }
+        assertEquals(RelativeGoToStatus(true), status)
+        // Still waiting for the late status
+        assertEquals(1, subscriber.retiredCount)
+    }
+
+    @Test
+    fun `stops waiting for late statuses after a while`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber(retiredTimeoutMs = 50)
+        var abandoned: IIpcSubscriber? = null
+        assertNull(subscriber.request(RelativeGoToStatus::class.java, 10) { abandoned = it; Unit })
+        assertEquals(1, subscriber.retiredCount)
+        delay(100)
+        assertEquals(0, subscriber.retiredCount)
+        val status = subscriber.request(RelativeGoToStatus::class.java, 1000) {
+            // Too late, dropped
+            abandoned!!.onNewMessage(status(true))
+            it.onNewMessage(status(false))
+        }
+        assertEquals(RelativeGoToStatus(false), status)
+    }
+
+    @Test
+    fun `forgets requests that could not be sent`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        assertNull(subscriber.request(RelativeGoToStatus::class.java, 1000) { null })
+        assertEquals(0, subscriber.pendingCount)
+        assertEquals(0, subscriber.retiredCount)
+    }
+
+    @Test
+    fun `drops statuses nobody waits for`() = runBlocking<Unit> {
+        val subscriber = IpcRequestSubscriber()
+        var completed: IIpcSubscriber? = null
+        subscriber.request(RelativeGoToStatus::class.java, 1000) {
+            completed = it
+            it.onNewMessage(status(true))
+        }
+        completed!!.onNewMessage(status(true))
+        assertNull(subscriber.request(AlignToWallStatus::class.java, 50) {
+            it.onNewMessage(status(true))
+        })
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class IpcRingBufferTest {
+
+    private IpcHandlerThread.Delegate<Integer> mDelegate;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        mDelegate = (IpcHandlerThread.Delegate<Integer>) mock(IpcHandlerThread.Delegate.class);
+    }
+
+    @Test
+    public void testKeepsMessagesInOrder() {
+        IpcRingBuffer<Integer> ring = new IpcRingBuffer<>(4);
+        // Several laps to check the slots get reused
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, ring.push(i, mDelegate));
+            assertEquals(1, ring.size());
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        verify(mDelegate, never()).onMessageDiscarded(0);
+    }
+
+    @Test
+    public void testOverwritesOldestMessagesWhenFull() {
+        IpcRingBuffer<Integer> ring = new IpcRingBuffer<>(3);
+        for (int i = 0; i < 5; i++) {
+            ring.push(i, mDelegate);
+        }
+        verify(mDelegate).onMessageDiscarded(0);
+        verify(mDelegate).onMessageDiscarded(1);
+        assertEquals(3, ring.size());
+        Queue<Integer> remaining = ring.drain();
+        assertEquals(Integer.valueOf(2), remaining.poll());
+        assertEquals(Integer.valueOf(3), remaining.poll());
+        assertEquals(Integer.valueOf(4), remaining.poll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testTakeWaitsForProducers() throws InterruptedException {
+        final IpcRingBuffer<Integer> ring = new IpcRingBuffer<>(2);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {}
+                ring.push(42, mDelegate);
+            }
+        });
+        producer.start();
+        assertEquals(Integer.valueOf(42), ring.take());
+        producer.join();
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void testTakeCanBeInterrupted() throws InterruptedException {
+        final IpcRingBuffer<Integer> ring = new IpcRingBuffer<>(2);
+        Thread.currentThread().interrupt();
+        ring.take();
+    }
+
+    @Test
+    public void testEachMessageIsEitherHandledOrDiscarded() throws InterruptedException {
+        final int numProducers = 4;
+        final int numMessages = 100000;
+        final IpcRingBuffer<Integer> ring = new IpcRingBuffer<>(8);
+        final AtomicLong discardedSum = new AtomicLong();
+        final IpcHandlerThread.Delegate<Integer> delegate = new IpcHandlerThread.Delegate<Integer>() {
+            @Override
+            public void onNewMessage(Integer msg) {}
+
+            @Override
+            public void onMessageDiscarded(Integer msg) {
+                discardedSum.addAndGet(msg);
+            }
+
+            @Override
+            public void onThreadExit(Queue<Integer> remainingMsg) {}
+        };
+        final CountDownLatch producersDone = new CountDownLatch(numProducers);
+        for (int p = 0; p < numProducers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= numMessages; i++) {
+                        ring.push(i, delegate);
+                    }
+                    producersDone.countDown();
+                }
+            }).start();
+        }
+        long handledSum = 0;
+        while (producersDone.getCount() > 0) {
+            Integer msg = ring.poll();
+            if (msg != null) {
+                handledSum += msg;
+            }
+        }
+        for (Integer msg : ring.drain()) {
+            handledSum += msg;
+        }
+        long expectedSum = (long) numProducers * numMessages * (numMessages + 1) / 2;
+        assertEquals(expectedSum, handledSum + discardedSum.get());
+        assertTrue(ring.size() == 0);
+    }
+}
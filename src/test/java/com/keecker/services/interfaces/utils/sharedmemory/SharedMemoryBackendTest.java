@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Buffers backed by {@link SharedMemoryBackend#NATIVE}, memfd on the development machine.
+ * Skipped when the native library was not built for it, see buildHostJni in build.gradle.
+ */
+public class SharedMemoryBackendTest {
+
+    private static final int SIZE = 64 * 1024;
+
+    @BeforeClass
+    public static void loadNativeLibrary() {
+        try {
+            System.loadLibrary("sharedmemory");
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException(e);
+        }
+    }
+
+    @Test
+    public void testConsumersSeeTheContentOfThePool() {
+        SharedMemory<SharedMemoryBuffer> sharedMemory =
+                new SharedMemory<>(SharedMemoryBuffer.class, 4, SIZE);
+        SharedMemoryBuffer buffer = sharedMemory.dequeueBuffer();
+        assertNotNull(buffer);
+        assertTrue(buffer.getFd() >= 0);
+        assertEquals(buffer, sharedMemory.getBufferFromId(buffer.getBufferId()));
+        buffer.getBytes().putInt(SIZE - 4, 42);
+        // Mapped on its own, as by another process
+        ByteBuffer consumer = NativeByteBuffer.adopt(buffer.getFd(), SIZE);
+        assertEquals(42, consumer.getInt(SIZE - 4));
+        NativeByteBuffer.munmapByteBuffer(consumer, SIZE);
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testSealedBuffersAreOnlyWritableByTheirOwner() {
+        SharedMemoryBuffer buffer = new SharedMemoryBuffer(SIZE);
+        // Kernels before 5.1 cannot seal writable mappings
+        Assume.assumeTrue(buffer.seal());
+        assertNull(NativeByteBuffer.adoptWritable(buffer.getFd(), SIZE));
+        buffer.getBytes().putInt(0, 42);
+        ByteBuffer consumer = NativeByteBuffer.adopt(buffer.getFd(), SIZE);
+        assertEquals(42, consumer.getInt(0));
+        NativeByteBuffer.munmapByteBuffer(consumer, SIZE);
+        buffer.close();
+    }
+}
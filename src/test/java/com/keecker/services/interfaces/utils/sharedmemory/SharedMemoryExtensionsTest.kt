@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keecker.services.interfaces.utils.sharedmemory
+
+import kotlinx.coroutines.*
+import org.junit.Assert.*
+import org.junit.Test
+
+class SharedMemoryExtensionsTest {
+
+    @Test
+    fun awaitBufferSuspendsUntilABufferIsGivenBack() = runBlocking {
+        val sharedMemory = SharedMemory(SharedMemoryPoolTest.FakeBuffer::class.java, 1, 16)
+        val buffer = sharedMemory.dequeueBuffer()
+        val awaited = async { sharedMemory.awaitBuffer() }
+        delay(100)
+        assertFalse(awaited.isCompleted)
+        sharedMemory.enqueueBuffer(buffer)
+        assertSame(buffer, withTimeout(5000) { awaited.await() })
+    }
+
+    @Test
+    fun awaitBufferCanBeCancelled() = runBlocking {
+        val sharedMemory = SharedMemory(SharedMemoryPoolTest.FakeBuffer::class.java, 1, 16)
+        val buffer = sharedMemory.dequeueBuffer()
+        assertNull(withTimeoutOrNull(100) { sharedMemory.awaitBuffer() })
+        // The cancelled waiter does not take the released buffer
+        sharedMemory.enqueueBuffer(buffer)
+        assertSame(buffer, sharedMemory.dequeueBuffer())
+    }
+
+    @Test
+    fun awaitBufferReturnsNullOnceDestroyed() = runBlocking {
+        val sharedMemory = SharedMemory(SharedMemoryPoolTest.FakeBuffer::class.java, 1, 16)
+        sharedMemory.dequeueBuffer()
+        val awaited = async { sharedMemory.awaitBuffer() }
+        delay(100)
+        sharedMemory.destroy()
+        assertNull(withTimeout(5000) { awaited.await() })
+    }
+}
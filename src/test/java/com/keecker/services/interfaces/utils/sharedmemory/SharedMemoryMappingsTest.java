@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import android.os.IBinder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+public class SharedMemoryMappingsTest {
+
+    private FakeMapper mMapper;
+    private SharedMemoryMappings mMappings;
+    private IBinder mPublisher;
+
+    private static class FakeMapper implements SharedMemoryMappings.Mapper {
+        final List<ByteBuffer> mapped = new ArrayList<>();
+        final List<ByteBuffer> unmapped = new ArrayList<>();
+        boolean failing = false;
+
+        @Override
+        public ByteBuffer map(int fd, int size) {
+            if (failing) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(size);
+            mapped.add(bytes);
+            return bytes;
+        }
+
+        @Override
+        public void unmap(ByteBuffer bytes, int size) {
+            unmapped.add(bytes);
+        }
+    }
+
+    @Before
+    public void before() {
+        mMapper = new FakeMapper();
+        mMappings = new SharedMemoryMappings(mMapper);
+        mPublisher = mock(IBinder.class);
+    }
+
+    @Test
+    public void testBufferIsMappedOnce() {
+        for (int i = 0; i < 10; i++) {
+            SharedMemoryMappings.Mapping mapping = mMappings.acquire(1, mPublisher, 3, 16);
+            mMappings.release(mapping);
+        }
+        assertEquals(1, mMapper.mapped.size());
+        assertEquals(0, mMapper.unmapped.size());
+        assertEquals(1, mMappings.size());
+    }
+
+    @Test
+    public void testEachMessageHasItsOwnPosition() {
+        SharedMemoryMappings.Mapping mapping = mMappings.acquire(1, mPublisher, 3, 16);
+        ByteBuffer first = mapping.getBytes();
+        first.position(8);
+        assertEquals(0, mapping.getBytes().position());
+        mMappings.release(mapping);
+    }
+
+    @Test
+    public void testSameIdFromAnotherPublisherIsMappedAgain() {
+        SharedMemoryMappings.Mapping first = mMappings.acquire(1, mPublisher, 3, 16);
+        SharedMemoryMappings.Mapping second = mMappings.acquire(1, mock(IBinder.class), 4, 16);
+        assertNotSame(first, second);
+        assertEquals(2, mMapper.mapped.size());
+        // Still used, unmapped once released
+        assertEquals(0, mMapper.unmapped.size());
+        mMappings.release(first);
+        assertEquals(1, mMapper.unmapped.size());
+        assertSame(mMapper.mapped.get(0), mMapper.unmapped.get(0));
+        mMappings.release(second);
+        assertEquals(1, mMapper.unmapped.size());
+        assertEquals(1, mMappings.size());
+    }
+
+    @Test
+    public void testCloseUnmapsOnceReleased() {
+        SharedMemoryMappings.Mapping used = mMappings.acquire(1, mPublisher, 3, 16);
+        SharedMemoryMappings.Mapping unused = mMappings.acquire(2, mPublisher, 4, 16);
+        mMappings.release(unused);
+        mMappings.close();
+        assertEquals(1, mMapper.unmapped.size());
+        assertEquals(0, mMappings.size());
+        mMappings.release(used);
+        assertEquals(2, mMapper.unmapped.size());
+        // Not kept once closed
+        mMappings.release(mMappings.acquire(1, mPublisher, 3, 16));
+        assertEquals(3, mMapper.unmapped.size());
+    }
+
+    @Test
+    public void testUnusedMappingsAreBounded() {
+        SharedMemoryMappings.Mapping used = mMappings.acquire(0, mPublisher, 3, 16);
+        for (int i = 1; i <= SharedMemoryMappings.MAX_MAPPINGS + 4; i++) {
+            mMappings.release(mMappings.acquire(i, mPublisher, 3, 16));
+        }
+        assertEquals(SharedMemoryMappings.MAX_MAPPINGS, mMappings.size());
+        assertEquals(5, mMapper.unmapped.size());
+        // The used one is kept
+        assertSame(used, mMappings.acquire(0, mPublisher, 3, 16));
+    }
+
+    @Test
+    public void testFailedMappingIsNotKept() {
+        mMapper.failing = true;
+        assertNull(mMappings.acquire(1, mPublisher, 3, 16));
+        assertEquals(0, mMappings.size());
+    }
+}
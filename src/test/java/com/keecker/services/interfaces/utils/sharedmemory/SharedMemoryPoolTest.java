@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Free-list and lookups of {@link SharedMemory}, with buffers that are not backed by ashmem.
+ */
+public class SharedMemoryPoolTest {
+
+    public static class FakeBuffer extends SharedMemoryBuffer {
+        private static final AtomicInteger sNextId = new AtomicInteger(100);
+        private final int mId = sNextId.getAndIncrement();
+
+        public FakeBuffer(int size) {
+            super();
+        }
+
+        @Override
+        public long getBufferId() {
+            return mId * 1000L;
+        }
+
+        @Override
+        public int getFd() {
+            return mId;
+        }
+    }
+
+    @Test
+    public void testDequeuesEachBufferOnce() {
+        SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 4, 16);
+        Set<FakeBuffer> dequeued = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            FakeBuffer buffer = sharedMemory.dequeueBuffer();
+            assertNotNull(buffer);
+            assertFalse(buffer.isAvailableForDequeue());
+            assertTrue(dequeued.add(buffer));
+        }
+        assertNull(sharedMemory.dequeueBuffer());
+        assertEquals(-1, sharedMemory.dequeueBufferFd());
+    }
+
+    @Test
+    public void testEnqueuingTwiceDoesNotDuplicateTheBuffer() {
+        SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 2, 16);
+        FakeBuffer first = sharedMemory.dequeueBuffer();
+        FakeBuffer second = sharedMemory.dequeueBuffer();
+        sharedMemory.enqueueBuffer(first);
+        sharedMemory.enqueueBuffer(first);
+        sharedMemory.enqueueBuffer(first.getBufferId());
+        assertTrue(first.isAvailableForDequeue());
+        assertSame(first, sharedMemory.dequeueBuffer());
+        assertNull(sharedMemory.dequeueBuffer());
+        sharedMemory.enqueueBuffer(second.getBufferId());
+        assertSame(second, sharedMemory.dequeueBuffer());
+    }
+
+    @Test
+    public void testIgnoresBuffersFromAnotherPool() {
+        SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 1, 16);
+        SharedMemory<FakeBuffer> otherMemory = new SharedMemory<>(FakeBuffer.class, 1, 16);
+        FakeBuffer buffer = sharedMemory.dequeueBuffer();
+        FakeBuffer other = otherMemory.dequeueBuffer();
+        sharedMemory.enqueueBuffer(other);
+        sharedMemory.enqueueBuffer(12345L);
+        assertNull(sharedMemory.dequeueBuffer());
+        sharedMemory.enqueueBuffer(buffer);
+        assertSame(buffer, sharedMemory.dequeueBuffer());
+    }
+
+    @Test
+    public void testLooksUpBuffersByIdAndFd() {
+        SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 8, 16);
+        for (int i = 0; i < 8; i++) {
+            FakeBuffer buffer = sharedMemory.dequeueBuffer();
+            assertSame(buffer, sharedMemory.getBufferFromId(buffer.getBufferId()));
+            assertEquals(buffer.getBufferId(), sharedMemory.getBufferIdFromFd(buffer.getFd()));
+        }
+        assertNull(sharedMemory.getBufferFromId(-5));
+        assertEquals(-1, sharedMemory.getBufferIdFromFd(-5));
+    }
+
+    @Test
+    public void testNothingIsDequeuedOnceDestroyed() {
+        SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 2, 16);
+        FakeBuffer buffer = sharedMemory.dequeueBuffer();
+        sharedMemory.destroy();
+        assertNull(sharedMemory.dequeueBuffer());
+        assertNull(sharedMemory.getBufferFromId(buffer.getBufferId()));
+        assertEquals(0, sharedMemory.getNumBuffers());
+    }
+
+    @Test
+    public void testBuffersAreNeverSharedBetweenThreads() throws InterruptedException {
+        final int numThreads = 4;
+        final int numBuffers = 3;
+        final int iterations = 100000;
+        final SharedMemory<FakeBuffer> sharedMemory =
+                new SharedMemory<>(FakeBuffer.class, numBuffers, 16);
+        // Owner of each buffer, by buffer fd
+        final AtomicReferenceArray<Thread> owners = new AtomicReferenceArray<>(1000);
+        final AtomicInteger conflicts = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        FakeBuffer buffer = sharedMemory.dequeueBuffer();
+                        if (buffer == null) {
+                            continue;
+                        }
+                        int slot = buffer.getFd() % 1000;
+                        if (!owners.compareAndSet(slot, null, Thread.currentThread())) {
+                            conflicts.incrementAndGet();
+                        }
+                        owners.set(slot, null);
+                        sharedMemory.enqueueBuffer(buffer.getBufferId());
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, conflicts.get());
+        for (int i = 0; i < numBuffers; i++) {
+            assertNotNull(sharedMemory.dequeueBuffer());
+        }
+        assertNull(sharedMemory.dequeueBuffer());
+    }
+
+    @Test
+    public void testTimedDequeueGivesUp() throws InterruptedException {
+        SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 1, 16);
+        assertNotNull(sharedMemory.dequeueBuffer(100, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        assertNull(sharedMemory.dequeueBuffer(100, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testTimedDequeueWaitsForARelease() throws InterruptedException {
+        final SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 1, 16);
+        final FakeBuffer buffer = sharedMemory.dequeueBuffer();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {}
+                sharedMemory.enqueueBuffer(buffer.getBufferId());
+            }
+        });
+        consumer.start();
+        assertSame(buffer, sharedMemory.dequeueBuffer(10, TimeUnit.SECONDS));
+        consumer.join();
+    }
+
+    @Test
+    public void testDestroyWakesWaitingProducers() throws InterruptedException {
+        final SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 1, 16);
+        sharedMemory.dequeueBuffer();
+        Thread destroyer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {}
+                sharedMemory.destroy();
+            }
+        });
+        destroyer.start();
+        long start = System.nanoTime();
+        assertNull(sharedMemory.dequeueBuffer(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        destroyer.join();
+    }
+
+    @Test
+    public void testReclaimsTheOldestBuffer() {
+        SharedMemory<FakeBuffer> sharedMemory = new SharedMemory<>(FakeBuffer.class, 3, 16,
+                SharedMemory.ExhaustionPolicy.RECLAIM_OLDEST);
+        FakeBuffer first = sharedMemory.dequeueBuffer();
+        FakeBuffer second = sharedMemory.dequeueBuffer();
+        FakeBuffer third = sharedMemory.dequeueBuffer();
+        assertSame(first, sharedMemory.dequeueBuffer());
+        assertSame(second, sharedMemory.dequeueBuffer());
+        // Release of the reclaimed use of the first buffer, ignored
+        sharedMemory.enqueueBuffer(first);
+        assertFalse(first.isAvailableForDequeue());
+        assertSame(third, sharedMemory.dequeueBuffer());
+        // Release of the current use
+        sharedMemory.enqueueBuffer(first);
+        assertTrue(first.isAvailableForDequeue());
+        assertSame(first, sharedMemory.dequeueBuffer());
+    }
+
+    /**
+     * Buffer always reclaimed by another producer first.
+     */
+    public static class ContendedBuffer extends FakeBuffer {
+        static final AtomicInteger sReclaimAttempts = new AtomicInteger();
+
+        public ContendedBuffer(int size) {
+            super(size);
+        }
+
+        @Override
+        boolean reclaimFlight(long previousFlight, long flight) {
+            sReclaimAttempts.incrementAndGet();
+            return false;
+        }
+    }
+
+    @Test
+    public void testContendedReclaimGivesUp() throws InterruptedException {
+        final SharedMemory<ContendedBuffer> sharedMemory = new SharedMemory<>(
+                ContendedBuffer.class, 2, 16, SharedMemory.ExhaustionPolicy.RECLAIM_OLDEST);
+        final ContendedBuffer buffer = sharedMemory.dequeueBuffer();
+        assertNotNull(sharedMemory.dequeueBuffer());
+        ContendedBuffer.sReclaimAttempts.set(0);
+        assertNull(sharedMemory.dequeueBuffer());
+        // A single pass over the pool
+        assertEquals(2, ContendedBuffer.sReclaimAttempts.get());
+        // Then waits for a release
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {}
+                sharedMemory.enqueueBuffer(buffer.getBufferId());
+            }
+        });
+        consumer.start();
+        assertSame(buffer, sharedMemory.dequeueBuffer(10, TimeUnit.SECONDS));
+        consumer.join();
+    }
+
+    @Test
+    public void testIndexQueueOfCapacityOne() {
+        BufferIndexQueue queue = new BufferIndexQueue(1);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(i));
+            assertFalse(queue.offer(42));
+            assertEquals(1, queue.size());
+            assertEquals(i, queue.poll());
+            assertEquals(-1, queue.poll());
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright (C) 2019 KEECKER SAS (www.keecker.com)
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ */
+package com.keecker.services.interfaces.utils.sharedmemory;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+
+import com.keecker.services.interfaces.utils.IpcMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SharedMemoryPublisherReleaseTest {
+
+    private SharedMemoryPublisher<SharedMemoryPoolTest.FakeBuffer> mPublisher;
+    private SharedMemoryPublisher.Delegate<SharedMemoryPoolTest.FakeBuffer> mDelegate;
+    private SharedMemoryPoolTest.FakeBuffer mBuffer;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void before() {
+        mPublisher = new SharedMemoryPublisher<>(SharedMemoryPoolTest.FakeBuffer.class, 4, 200);
+        mDelegate = mock(SharedMemoryPublisher.Delegate.class);
+        mBuffer = new SharedMemoryPoolTest.FakeBuffer(16);
+    }
+
+    @Test
+    public void testLastSubscriberReleasesTheBuffer() throws Exception {
+        ISharedMemorySubscriber first = mockSubscriber();
+        ISharedMemorySubscriber second = mockSubscriber();
+        mPublisher.add(first);
+        mPublisher.add(second);
+        mPublisher.publish(mBuffer, mDelegate);
+        ISharedBufferCallbacks firstCallbacks = captureCallbacks(first, 1).get(0);
+        ISharedBufferCallbacks secondCallbacks = captureCallbacks(second, 1).get(0);
+        firstCallbacks.doneWithBuffer();
+        verify(mDelegate, never()).onAllClientsDone(mBuffer);
+        // Only the first call of a subscriber counts
+        firstCallbacks.doneWithBuffer();
+        verify(mDelegate, never()).onAllClientsDone(mBuffer);
+        secondCallbacks.doneWithBuffer();
+        verify(mDelegate).onAllClientsDone(mBuffer);
+    }
+
+    @Test
+    public void testReleasedRightAwayWithoutSubscribers() {
+        mPublisher.publish(mBuffer, mDelegate);
+        verify(mDelegate).onAllClientsDone(mBuffer);
+    }
+
+    @Test
+    public void testCallbacksAreReusedForTheSameBuffer() throws Exception {
+        ISharedMemorySubscriber subscriber = mockSubscriber();
+        mPublisher.add(subscriber);
+        mPublisher.publish(mBuffer, mDelegate);
+        mPublisher.publish(mBuffer, mDelegate);
+        List<ISharedBufferCallbacks> callbacks = captureCallbacks(subscriber, 2);
+        assertSame(callbacks.get(0), callbacks.get(1));
+        // Both publications are given back in order
+        callbacks.get(0).doneWithBuffer();
+        verify(mDelegate, times(1)).onAllClientsDone(mBuffer);
+        callbacks.get(0).doneWithBuffer();
+        verify(mDelegate, times(2)).onAllClientsDone(mBuffer);
+    }
+
+    @Test
+    public void testCallbacksOfBuffersOutOfThePoolAreDropped() throws Exception {
+        ISharedMemorySubscriber subscriber = mockSubscriber();
+        mPublisher.add(subscriber);
+        for (int i = 0; i < 20; i++) {
+            mPublisher.publish(new SharedMemoryPoolTest.FakeBuffer(16), mDelegate);
+        }
+        assertEquals(20, mPublisher.getCallbacksCount());
+        for (ISharedBufferCallbacks callbacks : captureCallbacks(subscriber, 20)) {
+            callbacks.doneWithBuffer();
+        }
+        assertEquals(0, mPublisher.getCallbacksCount());
+        assertEquals(0, mPublisher.getInFlightCount());
+    }
+
+    @Test
+    public void testCallbacksOfPooledBuffersAreKept() throws Exception {
+        SharedMemory<SharedMemoryPoolTest.FakeBuffer> sharedMemory =
+                new SharedMemory<>(SharedMemoryPoolTest.FakeBuffer.class, 2, 16);
+        SharedMemoryPublisher<SharedMemoryPoolTest.FakeBuffer> publisher =
+                new SharedMemoryPublisher<>(SharedMemoryPoolTest.FakeBuffer.class, sharedMemory);
+        ISharedMemorySubscriber subscriber = mockSubscriber();
+        publisher.add(subscriber);
+        publisher.publish(sharedMemory.dequeueBuffer(), mDelegate);
+        captureCallbacks(subscriber, 1).get(0).doneWithBuffer();
+        assertEquals(1, publisher.getCallbacksCount());
+        publisher.close();
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testStuckSubscriberReleasesItsOldestPublication() throws Exception {
+        ISharedMemorySubscriber stuck = mockSubscriber();
+        mPublisher.add(stuck);
+        for (int i = 0; i < 8; i++) {
+            mPublisher.publish(mBuffer, mDelegate);
+        }
+        verify(mDelegate, never()).onAllClientsDone(mBuffer);
+        // One more than the subscriber can hold, the oldest one is released
+        mPublisher.publish(mBuffer, mDelegate);
+        verify(mDelegate, times(1)).onAllClientsDone(mBuffer);
+        assertEquals(8, mPublisher.getInFlightCount());
+        assertEquals(0, mPublisher.getTimedOutCount());
+    }
+
+    @Test
+    public void testDeadSubscriberDoesNotHoldTheBuffer() throws Exception {
+        ISharedMemorySubscriber dead = mockSubscriber();
+        doThrow(new DeadObjectException()).when(dead)
+                .onNewMessage(any(IpcMessage.class), any(ISharedBufferCallbacks.class));
+        mPublisher.add(dead);
+        mPublisher.publish(mBuffer, mDelegate);
+        verify(mDelegate).onAllClientsDone(mBuffer);
+        assertEquals(0, mPublisher.getSubscribersCount());
+    }
+
+    @Test
+    public void testSlowSubscriberTimesOut() throws Exception {
+        ISharedMemorySubscriber slow = mockSubscriber();
+        mPublisher.add(slow);
+        mPublisher.publish(mBuffer, mDelegate);
+        verify(mDelegate, never()).onAllClientsDone(mBuffer);
+        verify(mDelegate, timeout(2000)).onAllClientsDone(mBuffer);
+        // Given back late, not released twice
+        captureCallbacks(slow, 1).get(0).doneWithBuffer();
+        verify(mDelegate, times(1)).onAllClientsDone(mBuffer);
+        assertEquals(1, mPublisher.getTimedOutCount());
+        assertEquals(0, mPublisher.getInFlightCount());
+    }
+
+    @Test
+    public void testCountsBuffersInFlight() throws Exception {
+        ISharedMemorySubscriber subscriber = mockSubscriber();
+        mPublisher.add(subscriber);
+        SharedMemoryPoolTest.FakeBuffer other = new SharedMemoryPoolTest.FakeBuffer(16);
+        mPublisher.publish(mBuffer, mDelegate);
+        mPublisher.publish(other, mDelegate);
+        assertEquals(2, mPublisher.getInFlightCount());
+        assertEquals(2, mPublisher.getMetrics().getQueueDepth());
+        captureCallbacks(subscriber, 2).get(0).doneWithBuffer();
+        assertEquals(1, mPublisher.getInFlightCount());
+        assertEquals(0, mPublisher.getTimedOutCount());
+    }
+
+    @Test
+    public void testTableGrowsWhenFull() throws Exception {
+        SharedMemoryPublisher<SharedMemoryPoolTest.FakeBuffer> publisher =
+                new SharedMemoryPublisher<>(SharedMemoryPoolTest.FakeBuffer.class, 1, 200);
+        ISharedMemorySubscriber slow = mockSubscriber();
+        publisher.add(slow);
+        SharedMemoryPoolTest.FakeBuffer other = new SharedMemoryPoolTest.FakeBuffer(16);
+        SharedMemoryPoolTest.FakeBuffer third = new SharedMemoryPoolTest.FakeBuffer(16);
+        publisher.publish(mBuffer, mDelegate);
+        publisher.publish(other, mDelegate);
+        publisher.publish(third, mDelegate);
+        // Still read by the subscriber, none of them is given up on
+        verify(mDelegate, never()).onAllClientsDone(any(SharedMemoryPoolTest.FakeBuffer.class));
+        assertEquals(3, publisher.getInFlightCount());
+        assertEquals(0, publisher.getTimedOutCount());
+        List<ISharedBufferCallbacks> callbacks = captureCallbacks(slow, 3);
+        callbacks.get(1).doneWithBuffer();
+        verify(mDelegate).onAllClientsDone(other);
+        verify(mDelegate, never()).onAllClientsDone(mBuffer);
+        callbacks.get(0).doneWithBuffer();
+        callbacks.get(2).doneWithBuffer();
+        verify(mDelegate).onAllClientsDone(mBuffer);
+        verify(mDelegate).onAllClientsDone(third);
+        assertEquals(0, publisher.getInFlightCount());
+        publisher.close();
+    }
+
+    @Test
+    public void testCloseHandsBuffersBack() throws Exception {
+        ISharedMemorySubscriber subscriber = mockSubscriber();
+        mPublisher.add(subscriber);
+        mPublisher.publish(mBuffer, mDelegate);
+        mPublisher.close();
+        verify(mDelegate).onAllClientsDone(mBuffer);
+        assertEquals(0, mPublisher.getInFlightCount());
+        assertEquals(0, mPublisher.getSubscribersCount());
+        assertEquals(0, mPublisher.getTimedOutCount());
+        // Given back late, not released twice
+        captureCallbacks(subscriber, 1).get(0).doneWithBuffer();
+        verify(mDelegate, times(1)).onAllClientsDone(mBuffer);
+        // Refused once closed
+        mPublisher.add(subscriber);
+        mPublisher.publish(mBuffer, mDelegate);
+        verify(mDelegate, times(2)).onAllClientsDone(mBuffer);
+        captureCallbacks(subscriber, 1);
+    }
+
+    @Test
+    public void testSizedToThePool() {
+        SharedMemory<SharedMemoryPoolTest.FakeBuffer> sharedMemory =
+                new SharedMemory<>(SharedMemoryPoolTest.FakeBuffer.class, 2, 16);
+        SharedMemoryPublisher<SharedMemoryPoolTest.FakeBuffer> publisher =
+                new SharedMemoryPublisher<>(SharedMemoryPoolTest.FakeBuffer.class, sharedMemory);
+        publisher.add(mockSubscriber());
+        publisher.publish(sharedMemory.dequeueBuffer(), mDelegate);
+        publisher.publish(sharedMemory.dequeueBuffer(), mDelegate);
+        assertEquals(2, publisher.getInFlightCount());
+        assertEquals(0, publisher.getTimedOutCount());
+        publisher.close();
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testSharesPoolOnceWithFrameSubscribers() throws Exception {
+        SharedMemory<SharedMemoryPoolTest.FakeBuffer> sharedMemory =
+                new SharedMemory<>(SharedMemoryPoolTest.FakeBuffer.class, 2, 16);
+        SharedMemoryPublisher<SharedMemoryPoolTest.FakeBuffer> publisher =
+                new SharedMemoryPublisher<>(SharedMemoryPoolTest.FakeBuffer.class, sharedMemory);
+        ISharedMemorySubscriber frames = mockSubscriber();
+        when(frames.getProtocolVersion()).thenReturn(SharedMemorySubscriber.PROTOCOL_VERSION);
+        ISharedMemorySubscriber legacy = mockSubscriber();
+        publisher.add(frames);
+        publisher.add(legacy);
+        SharedMemoryPoolTest.FakeBuffer first = sharedMemory.dequeueBuffer();
+        SharedMemoryPoolTest.FakeBuffer second = sharedMemory.dequeueBuffer();
+        ArgumentCaptor<Integer> poolId = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<ISharedBufferCallbacks> poolCallbacks =
+                ArgumentCaptor.forClass(ISharedBufferCallbacks.class);
+        verify(frames).onPoolShared(poolId.capture(), any(ParcelFileDescriptor[].class),
+                aryEq(new long[]{first.getBufferId(), second.getBufferId()}), eq(16),
+                poolCallbacks.capture());
+        verify(legacy, never()).onPoolShared(anyInt(), any(ParcelFileDescriptor[].class),
+                any(long[].class), anyInt(), any(ISharedBufferCallbacks.class));
+
+        publisher.publish(first, mDelegate);
+        publisher.publish(second, mDelegate);
+        ArgumentCaptor<Long> sequences = ArgumentCaptor.forClass(Long.class);
+        verify(frames, times(2)).onNewFrame(any(IpcMessage.class), eq(poolId.getValue()),
+                anyLong(), sequences.capture());
+        verify(frames, never()).onNewMessage(any(IpcMessage.class),
+                any(ISharedBufferCallbacks.class));
+        List<ISharedBufferCallbacks> legacyCallbacks = captureCallbacks(legacy, 2);
+        legacyCallbacks.get(0).doneWithBuffer();
+        legacyCallbacks.get(1).doneWithBuffer();
+        // Frames given back in any order
+        poolCallbacks.getValue().doneWithFrame(second.getBufferId(), sequences.getAllValues().get(1));
+        verify(mDelegate).onAllClientsDone(second);
+        verify(mDelegate, never()).onAllClientsDone(first);
+        // Only once
+        poolCallbacks.getValue().doneWithFrame(second.getBufferId(), sequences.getAllValues().get(1));
+        poolCallbacks.getValue().doneWithFrame(first.getBufferId(), sequences.getAllValues().get(0));
+        verify(mDelegate).onAllClientsDone(first);
+        verify(mDelegate, times(1)).onAllClientsDone(second);
+        assertEquals(0, publisher.getInFlightCount());
+        publisher.close();
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testBuffersOutOfThePoolKeepTheirFd() throws Exception {
+        SharedMemory<SharedMemoryPoolTest.FakeBuffer> sharedMemory =
+                new SharedMemory<>(SharedMemoryPoolTest.FakeBuffer.class, 2, 16);
+        SharedMemoryPublisher<SharedMemoryPoolTest.FakeBuffer> publisher =
+                new SharedMemoryPublisher<>(SharedMemoryPoolTest.FakeBuffer.class, sharedMemory);
+        ISharedMemorySubscriber frames = mockSubscriber();
+        when(frames.getProtocolVersion()).thenReturn(SharedMemorySubscriber.PROTOCOL_VERSION);
+        publisher.add(frames);
+        publisher.publish(mBuffer, mDelegate);
+        verify(frames, never()).onNewFrame(any(IpcMessage.class), anyInt(), anyLong(), anyLong());
+        captureCallbacks(frames, 1).get(0).doneWithBuffer();
+        verify(mDelegate).onAllClientsDone(mBuffer);
+        publisher.close();
+        sharedMemory.destroy();
+    }
+
+    @Test
+    public void testSharesTheNewPoolAgain() throws Exception {
+        SharedMemory<SharedMemoryPoolTest.FakeBuffer> sharedMemory =
+                new SharedMemory<>(SharedMemoryPoolTest.FakeBuffer.class, 2, 16);
+        SharedMemory<SharedMemoryPoolTest.FakeBuffer> resized =
+                new SharedMemory<>(SharedMemoryPoolTest.FakeBuffer.class, 4, 16);
+        SharedMemoryPublisher<SharedMemoryPoolTest.FakeBuffer> publisher =
+                new SharedMemoryPublisher<>(SharedMemoryPoolTest.FakeBuffer.class, sharedMemory);
+        ISharedMemorySubscriber frames = mockSubscriber();
+        when(frames.getProtocolVersion()).thenReturn(SharedMemorySubscriber.PROTOCOL_VERSION);
+        publisher.add(frames);
+        publisher.sharePool(resized);
+        ArgumentCaptor<Integer> poolIds = ArgumentCaptor.forClass(Integer.class);
+        verify(frames, times(2)).onPoolShared(poolIds.capture(), any(ParcelFileDescriptor[].class),
+                any(long[].class), eq(16), any(ISharedBufferCallbacks.class));
+        assertTrue(!poolIds.getAllValues().get(0).equals(poolIds.getAllValues().get(1)));
+        // Buffers of the previous pool are sent with their fd
+        publisher.publish(sharedMemory.dequeueBuffer(), mDelegate);
+        captureCallbacks(frames, 1);
+        publisher.publish(resized.dequeueBuffer(), mDelegate);
+        verify(frames).onNewFrame(any(IpcMessage.class), eq(poolIds.getAllValues().get(1)),
+                anyLong(), anyLong());
+        publisher.close();
+        sharedMemory.destroy();
+        resized.destroy();
+    }
+
+    private static ISharedMemorySubscriber mockSubscriber() {
+        ISharedMemorySubscriber subscriber = mock(ISharedMemorySubscriber.class);
+        when(subscriber.asBinder()).thenReturn(mock(IBinder.class));
+        return subscriber;
+    }
+
+    private static List<ISharedBufferCallbacks> captureCallbacks(
+            ISharedMemorySubscriber subscriber, int count) throws Exception {
+        ArgumentCaptor<ISharedBufferCallbacks> captor =
+                ArgumentCaptor.forClass(ISharedBufferCallbacks.class);
+        verify(subscriber, times(count)).onNewMessage(any(IpcMessage.class), captor.capture());
+        return captor.getAllValues();
+    }
+}